@@ -0,0 +1,371 @@
+package com.danga.squeezer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Album art we've already fetched: decoded Bitmaps in a small in-memory
+ * LRU, and the encoded image bytes in the app's cache directory.  Both are
+ * bounded by bytes, not entries, since art sizes vary wildly.
+ *
+ * Each file on disk has a ".meta" file next to it holding when it was
+ * fetched and its ETag/Last-Modified, so stale copies can be revalidated
+ * with a conditional GET instead of downloaded again.  Art named by an
+ * artwork_track_id practically never changes and is trusted for a week.
+ * Art without one (the server's "current cover" for e.g. Pandora) is
+ * cached under its URL minus the per-song cache-buster and revalidated on
+ * every use, which costs a 304 rather than the image when it's the same.
+ *
+ * Files are written to a temporary name and renamed into place, so the
+ * unlocked readers only ever see a whole old file or a whole new one.
+ *
+ * There's one per process, so it outlives the activity across rotations
+ * and restarts.  Memory lookups are cheap enough for the UI thread; the
+ * disk methods should be called off it.
+ */
+final class AlbumArtCache {
+    private static final String TAG = "AlbumArtCache";
+
+    private static final int MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_DISK_BYTES = 8 * 1024 * 1024;
+    private static final long STABLE_ART_MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static AlbumArtCache instance;
+
+    private final File diskDir;
+
+    // Guarded by this:
+    // Decoded images by imageKey(), so an image shared by many tracks (an
+    // album's cover, a radio station's logo) is only decoded and held once.
+    private final LinkedHashMap<String, Bitmap> memory =
+        new LinkedHashMap<String, Bitmap>(16, 0.75f, true /* access order */);
+    // Cache key -> imageKey() of the image it was last found to be.
+    private final Map<String, String> aliases = new HashMap<String, String>();
+    private int memoryBytes;
+    private long diskBytes = -1;  // -1 until the directory's been scanned
+
+    // Pixel size the art was last shown at, 0 if it hasn't been.
+    private volatile int displaySize;
+
+    private AlbumArtCache(File diskDir) {
+        this.diskDir = diskDir;
+    }
+
+    static synchronized AlbumArtCache get(Context context) {
+        if (instance == null) {
+            File dir = new File(context.getApplicationContext().getCacheDir(), "albumart");
+            instance = new AlbumArtCache(dir);
+        }
+        return instance;
+    }
+
+    // The key to cache status's art under: the artwork_track_id, which
+    // names the same image however it's reached, or failing that (e.g.
+    // Pandora) the art URL without its "&song=" cache-buster.  Null if
+    // there's no art.
+    static String keyFor(PlayerStatus status) {
+        String artworkTrackId = status.getArtworkTrackId();
+        if (artworkTrackId != null && artworkTrackId.length() > 0) {
+            return artworkTrackId;
+        }
+        String url = status.getAlbumArtUrl();
+        if (url.length() == 0) return null;
+        int songParam = url.indexOf("&song=");
+        return songParam == -1 ? url : url.substring(0, songParam);
+    }
+
+    // Whether key always names the same image.  Only those are kept in
+    // memory: the rest have to be revalidated first.
+    private static boolean isStable(String key) {
+        return !key.startsWith("http");
+    }
+
+    // So art can be fetched ahead of time at the size it'll be wanted.
+    void setDisplaySize(int pixels) {
+        displaySize = pixels;
+    }
+
+    int getDisplaySize() {
+        return displaySize;
+    }
+
+    // key's art decoded at pixels x pixels, if we have it in memory.
+    synchronized Bitmap getFromMemory(String key, int pixels) {
+        if (!isStable(key)) return null;
+        String imageKey = aliases.get(key);
+        if (imageKey == null || !imageKey.endsWith("@" + pixels)) {
+            return null;
+        }
+        return memory.get(imageKey);
+    }
+
+    /**
+     * Decodes bytes, the image for key, at pixels x pixels, unless the
+     * same image is already in memory at that size under any key.  Null
+     * if it couldn't be decoded.  Blocks.
+     */
+    Bitmap decode(String key, byte[] bytes, int pixels, AlbumArtDecoder decoder) {
+        String imageKey = imageKey(contentHash(bytes), pixels);
+        Bitmap bitmap;
+        synchronized (this) {
+            aliases.put(key, imageKey);
+            bitmap = memory.get(imageKey);
+        }
+        if (bitmap != null) return bitmap;
+        bitmap = decoder.decode(bytes, pixels, pixels);
+        if (bitmap != null) putInMemory(imageKey, bitmap);
+        return bitmap;
+    }
+
+    private synchronized void putInMemory(String imageKey, Bitmap bitmap) {
+        int size = sizeOf(bitmap);
+        if (size > MAX_MEMORY_BYTES / 4) {
+            return;  // would flush everything else for one picture
+        }
+        Bitmap old = memory.put(imageKey, bitmap);
+        if (old != null) memoryBytes -= sizeOf(old);
+        memoryBytes += size;
+        // Oldest (least recently used) first.  Evicted bitmaps aren't
+        // recycled: an ImageView may still be showing them.
+        Iterator<Map.Entry<String, Bitmap>> it = memory.entrySet().iterator();
+        while (memoryBytes > MAX_MEMORY_BYTES && it.hasNext()) {
+            Map.Entry<String, Bitmap> evicted = it.next();
+            memoryBytes -= sizeOf(evicted.getValue());
+            it.remove();
+            aliases.values().removeAll(Collections.singleton(evicted.getKey()));
+        }
+    }
+
+    // Names a decoded image: what it's of, and at what size.
+    private static String imageKey(String contentHash, int pixels) {
+        return contentHash + "@" + pixels;
+    }
+
+    // Hex MD5 of bytes.  Not for security, just to spot identical images.
+    private static String contentHash(byte[] bytes) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] digest = md5.digest(bytes);
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * The encoded image for key, as fetch (which asks the server for it
+     * scaled to pixels) gets it: from disk if we have a fresh copy,
+     * otherwise via fetch, conditionally if we have a stale one.  Blocks.
+     * Returns null if there's no image to be had or fetch was cancelled.
+     */
+    byte[] load(String key, int pixels, ArtworkFetcher.Fetch fetch) {
+        // The server scales art to order, so each size is its own file.
+        String diskKey = key + "@" + pixels;
+        byte[] cached = readFromDisk(diskKey);
+        String[] meta = cached == null ? null : readMeta(diskKey);
+        long now = System.currentTimeMillis();
+        if (meta != null) {
+            long fetchedAt = parseLong(meta[0]);
+            if (isStable(key) && now - fetchedAt < STABLE_ART_MAX_AGE_MILLIS) {
+                return cached;
+            }
+            fetch.setValidators(meta[1].length() == 0 ? null : meta[1], parseLong(meta[2]));
+        }
+        ArtworkFetcher.Response response;
+        try {
+            response = fetch.execute();
+        } catch (IOException e) {
+            if (fetch.isCancelled()) return null;
+            Log.v(TAG, "Error fetching " + fetch.getUrl() + ": " + e);
+            return cached;  // stale beats nothing
+        }
+        if (response.notModified()) {
+            writeMeta(diskKey, now, response.etag, response.lastModified);
+            return cached;
+        }
+        writeToDisk(diskKey, response.body);
+        writeMeta(diskKey, now, response.etag, response.lastModified);
+        return response.body;
+    }
+
+    // The encoded image, or null if it's not on disk.
+    private byte[] readFromDisk(String key) {
+        File file = fileFor(key);
+        if (!file.exists()) return null;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] bytes = readFully(in);
+            // For eviction, which goes by modification time.
+            file.setLastModified(System.currentTimeMillis());
+            return bytes;
+        } catch (IOException e) {
+            Log.v(TAG, "Error reading " + file + ": " + e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private synchronized void writeToDisk(String key, byte[] bytes) {
+        if (bytes.length > MAX_DISK_BYTES / 4) return;
+        if (!diskDir.exists() && !diskDir.mkdirs()) return;
+        if (diskBytes < 0) diskBytes = directorySize();
+        File file = fileFor(key);
+        long oldLength = file.exists() ? file.length() : 0;
+        if (writeAtomically(file, bytes)) diskBytes += bytes.length - oldLength;
+        if (diskBytes > MAX_DISK_BYTES) trimDisk();
+    }
+
+    // {fetched at, ETag or "", Last-Modified}, or null.
+    private String[] readMeta(String key) {
+        File file = metaFileFor(key);
+        if (!file.exists()) return null;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            String[] meta = new String(readFully(in), "UTF-8").split("\n", -1);
+            return meta.length >= 3 ? meta : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private synchronized void writeMeta(String key, long fetchedAt, String etag, long lastModified) {
+        if (!fileFor(key).exists()) return;  // e.g. too big to keep
+        byte[] meta;
+        try {
+            meta = (fetchedAt + "\n" + (etag == null ? "" : etag) + "\n" + lastModified)
+                .getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        writeAtomically(metaFileFor(key), meta);
+    }
+
+    // Writes file by way of a temporary file renamed over it.  On failure
+    // the old file, if any, is left alone.  Must hold the lock.
+    private boolean writeAtomically(File file, byte[] bytes) {
+        File temp = new File(diskDir, file.getName() + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(bytes);
+            out.close();
+            out = null;
+            if (temp.renameTo(file)) return true;
+            Log.v(TAG, "Error renaming " + temp + " to " + file);
+        } catch (IOException e) {
+            Log.v(TAG, "Error writing " + temp + ": " + e);
+        } finally {
+            closeQuietly(out);
+        }
+        temp.delete();
+        return false;
+    }
+
+    // Deletes the least recently used files until we're under budget.
+    // Must hold the lock.
+    private void trimDisk() {
+        File[] files = diskDir.listFiles();
+        if (files == null) return;
+        TreeMap<Long, File> byAge = new TreeMap<Long, File>();
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();  // left over from a crash mid-write
+                continue;
+            }
+            if (file.getName().endsWith(META_SUFFIX)) continue;
+            long modified = file.lastModified();
+            while (byAge.containsKey(modified)) modified++;
+            byAge.put(modified, file);
+        }
+        for (File file : byAge.values()) {
+            if (diskBytes <= MAX_DISK_BYTES * 3 / 4) break;
+            long length = file.length();
+            if (file.delete()) diskBytes -= length;
+            new File(diskDir, file.getName() + META_SUFFIX).delete();
+        }
+    }
+
+    private long directorySize() {
+        long total = 0;
+        File[] files = diskDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(META_SUFFIX) && !name.endsWith(TEMP_SUFFIX)) {
+                    total += file.length();
+                }
+            }
+        }
+        return total;
+    }
+
+    private File fileFor(String key) {
+        return new File(diskDir, URLEncoder.encode(key));
+    }
+
+    private File metaFileFor(String key) {
+        return new File(diskDir, URLEncoder.encode(key) + META_SUFFIX);
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        byte[] buffer = new byte[8 * 1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {}
+    }
+}
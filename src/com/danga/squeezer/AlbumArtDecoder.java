@@ -0,0 +1,77 @@
+package com.danga.squeezer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Decodes album art no bigger than it'll be shown.  Covers in people's
+ * libraries are often 1500px or more, which decoded at full size is
+ * megabytes of heap for a 210dip ImageView.
+ *
+ * The image's bounds are read first and it's then decoded at the largest
+ * power-of-two sample size that still covers the target size.  Decodes
+ * share one temp buffer, so use one decoder per thread.  cancel() may be
+ * called from any thread, e.g. when the song changes mid-decode.
+ */
+final class AlbumArtDecoder {
+    private final byte[] tempStorage = new byte[16 * 1024];
+
+    // Guarded by this:
+    private BitmapFactory.Options current;
+    private boolean cancelled;
+
+    /**
+     * Returns the image in bytes scaled down to roughly cover
+     * targetWidth x targetHeight, or null if it couldn't be decoded or
+     * the decode was cancelled.
+     */
+    Bitmap decode(byte[] bytes, int targetWidth, int targetHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inTempStorage = tempStorage;
+        synchronized (this) {
+            current = options;
+            cancelled = false;
+        }
+        try {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize(options.outWidth, options.outHeight,
+                    targetWidth, targetHeight);
+            synchronized (this) {
+                if (cancelled) return null;
+            }
+            Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            synchronized (this) {
+                if (cancelled && bitmap != null) {
+                    bitmap.recycle();
+                    return null;
+                }
+            }
+            return bitmap;
+        } finally {
+            synchronized (this) {
+                current = null;
+            }
+        }
+    }
+
+    // Abandons the decode in progress, if any.
+    synchronized void cancel() {
+        cancelled = true;
+        if (current != null) current.requestCancelDecode();
+    }
+
+    // Largest power of two that keeps both sides at least the target.
+    static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) return sampleSize;
+        while (width / (sampleSize * 2) >= targetWidth
+               && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,173 @@
+package com.danga.squeezer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+
+import android.util.Log;
+
+/**
+ * Fetches album art from the server's web interface.
+ *
+ * Connections are kept alive between fetches: every response is read to
+ * the end and closed rather than disconnected, which lets
+ * HttpURLConnection hand the socket to the next request for the same
+ * host.  Only a couple of fetches run at once, so prefetching can't
+ * starve the one the user is waiting for of bandwidth, and each fetch
+ * can be cancelled from another thread once it's no longer wanted.
+ *
+ * One per process; see get().
+ */
+final class ArtworkFetcher {
+    private static final String TAG = "ArtworkFetcher";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_PARALLEL_FETCHES = 2;
+
+    private static final ArtworkFetcher instance = new ArtworkFetcher();
+
+    private final Semaphore permits = new Semaphore(MAX_PARALLEL_FETCHES, true);
+
+    private ArtworkFetcher() {
+    }
+
+    static ArtworkFetcher get() {
+        return instance;
+    }
+
+    Fetch newFetch(String url) {
+        return new Fetch(url);
+    }
+
+    static final class Response {
+        // Null if the server said our copy is still good (304).
+        final byte[] body;
+        final String etag;
+        final long lastModified;
+
+        private Response(byte[] body, String etag, long lastModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        boolean notModified() {
+            return body == null;
+        }
+    }
+
+    /**
+     * One GET.  Give it the validators of the copy you have, if any, to
+     * make it conditional.
+     */
+    final class Fetch {
+        private final String url;
+        private String etag;
+        private long ifModifiedSince;
+
+        // Guarded by this:
+        private boolean cancelled;
+        private HttpURLConnection connection;
+
+        private Fetch(String url) {
+            this.url = url;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        void setValidators(String etag, long lastModified) {
+            this.etag = etag;
+            this.ifModifiedSince = lastModified;
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        // Abandons the fetch, whether it's waiting, connecting or reading.
+        void cancel() {
+            HttpURLConnection toClose;
+            synchronized (this) {
+                cancelled = true;
+                toClose = connection;
+            }
+            // Drops the socket rather than returning it to the pool, which
+            // is what we want mid-response.
+            if (toClose != null) toClose.disconnect();
+        }
+
+        /**
+         * Blocks until the response is in.  Throws IOException on network
+         * errors, non-200/304 responses and cancellation.
+         */
+        Response execute() throws IOException {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting to fetch " + url);
+            }
+            try {
+                return executeHoldingPermit();
+            } finally {
+                permits.release();
+            }
+        }
+
+        private Response executeHoldingPermit() throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            synchronized (this) {
+                if (cancelled) throw new IOException("Cancelled: " + url);
+                connection = conn;
+            }
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+            if (etag != null) conn.setRequestProperty("If-None-Match", etag);
+            if (ifModifiedSince > 0) conn.setIfModifiedSince(ifModifiedSince);
+
+            InputStream in = null;
+            try {
+                int code = conn.getResponseCode();
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return new Response(null, etag, ifModifiedSince);
+                }
+                if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP " + code + " fetching " + url);
+                }
+                in = conn.getInputStream();
+                byte[] body = readFully(in, conn.getContentLength());
+                return new Response(body, conn.getHeaderField("ETag"), conn.getLastModified());
+            } catch (IOException e) {
+                if (isCancelled()) Log.v(TAG, "Cancelled: " + url);
+                throw e;
+            } finally {
+                // Closing (not disconnecting) after reading everything lets
+                // the connection be reused.
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {}
+                }
+                synchronized (this) {
+                    connection = null;
+                }
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int contentLength) throws IOException {
+        ByteArrayOutputStream out =
+            new ByteArrayOutputStream(contentLength > 0 ? contentLength : 16 * 1024);
+        byte[] buffer = new byte[8 * 1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
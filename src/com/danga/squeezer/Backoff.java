@@ -0,0 +1,42 @@
+package com.danga.squeezer;
+
+import java.util.Random;
+
+/**
+ * Delays between reconnect attempts: doubling from initialMillis up to
+ * maxMillis, each one picked at random from the upper half of its step.
+ * The randomness is so a houseful of phones that lost the same server
+ * don't all come knocking at the same moment when it's back.
+ *
+ * Not thread-safe; SqueezeService uses it under its connection lock.
+ */
+final class Backoff {
+    private final long initialMillis;
+    private final long maxMillis;
+    private final Random random = new Random();
+    private int attempts;
+
+    Backoff(long initialMillis, long maxMillis) {
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    // How long to wait before the next attempt.  Counts it as made.
+    long nextDelayMillis() {
+        long step = maxMillis;
+        if (attempts < 30) step = Math.min(maxMillis, initialMillis << attempts);
+        attempts++;
+        long half = step / 2;
+        return half + (long) (random.nextDouble() * (step - half));
+    }
+
+    // Attempts made since the last reset().
+    int attempts() {
+        return attempts;
+    }
+
+    // After a success: start again from initialMillis.
+    void reset() {
+        attempts = 0;
+    }
+}
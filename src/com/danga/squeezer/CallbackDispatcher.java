@@ -0,0 +1,329 @@
+package com.danga.squeezer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Fans IServiceCallback events out to every registered client (the
+ * activity, a widget, ...) without running any client code on the
+ * caller's thread, which is usually the ListeningThread.
+ *
+ * Events are coalesced per client: each client has one slot per kind of
+ * event holding the latest value, and at most one delivery in flight.  A
+ * slow client just has its older events overwritten; a dead one is dropped.
+ *
+ * Clients watching all players (see setWatchingPlayers) also get every
+ * player's status changes, latest per player, as one list per delivery.
+ */
+class CallbackDispatcher {
+    private static final String TAG = "CallbackDispatcher";
+
+    // Pending event bits, in delivery order.
+    private static final int CONNECTION_CHANGED = 1 << 0;
+    private static final int PLAYERS_DISCOVERED = 1 << 1;
+    private static final int PLAYER_CHANGED = 1 << 2;
+    private static final int PLAY_STATUS_CHANGED = 1 << 3;
+    private static final int MUSIC_CHANGED = 1 << 4;
+    private static final int TIME_CHANGED = 1 << 5;
+    private static final int VOLUME_CHANGED = 1 << 6;
+    private static final int PLAYER_STATUSES_CHANGED = 1 << 7;
+
+    interface ClientCountListener {
+        // Called whenever a client comes or goes, with the new count.
+        void onClientCountChanged(int oldCount, int newCount);
+    }
+
+    private final ClientCountListener countListener;
+
+    // Threads are only created per concurrently-busy client, so this
+    // stays as small as the number of clients.
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+
+    // Set by kill(); events after that go nowhere.
+    private volatile boolean killed;
+
+    // Used for its death notifications.
+    private final RemoteCallbackList<IServiceCallback> callbackList =
+        new RemoteCallbackList<IServiceCallback>() {
+            @Override
+            public void onCallbackDied(IServiceCallback callback) {
+                Log.v(TAG, "Client died.");
+                Client client = find(callback);
+                if (client != null) remove(client);
+            }
+        };
+
+    CallbackDispatcher(ClientCountListener countListener) {
+        this.countListener = countListener;
+    }
+
+    void register(IServiceCallback callback) {
+        Client client = new Client(callback);
+        int oldCount;
+        int newCount;
+        synchronized (clients) {
+            // Checked under the lock, so a binder registering twice at
+            // once still only gets in once.
+            if (find(callback) != null) return;
+            oldCount = clients.size();
+            clients.add(client);
+            newCount = clients.size();
+        }
+        callbackList.register(callback);
+        countListener.onClientCountChanged(oldCount, newCount);
+    }
+
+    void unregister(IServiceCallback callback) {
+        Client client = find(callback);
+        if (client == null) return;
+        callbackList.unregister(callback);
+        remove(client);
+    }
+
+    // Whether callback wants onPlayerStatusesChanged() about every player.
+    void setWatchingPlayers(IServiceCallback callback, boolean watching) {
+        Client client = find(callback);
+        if (client == null) return;
+        synchronized (client) {
+            client.watchingPlayers = watching;
+            if (!watching) client.changedPlayers.clear();
+        }
+    }
+
+    boolean hasPlayerWatchers() {
+        for (Client client : clients) {
+            if (client.watchingPlayers) return true;
+        }
+        return false;
+    }
+
+    int clientCount() {
+        return clients.size();
+    }
+
+    void kill() {
+        killed = true;
+        callbackList.kill();
+        clients.clear();
+        executor.shutdown();
+    }
+
+    void onConnectionChanged(boolean isConnected, boolean postConnect) {
+        for (Client client : clients) {
+            synchronized (client) {
+                client.isConnected = isConnected;
+                // Don't let a later event swallow the post-connect one.
+                if ((client.pending & CONNECTION_CHANGED) == 0) client.postConnect = false;
+                client.postConnect |= postConnect;
+                client.post(CONNECTION_CHANGED);
+            }
+        }
+    }
+
+    void onPlayersDiscovered() {
+        for (Client client : clients) {
+            synchronized (client) {
+                client.post(PLAYERS_DISCOVERED);
+            }
+        }
+    }
+
+    void onPlayerChanged(String playerId, String playerName) {
+        for (Client client : clients) {
+            synchronized (client) {
+                client.playerId = playerId;
+                client.playerName = playerName;
+                client.post(PLAYER_CHANGED);
+            }
+        }
+    }
+
+    void onPlayStatusChanged(boolean isPlaying) {
+        for (Client client : clients) {
+            synchronized (client) {
+                client.isPlaying = isPlaying;
+                client.post(PLAY_STATUS_CHANGED);
+            }
+        }
+    }
+
+    void onMusicChanged(PlayerStatus status) {
+        for (Client client : clients) {
+            synchronized (client) {
+                client.status = status;
+                client.post(MUSIC_CHANGED);
+            }
+        }
+    }
+
+    void onTimeInSongChange(int secondsIn, int secondsTotal) {
+        for (Client client : clients) {
+            synchronized (client) {
+                client.secondsIn = secondsIn;
+                client.secondsTotal = secondsTotal;
+                client.post(TIME_CHANGED);
+            }
+        }
+    }
+
+    void onVolumeChange(int newVolume) {
+        for (Client client : clients) {
+            synchronized (client) {
+                client.volume = newVolume;
+                client.post(VOLUME_CHANGED);
+            }
+        }
+    }
+
+    void onPlayerStatusChanged(PlayerStatus status) {
+        for (Client client : clients) {
+            if (!client.watchingPlayers) continue;
+            synchronized (client) {
+                client.changedPlayers.put(status.getPlayerId(), status);
+                client.post(PLAYER_STATUSES_CHANGED);
+            }
+        }
+    }
+
+    private Client find(IServiceCallback callback) {
+        for (Client client : clients) {
+            if (client.callback.asBinder() == callback.asBinder()) return client;
+        }
+        return null;
+    }
+
+    private void remove(Client client) {
+        int oldCount;
+        int newCount;
+        synchronized (clients) {
+            oldCount = clients.size();
+            if (!clients.remove(client)) return;
+            newCount = clients.size();
+        }
+        countListener.onClientCountChanged(oldCount, newCount);
+    }
+
+    private class Client implements Runnable {
+        final IServiceCallback callback;
+        volatile boolean watchingPlayers;
+
+        // Guarded by this:
+        int pending;
+        boolean scheduled;
+        boolean isConnected;
+        boolean postConnect;
+        String playerId;
+        String playerName;
+        boolean isPlaying;
+        PlayerStatus status;
+        int secondsIn;
+        int secondsTotal;
+        int volume;
+        final Map<String, PlayerStatus> changedPlayers = new LinkedHashMap<String, PlayerStatus>();
+
+        Client(IServiceCallback callback) {
+            this.callback = callback;
+        }
+
+        // Must hold the lock.
+        void post(int event) {
+            pending |= event;
+            if (!scheduled && !killed) {
+                scheduled = true;
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Lost the race with kill(); nobody to tell anyway.
+                    scheduled = false;
+                }
+            }
+        }
+
+        public void run() {
+            while (true) {
+                int events;
+                boolean isConnected;
+                boolean postConnect;
+                String playerId;
+                String playerName;
+                boolean isPlaying;
+                PlayerStatus status;
+                int secondsIn;
+                int secondsTotal;
+                int volume;
+                List<PlayerStatus> changedPlayers = null;
+                synchronized (this) {
+                    events = pending;
+                    if (events == 0) {
+                        scheduled = false;
+                        return;
+                    }
+                    pending = 0;
+                    isConnected = this.isConnected;
+                    postConnect = this.postConnect;
+                    playerId = this.playerId;
+                    playerName = this.playerName;
+                    isPlaying = this.isPlaying;
+                    status = this.status;
+                    secondsIn = this.secondsIn;
+                    secondsTotal = this.secondsTotal;
+                    volume = this.volume;
+                    if ((events & PLAYER_STATUSES_CHANGED) != 0) {
+                        changedPlayers = new ArrayList<PlayerStatus>(this.changedPlayers.values());
+                        this.changedPlayers.clear();
+                    }
+                }
+                try {
+                    if ((events & CONNECTION_CHANGED) != 0) {
+                        callback.onConnectionChanged(isConnected, postConnect);
+                    }
+                    if ((events & PLAYERS_DISCOVERED) != 0) {
+                        callback.onPlayersDiscovered();
+                    }
+                    if ((events & PLAYER_CHANGED) != 0) {
+                        callback.onPlayerChanged(playerId, playerName);
+                    }
+                    if ((events & PLAY_STATUS_CHANGED) != 0) {
+                        callback.onPlayStatusChanged(isPlaying);
+                    }
+                    if ((events & MUSIC_CHANGED) != 0) {
+                        callback.onMusicChanged(status);
+                    }
+                    if ((events & TIME_CHANGED) != 0) {
+                        callback.onTimeInSongChange(secondsIn, secondsTotal);
+                    }
+                    if ((events & VOLUME_CHANGED) != 0) {
+                        callback.onVolumeChange(volume);
+                    }
+                    if (changedPlayers != null && !changedPlayers.isEmpty()) {
+                        callback.onPlayerStatusesChanged(changedPlayers);
+                    }
+                } catch (RemoteException e) {
+                    Log.v(TAG, "Dropping client: " + e);
+                    callbackList.unregister(callback);
+                    remove(this);
+                    synchronized (this) {
+                        scheduled = false;
+                    }
+                    return;
+                } catch (RuntimeException e) {
+                    // Same-process clients run their code right here.  Don't
+                    // let one of them kill this thread's other clients' events.
+                    Log.e(TAG, "Client threw: " + e);
+                }
+            }
+        }
+    }
+}
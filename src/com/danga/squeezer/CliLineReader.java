@@ -0,0 +1,222 @@
+package com.danga.squeezer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Cuts what the CLI sends into lines, straight out of one reusable read
+ * buffer: "\n" or "\r\n" ends a line, which is decoded into a reusable
+ * char buffer and handed to the Listener.
+ *
+ * A line still arriving once it's streamThreshold bytes long is offered
+ * to the Listener as it stands.  If a request wants that reply a record at
+ * a time, the rest of the line is fed to it as it comes, a token boundary
+ * at a time, and never held whole.  Otherwise the line is held until it
+ * ends, growing the buffers as needed, but only up to maxLineBytes: past
+ * that its start is handed to Listener.onLineTooLong() and the rest is
+ * skipped.  A streamed reply with a single token that long is failed.
+ * Buffers grown for a long line go back to bufferSize once it's done.
+ *
+ * Nothing here needs Android, so tools/ runs the same framing as
+ * SqueezeService's ListeningThread.  Not thread-safe; lives on the thread
+ * calling run().
+ */
+final class CliLineReader {
+    interface Listener {
+        // chars[offset, offset+length) is one line, without the newline.
+        void onLine(char[] chars, int offset, int length);
+
+        // chars[offset, offset+length) is the start of a line still
+        // arriving, up to a token boundary.  Returns where to feed all of
+        // the line if it's to be streamed, else null to wait for its end.
+        CliRecordSplitter onPartialLine(char[] chars, int offset, int length);
+
+        // chars[offset, offset+length) is the start of a line that grew
+        // past maxLineBytes, up to a token boundary.  The rest of the line
+        // is dropped.
+        void onLineTooLong(char[] chars, int offset, int length);
+    }
+
+    private final ReadableByteChannel channel;
+    private final int bufferSize;
+    private final int streamThreshold;
+    private final int maxLineBytes;
+    private final Listener listener;
+
+    private ByteBuffer buffer;
+    private CharBuffer lineChars;
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Where the rest of the line being streamed goes, if one is.
+    private CliRecordSplitter streamedReply;
+    // Whether the partial line in the buffer was already found not to
+    // be worth streaming.
+    private boolean partialLineChecked;
+    // Whether the rest of the current line is being dropped.
+    private boolean skippingLine;
+
+    CliLineReader(ReadableByteChannel channel, int bufferSize, int streamThreshold,
+            int maxLineBytes, Listener listener) {
+        this.channel = channel;
+        this.bufferSize = bufferSize;
+        this.streamThreshold = streamThreshold;
+        this.maxLineBytes = maxLineBytes;
+        this.listener = listener;
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        lineChars = CharBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Reads and hands on lines until the channel ends, then returns, or
+     * fails, then throws.  Either way a reply still being streamed is
+     * failed first.
+     */
+    void run() throws IOException {
+        try {
+            // Bytes before scanStart in the buffer are known not to
+            // contain a newline.
+            int scanStart = 0;
+            while (channel.read(buffer) != -1) {
+                scanStart = handleBuffer(scanStart);
+            }
+        } finally {
+            if (streamedReply != null) {
+                streamedReply.fail();
+                streamedReply = null;
+            }
+        }
+    }
+
+    // How big the read buffer is now.
+    int bufferCapacity() {
+        return buffer.capacity();
+    }
+
+    // Hands on each complete line in the buffer, and keeps the partial
+    // one for next time.  Returns the new scanStart.
+    private int handleBuffer(int scanStart) {
+        buffer.flip();
+        int lineStart = 0;
+        int limit = buffer.limit();
+        for (int i = scanStart; i < limit; i++) {
+            if (buffer.get(i) != '\n') continue;
+            int lineEnd = i;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') lineEnd--;
+            if (skippingLine) {
+                skippingLine = false;  // the end of a line too long to keep
+            } else {
+                // Decoding may replace lineChars, so before taking its array.
+                int length = decode(lineStart, lineEnd);
+                if (streamedReply != null) {
+                    // The end of the reply we've been streaming.
+                    streamedReply.feed(lineChars.array(), 0, length);
+                    streamedReply.finish();
+                    streamedReply = null;
+                } else {
+                    listener.onLine(lineChars.array(), 0, length);
+                }
+            }
+            partialLineChecked = false;
+            lineStart = i + 1;
+        }
+        if (skippingLine) {
+            lineStart = limit;
+        } else {
+            if (limit - lineStart >= streamThreshold) {
+                lineStart = streamPartialLine(lineStart, limit);
+            }
+            if (limit - lineStart >= maxLineBytes) {
+                lineStart = dropLongLine(lineStart, limit);
+            }
+        }
+
+        buffer.limit(limit);
+        buffer.position(lineStart);
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            // One line (or token, if streaming) bigger than the whole
+            // buffer.  Grow it.
+            ByteBuffer bigger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        } else if (buffer.capacity() > bufferSize && buffer.position() <= bufferSize / 2) {
+            // The long line is done with; don't keep its buffers around.
+            ByteBuffer smaller = ByteBuffer.allocateDirect(bufferSize);
+            buffer.flip();
+            smaller.put(buffer);
+            buffer = smaller;
+            lineChars = CharBuffer.allocate(bufferSize);
+        }
+        return buffer.position();
+    }
+
+    /**
+     * The line at buffer[start, limit) is too long to hold.  Fails the
+     * reply being streamed (stuck on one huge token), or else tells the
+     * Listener.  Either way the rest of the line is skipped.  Returns
+     * limit.
+     */
+    private int dropLongLine(int start, int limit) {
+        if (streamedReply != null) {
+            streamedReply.fail();
+            streamedReply = null;
+        } else {
+            int end = limit;
+            while (end > start && buffer.get(end - 1) != ' ') end--;
+            int length = end > start ? decode(start, end - 1) : 0;
+            listener.onLineTooLong(lineChars.array(), 0, length);
+        }
+        partialLineChecked = false;
+        skippingLine = true;
+        return limit;
+    }
+
+    /**
+     * Hands the complete tokens of the partial line at buffer[start,
+     * limit) to the reply being streamed, starting to stream it if
+     * its request wants records as they come.  Returns where the
+     * unconsumed rest starts.
+     */
+    private int streamPartialLine(int start, int limit) {
+        if (streamedReply == null && partialLineChecked) return start;
+        // Tokens are URL-encoded, so a space always ends one and never
+        // falls inside a multi-byte character.
+        int end = limit;
+        while (end > start && buffer.get(end - 1) != ' ') end--;
+        if (end == start) return start;  // one long token so far
+        int length = decode(start, end - 1);
+        if (streamedReply == null) {
+            streamedReply = listener.onPartialLine(lineChars.array(), 0, length);
+            if (streamedReply == null) {
+                partialLineChecked = true;  // wait for the whole line
+                return start;
+            }
+        }
+        streamedReply.feed(lineChars.array(), 0, length);
+        return end;
+    }
+
+    // Decodes buffer[start, end) into lineChars, and returns the length.
+    private int decode(int start, int end) {
+        int limit = buffer.limit();
+        if (lineChars.capacity() < end - start) {
+            lineChars = CharBuffer.allocate(buffer.capacity());
+        }
+        lineChars.clear();
+        buffer.limit(end);
+        buffer.position(start);
+        decoder.reset();
+        decoder.decode(buffer, lineChars, true);
+        decoder.flush(lineChars);
+        buffer.limit(limit);
+        return lineChars.position();
+    }
+}
@@ -0,0 +1,395 @@
+package com.danga.squeezer;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/**
+ * Walks one line from the SqueezeCenter CLI a space-separated token at a
+ * time, in place, without creating a String per token.
+ *
+ * Tokens are URL-encoded by the server ("mixer%20volume%3A25"), so a token
+ * is split into key and value at the first encoded colon and each half is
+ * only percent-decoded (into a recycled char buffer) when somebody asks
+ * about it.  Comparisons and integer parsing work directly on those
+ * buffers; only key(), value() and token() allocate.
+ *
+ * Not thread-safe.  The service keeps one per ListeningThread.
+ */
+public final class CliLineTokenizer {
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    // The old split(" ") + URLDecoder path, kept around so the two can be
+    // compared on a device.
+    private final boolean legacySplit;
+
+    // Raw (still encoded) line:
+    private char[] line = new char[INITIAL_BUFFER_SIZE];
+    private int lineLength;
+    private String lineString;  // only if reset() was given a String
+
+    // Current token, as offsets into line:
+    private int index;       // 0-based, counting empty tokens like split(" ") does
+    private int nextStart;   // where the token after this one starts
+    private int tokenStart;
+    private int tokenEnd;
+    private int colonPos;    // offset of "%3A" in line, or -1
+
+    // Lazily decoded halves of the current token:
+    private char[] key = new char[32];
+    private int keyLength = -1;    // -1 means not decoded yet
+    private char[] value = new char[INITIAL_BUFFER_SIZE];
+    private int valueLength = -1;
+
+    // Legacy state:
+    private String[] legacyTokens;
+    private String legacyKey;
+    private String legacyValue;
+
+    public CliLineTokenizer() {
+        this(false);
+    }
+
+    public CliLineTokenizer(boolean legacySplit) {
+        this.legacySplit = legacySplit;
+    }
+
+    public void reset(String serverLine) {
+        lineString = serverLine;
+        lineLength = serverLine.length();
+        ensureLineCapacity(lineLength);
+        serverLine.getChars(0, lineLength, line, 0);
+        if (legacySplit) {
+            legacyTokens = serverLine.split(" ");
+        }
+        rewind();
+    }
+
+    public void reset(char[] buffer, int offset, int length) {
+        lineString = null;
+        lineLength = length;
+        ensureLineCapacity(length);
+        System.arraycopy(buffer, offset, line, 0, length);
+        if (legacySplit) {
+            legacyTokens = new String(line, 0, length).split(" ");
+        }
+        rewind();
+    }
+
+    // Start over at the first token of the current line.
+    public void rewind() {
+        index = -1;
+        nextStart = 0;
+        tokenStart = tokenEnd = 0;
+        colonPos = -1;
+        keyLength = valueLength = -1;
+        legacyKey = legacyValue = null;
+    }
+
+    /**
+     * Advances to the next non-empty token.  Returns false at the end of
+     * the line.
+     */
+    public boolean next() {
+        if (legacySplit) {
+            while (++index < legacyTokens.length) {
+                if (legacyTokens[index].length() == 0) continue;
+                String token = legacyTokens[index];
+                int colon = token.indexOf("%3A");
+                colonPos = colon;
+                legacyKey = colon == -1 ? null : decode(token.substring(0, colon));
+                legacyValue = colon == -1 ? null : decode(token.substring(colon + 3));
+                return true;
+            }
+            return false;
+        }
+        while (nextStart <= lineLength) {
+            index++;
+            int start = nextStart;
+            int end = start;
+            while (end < lineLength && line[end] != ' ') end++;
+            nextStart = end + 1;
+            if (end == start) continue;  // empty token, e.g. double space
+            tokenStart = start;
+            tokenEnd = end;
+            colonPos = indexOfEncodedColon(start, end);
+            keyLength = valueLength = -1;
+            return true;
+        }
+        return false;
+    }
+
+    // Index of the current token, counting empty tokens.
+    public int index() {
+        return index;
+    }
+
+    // Whether the current token is of the form "key%3Avalue".
+    public boolean hasKey() {
+        return colonPos != -1;
+    }
+
+    public boolean keyEquals(String expected) {
+        if (legacySplit) return legacyKey != null && legacyKey.equals(expected);
+        if (colonPos == -1) return false;
+        decodeKey();
+        return bufferEquals(key, keyLength, expected);
+    }
+
+    public boolean valueEquals(String expected) {
+        if (expected == null) return false;
+        if (legacySplit) return legacyValue != null && legacyValue.equals(expected);
+        if (colonPos == -1) return false;
+        decodeValue();
+        return bufferEquals(value, valueLength, expected);
+    }
+
+    // Compares the whole decoded token, ignoring any key/value split.
+    public boolean tokenEquals(String expected) {
+        if (expected == null) return false;
+        if (legacySplit) return decode(legacyTokens[index]).equals(expected);
+        int length = percentDecode(line, tokenStart, tokenEnd, ensureValueCapacity(tokenEnd - tokenStart));
+        valueLength = -1;  // value buffer clobbered
+        return bufferEquals(value, length, expected);
+    }
+
+    // Whether the raw, still-encoded line starts with prefix.
+    public boolean lineStartsWith(String prefix) {
+        if (legacySplit) return lineString != null
+                ? lineString.startsWith(prefix)
+                : new String(line, 0, lineLength).startsWith(prefix);
+        int length = prefix.length();
+        if (length > lineLength) return false;
+        for (int i = 0; i < length; i++) {
+            if (line[i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Same as Util.parseDecimalIntOrZero(value()), without the Strings.
+    public int valueAsDecimalIntOrZero() {
+        if (legacySplit) return legacyValue == null ? 0 : Util.parseDecimalIntOrZero(legacyValue);
+        if (colonPos == -1) return 0;
+        decodeValue();
+        return parseDecimalIntOrZero(value, valueLength);
+    }
+
+    // A value in (possibly fractional) seconds, e.g. "time%3A99.803", as
+    // milliseconds.  0 on garbage.
+    public int valueAsMillisOrZero() {
+        if (legacySplit) {
+            if (legacyValue == null) return 0;
+            try {
+                return (int) (Double.parseDouble(legacyValue) * 1000);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        if (colonPos == -1) return 0;
+        decodeValue();
+        int length = valueLength;
+        int dot = 0;
+        while (dot < length && value[dot] != '.') dot++;
+        long millis = parseDecimalIntOrZero(value, dot) * 1000L;
+        int scale = 100;
+        for (int i = dot + 1; i < length && scale > 0; i++, scale /= 10) {
+            char c = value[i];
+            if (c < '0' || c > '9') break;
+            millis += (c - '0') * scale;
+        }
+        return millis > Integer.MAX_VALUE || millis < Integer.MIN_VALUE ? 0 : (int) millis;
+    }
+
+    // Whole token parsed as a decimal int, for unkeyed tokens like "pref httpport 9000".
+    public int tokenAsDecimalIntOrZero() {
+        if (legacySplit) return Util.parseDecimalIntOrZero(decode(legacyTokens[index]));
+        int length = percentDecode(line, tokenStart, tokenEnd, ensureValueCapacity(tokenEnd - tokenStart));
+        valueLength = -1;
+        return parseDecimalIntOrZero(value, length);
+    }
+
+    // Allocating accessors:
+
+    public String key() {
+        if (legacySplit) return legacyKey;
+        if (colonPos == -1) return null;
+        decodeKey();
+        return new String(key, 0, keyLength);
+    }
+
+    public String value() {
+        if (legacySplit) return legacyValue;
+        if (colonPos == -1) return null;
+        decodeValue();
+        return new String(value, 0, valueLength);
+    }
+
+    public String token() {
+        if (legacySplit) return decode(legacyTokens[index]);
+        int length = percentDecode(line, tokenStart, tokenEnd, ensureValueCapacity(tokenEnd - tokenStart));
+        valueLength = -1;
+        return new String(value, 0, length);
+    }
+
+    // The raw, still-encoded line is rawLine()[0, rawLength()).  Valid
+    // until the next reset().
+    char[] rawLine() {
+        return line;
+    }
+
+    int rawLength() {
+        return lineLength;
+    }
+
+    public String line() {
+        if (lineString == null) lineString = new String(line, 0, lineLength);
+        return lineString;
+    }
+
+    private void decodeKey() {
+        if (keyLength != -1) return;
+        int needed = colonPos - tokenStart;
+        if (key.length < needed) key = new char[needed * 2];
+        keyLength = percentDecode(line, tokenStart, colonPos, key);
+    }
+
+    private void decodeValue() {
+        if (valueLength != -1) return;
+        valueLength = percentDecode(line, colonPos + 3, tokenEnd,
+                ensureValueCapacity(tokenEnd - colonPos - 3));
+    }
+
+    private char[] ensureValueCapacity(int needed) {
+        if (value.length < needed) value = new char[needed * 2];
+        return value;
+    }
+
+    private void ensureLineCapacity(int needed) {
+        if (line.length < needed) line = new char[needed * 2];
+    }
+
+    private int indexOfEncodedColon(int start, int end) {
+        for (int i = start; i + 2 < end; i++) {
+            if (line[i] == '%' && line[i + 1] == '3' && line[i + 2] == 'A') return i;
+        }
+        return -1;
+    }
+
+    private static boolean bufferEquals(char[] buffer, int length, String expected) {
+        if (expected.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] != expected.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Mirrors Util.parseDecimalIntOrZero: ignores anything after a '.', and
+    // returns 0 on garbage.
+    static int parseDecimalIntOrZero(char[] buffer, int length) {
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (buffer[0] == '-' || buffer[0] == '+')) {
+            negative = buffer[0] == '-';
+            i++;
+        }
+        if (i == length || buffer[i] == '.') return 0;
+        long result = 0;
+        for (; i < length; i++) {
+            char c = buffer[i];
+            if (c == '.') break;
+            if (c < '0' || c > '9') return 0;
+            result = result * 10 + (c - '0');
+            if (result > Integer.MAX_VALUE + 1L) return 0;
+        }
+        if (negative) result = -result;
+        if (result > Integer.MAX_VALUE || result < Integer.MIN_VALUE) return 0;
+        return (int) result;
+    }
+
+    /**
+     * Percent-decodes src[start, end) into dest as UTF-8, the way
+     * URLDecoder.decode(s, "UTF-8") would, and returns the decoded length.
+     * dest must hold at least end - start chars.
+     */
+    static int percentDecode(char[] src, int start, int end, char[] dest) {
+        int out = 0;
+        int i = start;
+        while (i < end) {
+            char c = src[i];
+            if (c == '+') {
+                dest[out++] = ' ';
+                i++;
+                continue;
+            }
+            if (c != '%') {
+                dest[out++] = c;
+                i++;
+                continue;
+            }
+            int b = hexByte(src, i, end);
+            if (b < 0) {
+                dest[out++] = c;  // stray '%'; keep it rather than throw
+                i++;
+                continue;
+            }
+            i += 3;
+            if (b < 0x80) {
+                dest[out++] = (char) b;
+                continue;
+            }
+            int extra;
+            int codePoint;
+            if ((b & 0xE0) == 0xC0) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                dest[out++] = '\uFFFD';
+                continue;
+            }
+            boolean malformed = false;
+            for (int n = 0; n < extra; n++) {
+                int cont = hexByte(src, i, end);
+                if (cont < 0 || (cont & 0xC0) != 0x80) {
+                    malformed = true;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (cont & 0x3F);
+                i += 3;
+            }
+            if (malformed) {
+                dest[out++] = '\uFFFD';
+            } else if (codePoint >= 0x10000) {
+                codePoint -= 0x10000;
+                dest[out++] = (char) (0xD800 + (codePoint >> 10));
+                dest[out++] = (char) (0xDC00 + (codePoint & 0x3FF));
+            } else {
+                dest[out++] = (char) codePoint;
+            }
+        }
+        return out;
+    }
+
+    // The byte value of "%XX" at src[pos], or -1.
+    private static int hexByte(char[] src, int pos, int end) {
+        if (pos + 2 >= end || src[pos] != '%') return -1;
+        int hi = Character.digit(src[pos + 1], 16);
+        int lo = Character.digit(src[pos + 2], 16);
+        if (hi < 0 || lo < 0) return -1;
+        return (hi << 4) | lo;
+    }
+
+    private static String decode(String substring) {
+        try {
+            return URLDecoder.decode(substring, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return "";
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.danga.squeezer;
+
+/**
+ * Cuts a CLI reply into the header and records a RecordHandler wants,
+ * as the reply is fed in.  Only the header or record being built is
+ * held, so memory use doesn't grow with the length of the reply.
+ *
+ * Not thread-safe; lives on the ListeningThread.
+ */
+final class CliRecordSplitter {
+    private final CommandPipeline.RecordHandler handler;
+    // The record key as it appears on the wire, e.g. "id%3A".
+    private final String recordPrefix;
+    private final CliLineTokenizer tokens = new CliLineTokenizer();
+
+    // Raw tokens of the header or record being built, space separated.
+    private char[] pending = new char[256];
+    private int pendingLength;
+    private boolean inRecords;
+
+    CliRecordSplitter(CommandPipeline.RecordHandler handler) {
+        this.handler = handler;
+        this.recordPrefix = handler.recordKey() + "%3A";
+    }
+
+    /**
+     * Feeds chars[start, end) of the raw line.  Must start and end on
+     * token boundaries: a space, or the start or end of the line.
+     */
+    void feed(char[] chars, int start, int end) {
+        int tokenStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i < end && chars[i] != ' ') continue;
+            if (i > tokenStart) token(chars, tokenStart, i);
+            tokenStart = i + 1;
+        }
+    }
+
+    // The line is complete.
+    void finish() {
+        flush();
+        handler.onEnd();
+    }
+
+    // The line will never be complete (disconnected).
+    void fail() {
+        handler.onFailure();
+    }
+
+    private void token(char[] chars, int start, int end) {
+        if (startsWithRecordPrefix(chars, start, end)) flush();
+        int needed = pendingLength + 1 + end - start;
+        if (pending.length < needed) {
+            char[] bigger = new char[needed * 2];
+            System.arraycopy(pending, 0, bigger, 0, pendingLength);
+            pending = bigger;
+        }
+        if (pendingLength > 0) pending[pendingLength++] = ' ';
+        System.arraycopy(chars, start, pending, pendingLength, end - start);
+        pendingLength += end - start;
+    }
+
+    // Hands over the header or record built so far.
+    private void flush() {
+        tokens.reset(pending, 0, pendingLength);
+        if (inRecords) {
+            handler.onRecord(tokens);
+        } else {
+            handler.onHeader(tokens);
+        }
+        inRecords = true;
+        pendingLength = 0;
+    }
+
+    private boolean startsWithRecordPrefix(char[] chars, int start, int end) {
+        int length = recordPrefix.length();
+        if (end - start < length) return false;
+        for (int i = 0; i < length; i++) {
+            if (chars[start + i] != recordPrefix.charAt(i)) return false;
+        }
+        return true;
+    }
+}
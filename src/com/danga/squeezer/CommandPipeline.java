@@ -0,0 +1,246 @@
+package com.danga.squeezer;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Matches lines from the CLI to the outstanding requests that caused them,
+ * so any number of requests can be in flight on the one socket.
+ *
+ * The CLI answers a command by echoing it back with the answers filled in
+ * ("pref httpport ?" comes back as "pref httpport 9000", "players 0 100"
+ * as "players 0 100 count%3A2 ..."), so a request is identified by its
+ * tokens up to the first "?".  The server answers in order, so among
+ * identical outstanding requests the oldest one wins.
+ *
+ * Replies that are lists of records ("titles 0 5000 ..." runs to
+ * megabytes on one line) can be taken a record at a time by a
+ * RecordHandler, as they arrive; see dispatchPartial().
+ *
+ * This only correlates; the caller still writes the command itself, after
+ * calling expect().
+ */
+class CommandPipeline {
+    private static final String TAG = "CommandPipeline";
+
+    interface ResponseHandler {
+        // Called on the ListeningThread with the tokenizer rewound to the
+        // start of the reply line.  Keep it quick.
+        void onResponse(CliLineTokenizer tokens);
+
+        // No reply: timed out, cancelled or the connection went away.
+        void onFailure();
+    }
+
+    /**
+     * For replies that are a header followed by records, each starting
+     * with the same key ("id%3A12 title%3AFoo id%3A13 ..."): gets them a
+     * record at a time, without the whole line ever being held.
+     * Everything is called on the ListeningThread, in order.  onFailure()
+     * can come after some records were delivered.
+     */
+    abstract static class RecordHandler implements ResponseHandler {
+        private final String recordKey;
+
+        RecordHandler(String recordKey) {
+            this.recordKey = recordKey;
+        }
+
+        String recordKey() {
+            return recordKey;
+        }
+
+        // The tokens before the first record: the echoed command, "count", ...
+        abstract void onHeader(CliLineTokenizer tokens);
+
+        // One record, from its recordKey token up to the next one's.  Any
+        // tokens after the last record end up in the last record.
+        abstract void onRecord(CliLineTokenizer tokens);
+
+        // After the last record.
+        abstract void onEnd();
+
+        // The reply was short enough to arrive as a whole line.
+        public final void onResponse(CliLineTokenizer tokens) {
+            CliRecordSplitter splitter = new CliRecordSplitter(this);
+            splitter.feed(tokens.rawLine(), 0, tokens.rawLength());
+            splitter.finish();
+        }
+    }
+
+    class Request {
+        private final String[] expectedTokens;
+        private final ResponseHandler handler;
+        private ScheduledFuture<?> timeout;
+
+        private Request(String[] expectedTokens, ResponseHandler handler) {
+            this.expectedTokens = expectedTokens;
+            this.handler = handler;
+        }
+
+        // Stops waiting for the reply, and fails the request.
+        void cancel() {
+            if (remove(this)) {
+                handler.onFailure();
+            }
+        }
+
+        private boolean matches(CliLineTokenizer tokens) {
+            tokens.rewind();
+            for (String expected : expectedTokens) {
+                if (!tokens.next() || !tokens.tokenEquals(expected)) return false;
+            }
+            return true;
+        }
+    }
+
+    private final ScheduledExecutorService timer;
+
+    // Oldest first.  Guarded by itself.
+    private final LinkedList<Request> outstanding = new LinkedList<Request>();
+
+    CommandPipeline(ScheduledExecutorService timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Registers interest in the reply to command, which the caller must
+     * then send.  handler.onFailure() is called if no reply arrives within
+     * timeoutMillis.
+     */
+    Request expect(String command, ResponseHandler handler, long timeoutMillis) {
+        final Request request = new Request(expectedTokens(command), handler);
+        synchronized (outstanding) {
+            outstanding.add(request);
+        }
+        request.timeout = timer.schedule(new Runnable() {
+            public void run() {
+                if (remove(request)) {
+                    Log.w(TAG, "Timed out waiting for reply to: " + request.expectedTokens[0] + "...");
+                    request.handler.onFailure();
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        return request;
+    }
+
+    /**
+     * Hands the line to the oldest request it answers.  Returns false if
+     * it doesn't answer any, e.g. it's a listen event or subscription push.
+     * Either way the tokenizer is left rewound.
+     */
+    boolean dispatch(CliLineTokenizer tokens) {
+        Request match = removeOldestMatch(tokens);
+        if (match == null) return false;
+        if (match.timeout != null) match.timeout.cancel(false);
+        match.handler.onResponse(tokens);
+        tokens.rewind();
+        return true;
+    }
+
+    /**
+     * Like dispatch(), but for the first tokens of a reply whose end is
+     * still to come.  If it answers a RecordHandler's request, returns the
+     * splitter to feed the whole line to (these tokens included).
+     * Otherwise returns null and nothing changes: wait for the whole line.
+     */
+    CliRecordSplitter dispatchPartial(CliLineTokenizer tokens) {
+        Request match = null;
+        synchronized (outstanding) {
+            for (Iterator<Request> it = outstanding.iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (request.matches(tokens)) {
+                    if (request.handler instanceof RecordHandler) {
+                        it.remove();
+                        match = request;
+                    }
+                    break;
+                }
+            }
+        }
+        tokens.rewind();
+        if (match == null) return null;
+        if (match.timeout != null) match.timeout.cancel(false);
+        return new CliRecordSplitter((RecordHandler) match.handler);
+    }
+
+    /**
+     * For the first tokens of a reply that won't be delivered, e.g. it's
+     * too long to hold: fails the oldest request it answers.  Returns
+     * false if it answers none.  Either way the tokenizer is left rewound.
+     */
+    boolean failPartial(CliLineTokenizer tokens) {
+        Request match = removeOldestMatch(tokens);
+        if (match == null) return false;
+        if (match.timeout != null) match.timeout.cancel(false);
+        match.handler.onFailure();
+        return true;
+    }
+
+    int outstandingCount() {
+        synchronized (outstanding) {
+            return outstanding.size();
+        }
+    }
+
+    // Fails everything outstanding, e.g. because the connection is gone.
+    void failAll() {
+        List<Request> failed;
+        synchronized (outstanding) {
+            failed = new ArrayList<Request>(outstanding);
+            outstanding.clear();
+        }
+        for (Request request : failed) {
+            if (request.timeout != null) request.timeout.cancel(false);
+            request.handler.onFailure();
+        }
+    }
+
+    // Removes and returns the oldest request tokens answer, or null.
+    // Leaves the tokenizer rewound.
+    private Request removeOldestMatch(CliLineTokenizer tokens) {
+        Request match = null;
+        synchronized (outstanding) {
+            for (Iterator<Request> it = outstanding.iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (request.matches(tokens)) {
+                    it.remove();
+                    match = request;
+                    break;
+                }
+            }
+        }
+        tokens.rewind();
+        return match;
+    }
+
+    private boolean remove(Request request) {
+        synchronized (outstanding) {
+            return outstanding.remove(request);
+        }
+    }
+
+    // The decoded tokens the reply to command will start with.
+    private static String[] expectedTokens(String command) {
+        List<String> tokens = new ArrayList<String>();
+        for (String token : command.split(" ")) {
+            if (token.length() == 0) continue;
+            if (token.equals("?")) break;
+            try {
+                tokens.add(URLDecoder.decode(token, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                tokens.add(token);
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+}
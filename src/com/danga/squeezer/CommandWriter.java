@@ -0,0 +1,196 @@
+package com.danga.squeezer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Writes commands to the CLI socket from its own thread, so whoever sends
+ * a command (often a binder thread, e.g. adjustVolumeBy) never blocks on a
+ * stalled TCP send.
+ *
+ * A lone command, e.g. a press of pause, is written at once.  Commands
+ * that come in a burst (several queued together, or one right behind the
+ * last write) wait out a short batch window for the rest of the burst and
+ * go out in one write.  While queued, redundant ones collapse: consecutive "mixer volume" deltas for a player
+ * add up to one net delta, and a status command identical to one already
+ * queued is dropped.  Commands a CommandPipeline request is waiting on
+ * (see enqueueRequest) are never dropped that way.
+ */
+class CommandWriter extends Thread {
+    private static final String TAG = "CommandWriter";
+
+    // How long a burst waits for company, and how soon after a write the
+    // next command counts as part of a burst.
+    static final long BATCH_WINDOW_MILLIS = 20;
+
+    // Beyond this, new commands are dropped rather than queued.
+    private static final int MAX_QUEUED = 256;
+
+    private static final String VOLUME_COMMAND = " mixer volume ";
+
+    private final SocketChannel channel;
+
+    // Guarded by this:
+    private final List<String> queue = new ArrayList<String>();
+    private boolean closed = false;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    CommandWriter(SocketChannel channel) {
+        super("CommandWriter");
+        this.channel = channel;
+    }
+
+    // Never blocks.  Returns false if the commands were dropped.
+    boolean enqueue(String... commands) {
+        return enqueue(commands, true);
+    }
+
+    // For a command whose reply a request is waiting on.  Never folded
+    // into an identical one: the server would only answer once, and the
+    // request would sit there until it timed out.
+    boolean enqueueRequest(String command) {
+        return enqueue(new String[] { command }, false);
+    }
+
+    private synchronized boolean enqueue(String[] commands, boolean mayCoalesce) {
+        if (closed || queue.size() + commands.length > MAX_QUEUED) {
+            dropped.addAndGet(commands.length);
+            return false;
+        }
+        boolean wasEmpty = queue.isEmpty();
+        for (String command : commands) {
+            queued.incrementAndGet();
+            if (!mayCoalesce || !coalesce(command)) queue.add(command);
+        }
+        // Only the first command of a batch wakes the writer; later ones
+        // join it, if it's waiting out the batch window.
+        if (wasEmpty && !queue.isEmpty()) notify();
+        return true;
+    }
+
+    // Commands handed to enqueue(), coalesced into others, and dropped
+    // (queue full, or closed), since this writer started.
+    long queuedCount() {
+        return queued.get();
+    }
+
+    long coalescedCount() {
+        return coalesced.get();
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    synchronized void close() {
+        closed = true;
+        dropped.addAndGet(queue.size());
+        queue.clear();
+        notify();
+    }
+
+    public String toString() {
+        return "queued=" + queued + ", coalesced=" + coalesced + ", dropped=" + dropped;
+    }
+
+    @Override
+    public void run() {
+        StringBuilder batch = new StringBuilder();
+        long lastWriteMillis = 0;
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (queue.isEmpty() && !closed) wait();
+                    if (queue.size() > 1
+                        || System.currentTimeMillis() - lastWriteMillis < BATCH_WINDOW_MILLIS) {
+                        long deadline = System.currentTimeMillis() + BATCH_WINDOW_MILLIS;
+                        long left;
+                        while (!closed && (left = deadline - System.currentTimeMillis()) > 0) {
+                            wait(left);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (closed) {
+                    Log.v(TAG, "Writer done: " + this);
+                    return;
+                }
+                batch.setLength(0);
+                for (String command : queue) {
+                    batch.append(command).append('\n');
+                }
+                queue.clear();
+            }
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes("UTF-8"));
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                lastWriteMillis = System.currentTimeMillis();
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                // The ListeningThread will notice the dead socket and
+                // disconnect; nothing more to send in the meantime.
+                Log.v(TAG, "IOException writing: " + e);
+                close();
+            }
+        }
+    }
+
+    // Folds command into the queue if it's redundant with something
+    // already there.  Must hold the lock.
+    private boolean coalesce(String command) {
+        int volumePos = command.indexOf(VOLUME_COMMAND);
+        if (volumePos != -1) {
+            int delta = parseVolumeDelta(command, volumePos + VOLUME_COMMAND.length());
+            if (delta == Integer.MIN_VALUE) return false;  // absolute volume
+            String prefix = command.substring(0, volumePos + VOLUME_COMMAND.length());
+            // Only merge with the last volume command for this player, so
+            // deltas never jump over an absolute setting.
+            for (int i = queue.size() - 1; i >= 0; i--) {
+                String previous = queue.get(i);
+                if (!previous.startsWith(prefix)) continue;
+                int previousDelta = parseVolumeDelta(previous, prefix.length());
+                if (previousDelta == Integer.MIN_VALUE) return false;
+                int sum = previousDelta + delta;
+                if (sum == 0) {
+                    queue.remove(i);
+                    coalesced.addAndGet(2);
+                } else {
+                    queue.set(i, prefix + (sum > 0 ? "%2B" + sum : String.valueOf(sum)));
+                    coalesced.incrementAndGet();
+                }
+                return true;
+            }
+            return false;
+        }
+        if (command.indexOf(" status ") != -1 && queue.contains(command)) {
+            coalesced.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    // "%2B5" -> 5, "-5" -> -5, anything else (an absolute volume) -> MIN_VALUE.
+    private static int parseVolumeDelta(String command, int start) {
+        String value = command.substring(start);
+        try {
+            if (value.startsWith("%2B")) return Integer.parseInt(value.substring(3));
+            if (value.startsWith("-")) return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+        }
+        return Integer.MIN_VALUE;
+    }
+}
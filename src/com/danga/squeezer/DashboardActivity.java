@@ -0,0 +1,277 @@
+package com.danga.squeezer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.app.ListActivity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * Every player at once: power, what it's doing, what's playing and the
+ * volume, live.  Clicking one makes it the active player.
+ *
+ * Everything comes over the service's one connection: the server's event
+ * stream, plus the service polling the players that are on screen (see
+ * ISqueezeService.watchPlayers).  Updates are applied at most once a
+ * frame, so a burst of them is one redraw, and only if a player on
+ * screen changed; the rest are just remembered for when they scroll in.
+ */
+public class DashboardActivity extends ListActivity {
+    private static final String TAG = "DashboardActivity";
+
+    private static final long FRAME_MILLIS = 16;
+
+    private ISqueezeService serviceStub = null;
+    private final Handler uiThreadHandler = new Handler();
+    private final PlayerAdapter adapter = new PlayerAdapter();
+
+    // Statuses in since the last redraw, by player id.  UI thread only.
+    private final Map<String, PlayerStatus> pendingStatuses = new HashMap<String, PlayerStatus>();
+    private boolean redrawScheduled;
+    // What we last told the service is on screen.
+    private List<String> visiblePlayerIds = new ArrayList<String>();
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            serviceStub = ISqueezeService.Stub.asInterface(service);
+            try {
+                serviceStub.registerCallback(serviceCallback);
+            } catch (RemoteException e) {
+                Log.e(TAG, "error registering callback: " + e);
+            }
+            uiThreadHandler.post(new Runnable() {
+                public void run() {
+                    reloadPlayers();
+                }
+            });
+        }
+        public void onServiceDisconnected(ComponentName name) {
+            serviceStub = null;
+        };
+    };
+
+    static void show(Context context) {
+        context.startActivity(new Intent(context, DashboardActivity.class));
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setListAdapter(adapter);
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            public void onScroll(AbsListView view, int firstVisible, int visibleCount, int total) {
+                updateVisiblePlayers();
+            }
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+        });
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        bindService(new Intent(this, SqueezeService.class),
+                    serviceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (serviceStub != null) {
+            try {
+                serviceStub.watchPlayers(serviceCallback, null);
+                serviceStub.unregisterCallback(serviceCallback);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Service exception in onPause(): " + e);
+            }
+        }
+        // Nothing to draw until we're back; onResume() reloads everything.
+        uiThreadHandler.removeCallbacks(redraw);
+        redrawScheduled = false;
+        pendingStatuses.clear();
+        visiblePlayerIds = new ArrayList<String>();
+        unbindService(serviceConnection);
+    }
+
+    @Override
+    protected void onListItemClick(ListView l, View v, int position, long id) {
+        if (serviceStub == null) return;
+        try {
+            serviceStub.setActivePlayer(adapter.statuses.get(position).getPlayerId());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error setting active player: " + e);
+        }
+        finish();
+    }
+
+    private void reloadPlayers() {
+        if (serviceStub == null) return;
+        try {
+            adapter.setStatuses(serviceStub.getPlayerStatuses());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Service exception in getPlayerStatuses(): " + e);
+            return;
+        }
+        visiblePlayerIds = new ArrayList<String>();  // force an update
+        updateVisiblePlayers();
+    }
+
+    // Tells the service which players are on screen, if that changed.
+    private void updateVisiblePlayers() {
+        if (serviceStub == null) return;
+        ListView list = getListView();
+        List<String> visible = new ArrayList<String>();
+        int last = Math.min(list.getLastVisiblePosition(), adapter.getCount() - 1);
+        for (int i = Math.max(list.getFirstVisiblePosition(), 0); i <= last; i++) {
+            visible.add(adapter.statuses.get(i).getPlayerId());
+        }
+        if (visible.equals(visiblePlayerIds) && !visible.isEmpty()) return;
+        visiblePlayerIds = visible;
+        try {
+            serviceStub.watchPlayers(serviceCallback, visible);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Service exception in watchPlayers(): " + e);
+        }
+    }
+
+    // Applies the statuses that came in since the last frame.
+    private final Runnable redraw = new Runnable() {
+        public void run() {
+            redrawScheduled = false;
+            boolean visibleChanged = false;
+            for (PlayerStatus status : pendingStatuses.values()) {
+                if (adapter.update(status)) {
+                    visibleChanged |= visiblePlayerIds.contains(status.getPlayerId());
+                }
+            }
+            pendingStatuses.clear();
+            if (visibleChanged) adapter.notifyDataSetChanged();
+        }
+    };
+
+    private void onStatuses(List<PlayerStatus> statuses) {
+        for (PlayerStatus status : statuses) {
+            pendingStatuses.put(status.getPlayerId(), status);
+        }
+        if (!redrawScheduled) {
+            redrawScheduled = true;
+            uiThreadHandler.postDelayed(redraw, FRAME_MILLIS);
+        }
+    }
+
+    private class PlayerAdapter extends BaseAdapter {
+        List<PlayerStatus> statuses = new ArrayList<PlayerStatus>();
+        private final Map<String, Integer> positions = new HashMap<String, Integer>();
+
+        public int getCount() {
+            return statuses.size();
+        }
+
+        public Object getItem(int position) {
+            return statuses.get(position);
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View row = convertView;
+            if (row == null) {
+                row = getLayoutInflater().inflate(R.layout.dashboard_item, parent, false);
+            }
+            PlayerStatus status = statuses.get(position);
+            ((TextView) row.findViewById(R.id.player_name)).setText(status.getPlayerName());
+            ((TextView) row.findViewById(R.id.player_status)).setText(
+                    !status.isPoweredOn() ? R.string.dashboard_off
+                    : status.isPlaying() ? R.string.dashboard_playing
+                    : R.string.dashboard_not_playing);
+            ((TextView) row.findViewById(R.id.player_song)).setText(describeSong(status));
+            ((TextView) row.findViewById(R.id.player_volume)).setText(
+                    status.getVolume() < 0 ? ""
+                    : getString(R.string.dashboard_volume, status.getVolume()));
+            return row;
+        }
+
+        void setStatuses(List<PlayerStatus> newStatuses) {
+            statuses = newStatuses;
+            positions.clear();
+            for (int i = 0; i < statuses.size(); i++) {
+                positions.put(statuses.get(i).getPlayerId(), i);
+            }
+            notifyDataSetChanged();
+        }
+
+        // Returns false for players we don't list.
+        boolean update(PlayerStatus status) {
+            Integer position = positions.get(status.getPlayerId());
+            if (position == null) return false;
+            statuses.set(position, status);
+            return true;
+        }
+    }
+
+    private static String describeSong(PlayerStatus status) {
+        String song = status.getSong();
+        String artist = status.getArtist();
+        if (song == null || song.length() == 0) return "";
+        if (artist == null || artist.length() == 0) return song;
+        return song + " - " + artist;
+    }
+
+    private final IServiceCallback serviceCallback = new IServiceCallback.Stub() {
+        public void onPlayerStatusesChanged(final List<PlayerStatus> statuses) throws RemoteException {
+            uiThreadHandler.post(new Runnable() {
+                public void run() {
+                    onStatuses(statuses);
+                }
+            });
+        }
+
+        public void onPlayersDiscovered() throws RemoteException {
+            uiThreadHandler.post(new Runnable() {
+                public void run() {
+                    reloadPlayers();
+                }
+            });
+        }
+
+        public void onConnectionChanged(boolean isConnected, boolean postConnect)
+                throws RemoteException {
+            if (!isConnected) {
+                uiThreadHandler.post(new Runnable() {
+                    public void run() {
+                        adapter.setStatuses(new ArrayList<PlayerStatus>());
+                    }
+                });
+            }
+        }
+
+        public void onMusicChanged(PlayerStatus status) throws RemoteException {
+        }
+        public void onPlayerChanged(String playerId, String playerName) throws RemoteException {
+        }
+        public void onPlayStatusChanged(boolean isPlaying) throws RemoteException {
+        }
+        public void onVolumeChange(int newVolume) throws RemoteException {
+        }
+        public void onTimeInSongChange(int secondsIn, int secondsTotal) throws RemoteException {
+        }
+    };
+}
@@ -0,0 +1,297 @@
+package com.danga.squeezer;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.app.ListActivity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Browses the server's music library: one screen per list (all artists,
+ * one artist's albums, one album's songs, ...), drilling down on click.
+ *
+ * Lists are fetched from the service a page at a time as they scroll into
+ * view, with the next page requested once the user is halfway through the
+ * current one, so even a 60k-song library is never asked for all at once.
+ * A page shows as its first items arrive, not once it's all in.  Pages
+ * still coming when the screen is left are cancelled.
+ */
+public class LibraryActivity extends ListActivity {
+    private static final String TAG = "LibraryActivity";
+
+    private static final String EXTRA_CATEGORY = "category";
+    private static final String EXTRA_FILTER = "filter";
+    private static final String EXTRA_TITLE = "title";
+
+    private static final int PAGE_SIZE = 100;
+
+    // The top level, shown when there's no category yet.
+    private static final String[] CATEGORIES = { "artists", "albums", "genres", "titles" };
+    private static final String[] CATEGORY_LABELS = { "Artists", "Albums", "Genres", "Songs" };
+
+    private ISqueezeService serviceStub = null;
+    private final Handler uiThreadHandler = new Handler();
+
+    private String category;  // null at the top level
+    private String filter;
+    private PagedAdapter adapter;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            serviceStub = ISqueezeService.Stub.asInterface(service);
+            uiThreadHandler.post(new Runnable() {
+                public void run() {
+                    if (adapter != null) adapter.requestVisiblePages();
+                }
+            });
+        }
+        public void onServiceDisconnected(ComponentName name) {
+            serviceStub = null;
+        };
+    };
+
+    static void show(Context context) {
+        context.startActivity(new Intent(context, LibraryActivity.class));
+    }
+
+    static void show(Context context, String category, String filter, String title) {
+        final Intent intent = new Intent(context, LibraryActivity.class);
+        intent.putExtra(EXTRA_CATEGORY, category);
+        intent.putExtra(EXTRA_FILTER, filter);
+        intent.putExtra(EXTRA_TITLE, title);
+        context.startActivity(intent);
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Intent intent = getIntent();
+        category = intent.getStringExtra(EXTRA_CATEGORY);
+        filter = intent.getStringExtra(EXTRA_FILTER);
+        if (filter == null) filter = "";
+        String title = intent.getStringExtra(EXTRA_TITLE);
+        if (title != null) setTitle(title);
+
+        if (category == null) {
+            setListAdapter(new ArrayAdapter<String>(this,
+                    android.R.layout.simple_list_item_1, CATEGORY_LABELS));
+        } else {
+            adapter = new PagedAdapter();
+            setListAdapter(adapter);
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        bindService(new Intent(this, SqueezeService.class),
+                    serviceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (serviceStub != null && adapter != null) {
+            try {
+                serviceStub.cancelBrowse(libraryCallback);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Service exception in cancelBrowse(): " + e);
+            }
+        }
+        if (adapter != null) adapter.forgetPending();
+        unbindService(serviceConnection);
+    }
+
+    @Override
+    protected void onListItemClick(ListView l, View v, int position, long id) {
+        if (category == null) {
+            show(this, CATEGORIES[position], "", CATEGORY_LABELS[position]);
+            return;
+        }
+        String itemId = adapter.getItemServerId(position);
+        if (itemId == null) {
+            return;  // not loaded yet
+        }
+        String name = (String) adapter.getItem(position);
+        if (category.equals("artists")) {
+            show(this, "albums", "artist_id:" + itemId, name);
+        } else if (category.equals("genres")) {
+            show(this, "artists", "genre_id:" + itemId, name);
+        } else if (category.equals("albums")) {
+            show(this, "titles", "album_id:" + itemId, name);
+        } else if (category.equals("titles")) {
+            playItem("track_id:" + itemId, name);
+        }
+    }
+
+    private void playItem(String itemFilter, String name) {
+        if (serviceStub == null) {
+            return;
+        }
+        try {
+            if (serviceStub.playLibraryItem(itemFilter)) {
+                Toast.makeText(this, "Playing " + name, Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(this, "No player selected.", Toast.LENGTH_SHORT).show();
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Service exception in playLibraryItem(): " + e);
+        }
+    }
+
+    // Sparse view of the server's list: pages are filled in as they
+    // arrive, in any order.
+    private class PagedAdapter extends BaseAdapter {
+        private int total = -1;  // unknown until a page says
+        // Until then, the list runs as far as the items we have.
+        private int provisionalTotal;
+        private String[] ids = new String[0];
+        private String[] names = new String[0];
+        private boolean[] loadedPages = new boolean[0];
+        private final Set<Integer> pendingPages = new HashSet<Integer>();
+
+        public int getCount() {
+            return total < 0 ? provisionalTotal : total;
+        }
+
+        public Object getItem(int position) {
+            return names[position];
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        String getItemServerId(int position) {
+            return ids[position];
+        }
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView row = (TextView) convertView;
+            if (row == null) {
+                row = (TextView) getLayoutInflater().inflate(
+                        android.R.layout.simple_list_item_1, parent, false);
+            }
+            String name = names[position];
+            row.setText(name != null ? name : "Loading...");
+
+            int page = position / PAGE_SIZE;
+            requestPage(page);
+            if (position % PAGE_SIZE >= PAGE_SIZE / 2) {
+                requestPage(page + 1);  // read ahead
+            }
+            return row;
+        }
+
+        void requestVisiblePages() {
+            if (total < 0) {
+                requestPage(0);
+            } else {
+                // Re-requests anything cancelled when we were paused.
+                notifyDataSetChanged();
+            }
+        }
+
+        void forgetPending() {
+            pendingPages.clear();
+        }
+
+        private void requestPage(int page) {
+            if (serviceStub == null || pendingPages.contains(page)) return;
+            if (total >= 0 && page * PAGE_SIZE >= total) return;
+            if (page < loadedPages.length && loadedPages[page]) return;
+            try {
+                if (serviceStub.browseLibrary(category, filter, page * PAGE_SIZE, PAGE_SIZE,
+                                              libraryCallback)) {
+                    pendingPages.add(page);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "Service exception in browseLibrary(): " + e);
+            }
+        }
+
+        // A page can come in several pieces, in order, the first ones
+        // perhaps with newTotal -1 (not known yet).
+        void onItemsReceived(int start, int newTotal, List<String> newIds, List<String> newNames) {
+            int page = start / PAGE_SIZE;
+            int end = start + newIds.size();
+            if (newTotal >= 0 && newTotal != total) {
+                if (total >= 0) {
+                    // The library changed under us: start over.
+                    resize(0);
+                }
+                total = newTotal;
+                resize(total);
+            } else if (total < 0 && end > ids.length) {
+                resize(Math.max(end, ids.length * 2));
+            }
+            if (total < 0) provisionalTotal = Math.max(provisionalTotal, end);
+            for (int i = 0; i < newIds.size() && start + i < ids.length; i++) {
+                ids[start + i] = newIds.get(i);
+                names[start + i] = newNames.get(i);
+            }
+            if (end >= (page + 1) * PAGE_SIZE || (total >= 0 && end >= total)) {
+                pendingPages.remove(page);
+                if (page < loadedPages.length) loadedPages[page] = true;
+            }
+            notifyDataSetChanged();
+        }
+
+        // Makes room for size items, keeping what's loaded below that.
+        private void resize(int size) {
+            String[] newIds = new String[size];
+            String[] newNames = new String[size];
+            boolean[] newLoadedPages = new boolean[(size + PAGE_SIZE - 1) / PAGE_SIZE];
+            System.arraycopy(ids, 0, newIds, 0, Math.min(size, ids.length));
+            System.arraycopy(names, 0, newNames, 0, Math.min(size, names.length));
+            System.arraycopy(loadedPages, 0, newLoadedPages, 0,
+                    Math.min(newLoadedPages.length, loadedPages.length));
+            ids = newIds;
+            names = newNames;
+            loadedPages = newLoadedPages;
+        }
+
+        void onItemsFailed(int start) {
+            pendingPages.remove(start / PAGE_SIZE);
+        }
+    }
+
+    private final ILibraryCallback libraryCallback = new ILibraryCallback.Stub() {
+        public void onItemsReceived(final String itemCategory, final int start, final int total,
+                final List<String> ids, final List<String> names) throws RemoteException {
+            uiThreadHandler.post(new Runnable() {
+                public void run() {
+                    if (adapter != null && itemCategory.equals(category)) {
+                        adapter.onItemsReceived(start, total, ids, names);
+                    }
+                }
+            });
+        }
+
+        public void onItemsFailed(final String itemCategory, final int start) throws RemoteException {
+            uiThreadHandler.post(new Runnable() {
+                public void run() {
+                    if (adapter != null && itemCategory.equals(category)) {
+                        adapter.onItemsFailed(start);
+                    }
+                }
+            });
+        }
+    };
+}
@@ -0,0 +1,224 @@
+package com.danga.squeezer;
+
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * On-device copy of the server's artists, albums, genres and songs, so
+ * browsing doesn't have to go over the CLI socket every time.
+ *
+ * Items are stored by category and server id, along with their position
+ * in the server's (sorted) listing so pages can be read back in the same
+ * order by index range.  Songs also remember their album and artist, for
+ * drilling down.
+ *
+ * A sync writes every item it pulls under a new generation number,
+ * overwriting the item's row in place, and once it's complete deletes
+ * the rows it didn't see again.  Until then the table is a mix of old and
+ * new, so it's only queried while LibrarySync.isCurrent(): browsing goes
+ * to the server while a sync runs, and there's none while disconnected.
+ *
+ * Owned by SqueezeService: only LibrarySync writes to it.  Methods block
+ * on disk, so keep them off the UI and ListeningThread.
+ */
+final class LibraryIndex extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "library.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String META_SERVER = "server";
+    private static final String META_LAST_SCAN = "lastscan";
+    private static final String META_GENERATION = "generation";
+
+    LibraryIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE items ("
+                   + "category TEXT NOT NULL, "
+                   + "id TEXT NOT NULL, "
+                   + "position INTEGER NOT NULL, "
+                   + "name TEXT NOT NULL, "
+                   + "album_id TEXT, "
+                   + "artist_id TEXT, "
+                   + "generation INTEGER NOT NULL, "
+                   + "PRIMARY KEY (category, id))");
+        db.execSQL("CREATE INDEX items_position ON items (category, position)");
+        db.execSQL("CREATE INDEX items_album ON items (album_id)");
+        db.execSQL("CREATE INDEX items_artist ON items (artist_id)");
+        db.execSQL("CREATE TABLE meta (key TEXT PRIMARY KEY, value TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // It's only a cache of the server; start over.
+        db.execSQL("DROP TABLE IF EXISTS items");
+        db.execSQL("DROP TABLE IF EXISTS meta");
+        onCreate(db);
+    }
+
+    // The server's lastscan as of our last complete sync from server, or
+    // null if we have nothing for that server.
+    synchronized String getLastScan(String server) {
+        if (!server.equals(getMeta(META_SERVER))) return null;
+        return getMeta(META_LAST_SCAN);
+    }
+
+    // Starts a sync from server and returns its generation number.
+    synchronized int beginSync(String server) {
+        SQLiteDatabase db = getWritableDatabase();
+        if (!server.equals(getMeta(META_SERVER))) {
+            // Another server's library is no use to us.
+            db.execSQL("DELETE FROM items");
+            db.execSQL("DELETE FROM meta");
+            setMeta(META_SERVER, server);
+        }
+        int generation = (int) parseLong(getMeta(META_GENERATION)) + 1;
+        setMeta(META_GENERATION, String.valueOf(generation));
+        return generation;
+    }
+
+    // Stores items [start, start + ids.size()) of category.  albumIds and
+    // artistIds may be null, or hold nulls.
+    synchronized void putItems(int generation, String category, int start, List<String> ids,
+            List<String> names, List<String> albumIds, List<String> artistIds) {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT OR REPLACE INTO items"
+                + " (category, id, position, name, album_id, artist_id, generation)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                insert.clearBindings();
+                insert.bindString(1, category);
+                insert.bindString(2, ids.get(i));
+                insert.bindLong(3, start + i);
+                insert.bindString(4, names.get(i));
+                bindOptional(insert, 5, albumIds == null ? null : albumIds.get(i));
+                bindOptional(insert, 6, artistIds == null ? null : artistIds.get(i));
+                insert.bindLong(7, generation);
+                insert.execute();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    // Drops whatever the sync didn't see again and records how current
+    // we now are.
+    synchronized void finishSync(int generation, String lastScan) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.execSQL("DELETE FROM items WHERE generation != ?", new Object[] { generation });
+        setMeta(META_LAST_SCAN, lastScan);
+    }
+
+    /**
+     * Whether query() can answer for category and filter: every category
+     * unfiltered, and songs or albums by "artist_id:" or "album_id:".
+     * Genre membership isn't stored, so "genre_id:" has to go to the server.
+     */
+    static boolean canQuery(String category, String filter) {
+        if (filter.length() == 0) return true;
+        if (filter.startsWith("album_id:")) return category.equals("titles");
+        if (filter.startsWith("artist_id:")) {
+            return category.equals("titles") || category.equals("albums");
+        }
+        return false;
+    }
+
+    /**
+     * Fills ids and names with items [start, start + count) of category
+     * matching filter (see canQuery), in server order, and returns the
+     * total number matching.
+     */
+    synchronized int query(String category, String filter, int start, int count,
+            List<String> ids, List<String> names) {
+        SQLiteDatabase db = getReadableDatabase();
+        String where;
+        String[] args;
+        if (filter.length() == 0) {
+            // Positions are dense, so this is a range scan of the index.
+            Cursor cursor = db.rawQuery(
+                    "SELECT id, name FROM items WHERE category = ? AND position >= ?"
+                    + " ORDER BY position LIMIT " + count,
+                    new String[] { category, String.valueOf(start) });
+            readItems(cursor, ids, names);
+            return (int) countWhere(db, "category = ?", new String[] { category });
+        }
+        String filterValue = filter.substring(filter.indexOf(':') + 1);
+        if (category.equals("albums")) {
+            where = "category = 'albums' AND id IN"
+                + " (SELECT album_id FROM items WHERE category = 'titles' AND artist_id = ?)";
+        } else if (filter.startsWith("album_id:")) {
+            where = "category = 'titles' AND album_id = ?";
+        } else {
+            where = "category = 'titles' AND artist_id = ?";
+        }
+        args = new String[] { filterValue };
+        Cursor cursor = db.rawQuery("SELECT id, name FROM items WHERE " + where
+                + " ORDER BY position LIMIT " + count + " OFFSET " + start, args);
+        readItems(cursor, ids, names);
+        return (int) countWhere(db, where, args);
+    }
+
+    private static void readItems(Cursor cursor, List<String> ids, List<String> names) {
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+                names.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long countWhere(SQLiteDatabase db, String where, String[] args) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM items WHERE " + where, args);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String getMeta(String key) {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT value FROM meta WHERE key = ?", new String[] { key });
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void setMeta(String key, String value) {
+        getWritableDatabase().execSQL("INSERT OR REPLACE INTO meta (key, value) VALUES (?, ?)",
+                new Object[] { key, value });
+    }
+
+    private static void bindOptional(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.danga.squeezer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * Brings a LibraryIndex up to date with the server.
+ *
+ * The server's "serverstatus" says when it last finished scanning the
+ * music ("lastscan").  If that's what we last synced, there's nothing to
+ * pull and the index is current.  Otherwise every category is paged
+ * through again, one request at a time so browsing and playback commands
+ * interleave with it on the socket.  (The CLI has no "what changed since"
+ * query, so a changed scan means a re-pull, but an unchanged one, the
+ * usual case, costs a single round trip.)
+ *
+ * Pages are kept small, since the server answers in order: every request
+ * pipelined behind a page waits for all of it.  They're still taken a
+ * record at a time as they arrive and written to the index in chunks.
+ * A page gets longer than the usual request timeout, because one that
+ * times out and comes in anyway is held whole as an unclaimed line.
+ *
+ * Replies are handled on the ListeningThread; everything touching the
+ * index runs on the executor given to the constructor.
+ */
+final class LibrarySync {
+    private static final String TAG = "LibrarySync";
+
+    private static final int PAGE_SIZE = 500;
+    // Items written to the index at a time while a page streams in.
+    private static final int CHUNK_SIZE = 100;
+
+    private static final long SERVERSTATUS_TIMEOUT_MILLIS = 10000;
+    // A slow server takes a while to look up a page of titles.
+    private static final long PAGE_TIMEOUT_MILLIS = 60000;
+
+    // What to pull, in order, with the key naming each item and the
+    // extra tags to ask for.
+    private static final String[] CATEGORIES = { "genres", "artists", "albums", "titles" };
+    private static final String[] NAME_KEYS = { "genre", "artist", "album", "title" };
+    private static final String[] TAGS = { "", "", " tags:l", " tags:es" };
+
+    interface RequestSender {
+        CommandPipeline.Request sendRequest(String command, CommandPipeline.ResponseHandler handler,
+                long timeoutMillis);
+    }
+
+    interface Listener {
+        // Called on the index executor each time the index becomes
+        // current; changed is whether a sync had to pull anything.
+        void onIndexCurrent(boolean changed);
+    }
+
+    private final LibraryIndex index;
+    private final RequestSender sender;
+    private final Executor indexExecutor;
+    private final Listener listener;
+
+    // Guarded by this:
+    private int run;          // bumped by every start() and stop()
+    private boolean current;  // index matches the server, and no sync is running
+
+    LibrarySync(LibraryIndex index, RequestSender sender, Executor indexExecutor,
+            Listener listener) {
+        this.index = index;
+        this.sender = sender;
+        this.indexExecutor = indexExecutor;
+        this.listener = listener;
+    }
+
+    // Whether the index can answer for the server right now.
+    synchronized boolean isCurrent() {
+        return current;
+    }
+
+    /**
+     * Checks server (e.g. "host:port") for changes and syncs if needed.
+     * Abandons any sync already running.
+     */
+    synchronized void start(final String server) {
+        final int thisRun = ++run;
+        current = false;
+        sender.sendRequest("serverstatus 0 0", new CommandPipeline.ResponseHandler() {
+            public void onResponse(CliLineTokenizer tokens) {
+                String lastScan = null;
+                boolean scanning = false;
+                while (tokens.next()) {
+                    if (tokens.keyEquals("lastscan")) {
+                        lastScan = tokens.value();
+                    } else if (tokens.keyEquals("rescan")) {
+                        scanning = tokens.valueAsDecimalIntOrZero() == 1;
+                    }
+                }
+                if (scanning || lastScan == null) {
+                    // We'll hear "rescan done" when it's worth another look.
+                    Log.v(TAG, "Server is scanning; not syncing yet.");
+                    return;
+                }
+                checkLastScan(thisRun, server, lastScan);
+            }
+            public void onFailure() {
+            }
+        }, SERVERSTATUS_TIMEOUT_MILLIS);
+    }
+
+    // On disconnect: abandons any sync, and stops trusting the index.
+    synchronized void stop() {
+        run++;
+        current = false;
+    }
+
+    private synchronized boolean isRun(int thisRun) {
+        return run == thisRun;
+    }
+
+    private void checkLastScan(final int thisRun, final String server, final String lastScan) {
+        indexExecutor.execute(new Runnable() {
+            public void run() {
+                if (!isRun(thisRun)) return;
+                if (lastScan.equals(index.getLastScan(server))) {
+                    Log.v(TAG, "Library index is current.");
+                    finished(thisRun, false);
+                    return;
+                }
+                Log.v(TAG, "Library changed; syncing.");
+                int generation = index.beginSync(server);
+                pullPage(thisRun, generation, lastScan, 0, 0);
+            }
+        });
+    }
+
+    private void pullPage(final int thisRun, final int generation, final String lastScan,
+            final int category, final int start) {
+        if (!isRun(thisRun)) return;
+        String command = CATEGORIES[category] + " " + start + " " + PAGE_SIZE + TAGS[category];
+        sender.sendRequest(command, new PageHandler(thisRun, generation, lastScan, category, start),
+                PAGE_TIMEOUT_MILLIS);
+    }
+
+    // One page of a category, e.g. "titles 500 500 tags:es".
+    private final class PageHandler extends CommandPipeline.RecordHandler {
+        private final int thisRun;
+        private final int generation;
+        private final String lastScan;
+        private final int category;
+        private final int start;
+        private final String nameKey;
+
+        private int total;
+        private int written;  // items handed to the index so far
+        // The chunk being collected:
+        private List<String> ids = new ArrayList<String>();
+        private List<String> names = new ArrayList<String>();
+        private List<String> albumIds = new ArrayList<String>();
+        private List<String> artistIds = new ArrayList<String>();
+
+        PageHandler(int thisRun, int generation, String lastScan, int category, int start) {
+            super("id");
+            this.thisRun = thisRun;
+            this.generation = generation;
+            this.lastScan = lastScan;
+            this.category = category;
+            this.start = start;
+            this.nameKey = NAME_KEYS[category];
+        }
+
+        void onHeader(CliLineTokenizer tokens) {
+            while (tokens.next()) {
+                if (tokens.keyEquals("count")) total = tokens.valueAsDecimalIntOrZero();
+            }
+        }
+
+        // e.g. "id%3A901 title%3AFoo album_id%3A40 artist_id%3A12"
+        void onRecord(CliLineTokenizer tokens) {
+            ids.add("");
+            names.add("");
+            albumIds.add(null);
+            artistIds.add(null);
+            int last = ids.size() - 1;
+            while (tokens.next()) {
+                if (!tokens.hasKey()) continue;
+                if (tokens.keyEquals("id")) {
+                    ids.set(last, tokens.value());
+                } else if (tokens.keyEquals(nameKey)) {
+                    names.set(last, tokens.value());
+                } else if (tokens.keyEquals("album_id")) {
+                    albumIds.set(last, tokens.value());
+                } else if (tokens.keyEquals("artist_id")) {
+                    artistIds.set(last, tokens.value());
+                } else if (tokens.keyEquals("count")) {
+                    total = tokens.valueAsDecimalIntOrZero();
+                }
+            }
+            if (ids.size() == CHUNK_SIZE) writeChunk();
+        }
+
+        void onEnd() {
+            writeChunk();
+            final int categoryTotal = total;
+            final int pageItems = written;
+            indexExecutor.execute(new Runnable() {
+                public void run() {
+                    if (!isRun(thisRun)) return;
+                    if (start + PAGE_SIZE < categoryTotal && pageItems > 0) {
+                        pullPage(thisRun, generation, lastScan, category, start + PAGE_SIZE);
+                    } else if (category + 1 < CATEGORIES.length) {
+                        pullPage(thisRun, generation, lastScan, category + 1, 0);
+                    } else {
+                        index.finishSync(generation, lastScan);
+                        Log.v(TAG, "Library sync done.");
+                        finished(thisRun, true);
+                    }
+                }
+            });
+        }
+
+        public void onFailure() {
+            // Disconnected or timed out; the next start() tries again.
+            // Whatever was written stays under this generation, and is
+            // overwritten or dropped by the next complete sync.
+            Log.w(TAG, "Library sync failed at " + CATEGORIES[category] + " " + start);
+        }
+
+        private void writeChunk() {
+            if (ids.isEmpty()) return;
+            final int chunkStart = start + written;
+            final List<String> chunkIds = ids;
+            final List<String> chunkNames = names;
+            final List<String> chunkAlbumIds = albumIds;
+            final List<String> chunkArtistIds = artistIds;
+            written += ids.size();
+            ids = new ArrayList<String>();
+            names = new ArrayList<String>();
+            albumIds = new ArrayList<String>();
+            artistIds = new ArrayList<String>();
+            indexExecutor.execute(new Runnable() {
+                public void run() {
+                    if (!isRun(thisRun)) return;
+                    index.putItems(generation, CATEGORIES[category], chunkStart, chunkIds,
+                                   chunkNames, chunkAlbumIds, chunkArtistIds);
+                }
+            });
+        }
+    }
+
+    private void finished(int thisRun, boolean changed) {
+        synchronized (this) {
+            if (run != thisRun) return;
+            current = true;
+        }
+        listener.onIndexCurrent(changed);
+    }
+}
@@ -0,0 +1,91 @@
+package com.danga.squeezer;
+
+/**
+ * Takes the events "listen 1" sends about a player onto its cached
+ * status, for players we aren't subscribed to.  The events that change
+ * what's cached:
+ *
+ *   <player> play
+ *   <player> stop
+ *   <player> pause [0|1]            no argument toggles
+ *   <player> power [0|1]            no argument toggles
+ *   <player> mixer volume <n|+n|-n>
+ *   <player> prefset server volume <n>
+ *   <player> playlist newsong <title> [<index>]
+ *
+ * Anything else ("status" lines aside, see StatusLineParser) leaves the
+ * status as it is.  The song clock carries on through each event.
+ *
+ * Free of Android but for PlayerStatus, so tools/ tests it.
+ */
+final class PlayerEventParser {
+    private PlayerEventParser() {
+    }
+
+    /**
+     * tokens are positioned on the token after the player id.  Returns
+     * status with the event applied as of now (a
+     * SystemClock.elapsedRealtime()), or null if it changes nothing.
+     */
+    static PlayerStatus parse(PlayerStatus status, CliLineTokenizer tokens, long now) {
+        PlayerStatus.Builder newStatus = status.buildUpon()
+            .setElapsed(status.getElapsedMillisAt(now), now);
+        if (tokens.tokenEquals("play")) {
+            newStatus.setPlaying(true);
+        } else if (tokens.tokenEquals("stop")) {
+            newStatus.setPlaying(false);
+        } else if (tokens.tokenEquals("pause")) {
+            newStatus.setPlaying(parsePauseEvent(tokens, status.isPlaying()));
+        } else if (tokens.tokenEquals("power")) {
+            newStatus.setPoweredOn(parsePowerEvent(tokens, status.isPoweredOn()));
+        } else if (tokens.tokenEquals("mixer")) {
+            if (!tokens.next() || !tokens.tokenEquals("volume") || !tokens.next()) return null;
+            newStatus.setVolume(parseVolume(tokens, status.getVolume()));
+        } else if (tokens.tokenEquals("playlist")) {
+            if (!tokens.next() || !tokens.tokenEquals("newsong") || !tokens.next()) return null;
+            newStatus.setSong(tokens.token()).setElapsed(0, now);
+        } else if (tokens.tokenEquals("prefset")) {
+            if (!tokens.next() || !tokens.tokenEquals("server") ||
+                !tokens.next() || !tokens.tokenEquals("volume") || !tokens.next()) return null;
+            newStatus.setVolume(tokens.tokenAsDecimalIntOrZero());
+        } else {
+            return null;
+        }
+        return newStatus.build();
+    }
+
+    // Whether a player is playing after "pause [0|1]", tokens being on
+    // "pause".  No argument means toggle.
+    static boolean parsePauseEvent(CliLineTokenizer tokens, boolean wasPlaying) {
+        if (tokens.next()) {
+            if (tokens.tokenEquals("0")) {
+                return true;  // playing.  (unpaused)
+            } else if (tokens.tokenEquals("1")) {
+                return false;  // explicitly paused.
+            }
+        }
+        return !wasPlaying;
+    }
+
+    // Whether a player is on after "power [0|1]", tokens being on "power".
+    // No argument means toggle.
+    private static boolean parsePowerEvent(CliLineTokenizer tokens, boolean wasOn) {
+        if (tokens.next()) {
+            if (tokens.tokenEquals("0")) {
+                return false;
+            } else if (tokens.tokenEquals("1")) {
+                return true;
+            }
+        }
+        return !wasOn;
+    }
+
+    // "mixer volume" echoes the command as sent, so it can be a change
+    // ("+5", "-5") rather than the new volume.
+    private static int parseVolume(CliLineTokenizer tokens, int oldVolume) {
+        int volume = tokens.tokenAsDecimalIntOrZero();
+        char sign = tokens.token().charAt(0);
+        if (sign == '+' || sign == '-') volume += oldVolume;
+        return Math.max(0, Math.min(100, volume));
+    }
+}
@@ -0,0 +1,66 @@
+package com.danga.squeezer;
+
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Takes the players of one page of "players <start> <count>", e.g.
+ * "players 0 100 count%3A2 playerindex%3A0 playerid%3A... name%3A...",
+ * into a map by player id, a record at a time.  What happens once the page
+ * is in is up to the subclass.
+ *
+ * Kept out of SqueezeService, and free of Android, so tools/ benchmarks
+ * the very code the service runs.
+ */
+abstract class PlayerListParser extends CommandPipeline.RecordHandler {
+    private static final String TAG = "PlayerListParser";
+
+    final Map<String, SqueezePlayer> players;
+    // How many players the server has in all, per its "count".
+    int total;
+    // Players in this page.
+    int received;
+
+    PlayerListParser(Map<String, SqueezePlayer> players) {
+        super("playerindex");
+        this.players = players;
+    }
+
+    void onHeader(CliLineTokenizer tokens) {
+        while (tokens.next()) {
+            if (tokens.keyEquals("count")) total = tokens.valueAsDecimalIntOrZero();
+        }
+    }
+
+    void onRecord(CliLineTokenizer tokens) {
+        received++;
+        SqueezePlayer player = new SqueezePlayer();
+        while (tokens.next()) {
+            if (!tokens.hasKey()) continue;
+            if (tokens.keyEquals("playerid")) {
+                player.setPlayerId(tokens.value());
+            } else if (tokens.keyEquals("ip")) {
+                player.setIp(tokens.value());
+            } else if (tokens.keyEquals("name")) {
+                player.setName(tokens.value());
+            } else if (tokens.keyEquals("model")) {
+                player.setModel(tokens.value());
+            } else if (tokens.keyEquals("canpoweroff")) {
+                player.setCanpoweroff(tokens.valueAsDecimalIntOrZero() == 1);
+            } else if (tokens.keyEquals("count")) {
+                total = tokens.valueAsDecimalIntOrZero();
+            }
+        }
+        maybeAddPlayerToMap(player, players);
+    }
+
+    // Add String pair to map if both are non-null and non-empty.
+    static void maybeAddPlayerToMap(SqueezePlayer player, Map<String, SqueezePlayer> players) {
+        if (player.getPlayerId() != null && !player.getPlayerId().equals("") &&
+            player.getName() != null && !player.getName().equals("")) {
+            Log.v(TAG, "Adding player: " + player);
+            players.put(player.getPlayerId(), player);
+        }
+    }
+}
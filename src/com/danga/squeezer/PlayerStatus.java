@@ -0,0 +1,329 @@
+package com.danga.squeezer;
+
+import java.net.URLEncoder;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+/**
+ * Immutable snapshot of what one player is doing, as of one status line
+ * (or event) from the server.  The service publishes a whole new one at a
+ * time, so readers never see e.g. the new song with the old artist.
+ *
+ * Parcelable so clients can fetch everything in one binder call
+ * (ISqueezeService.getStatusSnapshot) rather than a call per field.
+ *
+ * The playback position is a clock: the elapsed time as of some
+ * SystemClock.elapsedRealtime(), plus the rate it's moving at, so anyone
+ * holding a snapshot can work out where playback is now without asking
+ * the server every second.  elapsedRealtime() is system-wide, so this
+ * works across processes too.
+ */
+public final class PlayerStatus implements Parcelable {
+    public static final PlayerStatus EMPTY = new Builder().build();
+
+    private final String playerId;
+    private final String playerName;
+    private final boolean playing;
+    private final boolean poweredOn;
+    private final String song;
+    private final String artist;
+    private final String album;
+    private final String artworkTrackId;
+    private final int elapsedMillis;  // as of elapsedAt
+    private final long elapsedAt;     // SystemClock.elapsedRealtime(), or 0
+    private final int rate;           // 1 is normal playback
+    private final int secondsTotal;
+    private final int volume;         // 0-100, or -1 if unknown
+
+    // "http://host:port" of the server's web interface.  Only known to the
+    // service; filled in when it hands out a snapshot.
+    private final String serverUrl;
+
+    private PlayerStatus(Builder builder) {
+        playerId = builder.playerId;
+        playerName = builder.playerName;
+        playing = builder.playing;
+        poweredOn = builder.poweredOn;
+        song = builder.song;
+        artist = builder.artist;
+        album = builder.album;
+        artworkTrackId = builder.artworkTrackId;
+        elapsedMillis = builder.elapsedMillis;
+        elapsedAt = builder.elapsedAt;
+        rate = builder.rate;
+        secondsTotal = builder.secondsTotal;
+        volume = builder.volume;
+        serverUrl = builder.serverUrl;
+    }
+
+    private PlayerStatus(Parcel source) {
+        playerId = source.readString();
+        playerName = source.readString();
+        playing = source.readInt() != 0;
+        poweredOn = source.readInt() != 0;
+        song = source.readString();
+        artist = source.readString();
+        album = source.readString();
+        artworkTrackId = source.readString();
+        elapsedMillis = source.readInt();
+        elapsedAt = source.readLong();
+        rate = source.readInt();
+        secondsTotal = source.readInt();
+        volume = source.readInt();
+        serverUrl = source.readString();
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(playerId);
+        dest.writeString(playerName);
+        dest.writeInt(playing ? 1 : 0);
+        dest.writeInt(poweredOn ? 1 : 0);
+        dest.writeString(song);
+        dest.writeString(artist);
+        dest.writeString(album);
+        dest.writeString(artworkTrackId);
+        dest.writeInt(elapsedMillis);
+        dest.writeLong(elapsedAt);
+        dest.writeInt(rate);
+        dest.writeInt(secondsTotal);
+        dest.writeInt(volume);
+        dest.writeString(serverUrl);
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Parcelable.Creator<PlayerStatus> CREATOR =
+        new Parcelable.Creator<PlayerStatus>() {
+            public PlayerStatus createFromParcel(Parcel source) {
+                return new PlayerStatus(source);
+            }
+            public PlayerStatus[] newArray(int size) {
+                return new PlayerStatus[size];
+            }
+        };
+
+    // Null when unknown.
+    public String getPlayerId() {
+        return playerId;
+    }
+    // Never null; empty when unknown.
+    public String getPlayerName() {
+        return playerName == null ? "" : playerName;
+    }
+    public boolean isPlaying() {
+        return playing;
+    }
+    public boolean isPoweredOn() {
+        return poweredOn;
+    }
+    // Never null:  (always empty string when unknown)
+    public String getSong() {
+        return song == null ? "" : song;
+    }
+    public String getArtist() {
+        return artist == null ? "" : artist;
+    }
+    public String getAlbum() {
+        return album == null ? "" : album;
+    }
+    // Null when the status had no artwork_track_id (e.g. Pandora).
+    public String getArtworkTrackId() {
+        return artworkTrackId;
+    }
+    // Where playback is now, extrapolated from the last status if playing.
+    public int getSecondsElapsed() {
+        return getElapsedMillisAt(SystemClock.elapsedRealtime()) / 1000;
+    }
+    // Where playback is (or was) at the given SystemClock.elapsedRealtime().
+    public int getElapsedMillisAt(long realtime) {
+        if (!playing || rate == 0 || elapsedAt == 0) return elapsedMillis;
+        long millis = elapsedMillis + (realtime - elapsedAt) * rate;
+        if (secondsTotal > 0 && millis > secondsTotal * 1000L) millis = secondsTotal * 1000L;
+        if (millis < 0) millis = 0;
+        return (int) millis;
+    }
+    public int getRate() {
+        return rate;
+    }
+    // 0-100, or -1 if unknown.
+    public int getVolume() {
+        return volume;
+    }
+    public int getSecondsTotal() {
+        return secondsTotal;
+    }
+    // Never null; empty when there's no art to be had.
+    public String getAlbumArtUrl() {
+        return getAlbumArtUrl(0, 0);
+    }
+    // The art scaled by the server to fit width x height pixels.
+    public String getAlbumArtUrl(int width, int height) {
+        if (serverUrl == null) return "";
+        return albumArtUrl(serverUrl, playerId, artworkTrackId, getSong(),
+                width, height);
+    }
+
+    /**
+     * The cover art URL for a song, scaled by the server to fit width x
+     * height pixels, or the original if either is 0.  Asking for the size
+     * actually shown saves most of the bytes: covers are often 1500px+.
+     */
+    static String albumArtUrl(String serverUrl, String playerId, String artworkTrackId,
+            String song, int width, int height) {
+        String cover = (width > 0 && height > 0) ? "cover_" + width + "x" + height : "cover";
+        if (artworkTrackId != null) {
+            return serverUrl + "/music/" + artworkTrackId + "/" + cover + ".jpg";
+        } else {
+            // Return the "current album art" URL instead, with the cache-buster
+            // of the song name in it, to force the activity to reload when
+            // listening to e.g. Pandora, where there is no artwork_track_id (tag J)
+            // in the status.
+            return serverUrl + "/music/current/" + cover + "?player=" + playerId
+                + "&song=" + URLEncoder.encode(song);
+        }
+    }
+
+    // Whether the song, artist or album differ from old's.
+    public boolean musicChangedFrom(PlayerStatus old) {
+        return !equal(song, old.song) || !equal(artist, old.artist) || !equal(album, old.album);
+    }
+
+    // Whether our clock disagrees with what old's would have predicted by
+    // more than toleranceMillis, or runs differently.
+    public boolean clockDriftedFrom(PlayerStatus old, int toleranceMillis) {
+        if (secondsTotal != old.secondsTotal || playing != old.playing || rate != old.rate) {
+            return true;
+        }
+        return Math.abs(elapsedMillis - old.getElapsedMillisAt(elapsedAt)) > toleranceMillis;
+    }
+
+    public Builder buildUpon() {
+        return new Builder(this);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public String toString() {
+        return "player=" + playerId + ", playing=" + playing + ", power=" + poweredOn
+            + ", song=" + song + ", artist=" + artist + ", album=" + album
+            + ", artwork=" + artworkTrackId + ", time=" + elapsedMillis + "ms@" + elapsedAt
+            + "/" + secondsTotal + "s, rate=" + rate + ", volume=" + volume;
+    }
+
+    public static final class Builder {
+        private String playerId;
+        private String playerName;
+        private boolean playing;
+        private boolean poweredOn;
+        private String song;
+        private String artist;
+        private String album;
+        private String artworkTrackId;
+        private int elapsedMillis;
+        private long elapsedAt;
+        private int rate = 1;
+        private int secondsTotal;
+        private int volume = -1;
+        private String serverUrl;
+
+        public Builder() {
+        }
+
+        private Builder(PlayerStatus status) {
+            playerId = status.playerId;
+            playerName = status.playerName;
+            playing = status.playing;
+            poweredOn = status.poweredOn;
+            song = status.song;
+            artist = status.artist;
+            album = status.album;
+            artworkTrackId = status.artworkTrackId;
+            elapsedMillis = status.elapsedMillis;
+            elapsedAt = status.elapsedAt;
+            rate = status.rate;
+            secondsTotal = status.secondsTotal;
+            volume = status.volume;
+            serverUrl = status.serverUrl;
+        }
+
+        public Builder setPlayerId(String playerId) {
+            this.playerId = playerId;
+            return this;
+        }
+        public Builder setPlayerName(String playerName) {
+            this.playerName = playerName;
+            return this;
+        }
+        public Builder setPlaying(boolean playing) {
+            this.playing = playing;
+            return this;
+        }
+        public Builder setPoweredOn(boolean poweredOn) {
+            this.poweredOn = poweredOn;
+            return this;
+        }
+        public Builder setSong(String song) {
+            this.song = song;
+            return this;
+        }
+        public Builder setArtist(String artist) {
+            this.artist = artist;
+            return this;
+        }
+        public Builder setAlbum(String album) {
+            this.album = album;
+            return this;
+        }
+        public Builder setArtworkTrackId(String artworkTrackId) {
+            this.artworkTrackId = artworkTrackId;
+            return this;
+        }
+        // Playback was elapsedMillis in at SystemClock.elapsedRealtime() atRealtime.
+        public Builder setElapsed(int elapsedMillis, long atRealtime) {
+            this.elapsedMillis = elapsedMillis;
+            this.elapsedAt = atRealtime;
+            return this;
+        }
+        public Builder setRate(int rate) {
+            this.rate = rate;
+            return this;
+        }
+        public Builder setSecondsTotal(int secondsTotal) {
+            this.secondsTotal = secondsTotal;
+            return this;
+        }
+        public Builder setVolume(int volume) {
+            this.volume = volume;
+            return this;
+        }
+        public Builder setServerUrl(String serverUrl) {
+            this.serverUrl = serverUrl;
+            return this;
+        }
+
+        // Current values, for comparing against a status line without
+        // allocating:
+        String getSong() {
+            return song;
+        }
+        String getArtist() {
+            return artist;
+        }
+        String getAlbum() {
+            return album;
+        }
+        String getArtworkTrackId() {
+            return artworkTrackId;
+        }
+
+        public PlayerStatus build() {
+            return new PlayerStatus(this);
+        }
+    }
+}
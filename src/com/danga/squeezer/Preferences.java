@@ -27,6 +27,14 @@ public final class Preferences {
 
     public static final String KEY_AUTO_DISCOVER = "squeezer.autodiscover";
     public static final String KEY_AUTO_CONNECT = "squeezer.autoconnect";
+
+    // What auto-discovery last found, as space-separated "host:port"s of
+    // CLI ports, best first.
+    public static final String KEY_DISCOVERED_SERVERS = "squeezer.discoveredservers";
+
+    // With auto-discovery, the last one of those we connected to.  Used
+    // when there's no KEY_SERVERADDR, which is only ever set by the user.
+    public static final String KEY_LAST_DISCOVERED_SERVER = "squeezer.lastdiscoveredserver";
     
     // Do we keep the notification going at top, even when we're not connected?
     public static final String KEY_NOTIFY_OF_CONNECTION = "squeezer.notifyofconnection";
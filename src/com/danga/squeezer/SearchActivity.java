@@ -0,0 +1,185 @@
+package com.danga.squeezer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.ListActivity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Search as you type: every keystroke asks the service again, and results
+ * for anything but what's in the box now are ignored.  Clicking an artist
+ * or album browses it in LibraryActivity; clicking a song plays it.
+ */
+public class SearchActivity extends ListActivity {
+    private static final String TAG = "SearchActivity";
+
+    private ISqueezeService serviceStub = null;
+    private final Handler uiThreadHandler = new Handler();
+
+    private EditText searchText;
+    private final ResultAdapter adapter = new ResultAdapter();
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            serviceStub = ISqueezeService.Stub.asInterface(service);
+            uiThreadHandler.post(new Runnable() {
+                public void run() {
+                    search();
+                }
+            });
+        }
+        public void onServiceDisconnected(ComponentName name) {
+            serviceStub = null;
+        };
+    };
+
+    static void show(Context context) {
+        context.startActivity(new Intent(context, SearchActivity.class));
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.search);
+        setListAdapter(adapter);
+        searchText = (EditText) findViewById(R.id.search_text);
+        searchText.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+            public void afterTextChanged(Editable s) {
+                search();
+            }
+        });
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        bindService(new Intent(this, SqueezeService.class),
+                    serviceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        unbindService(serviceConnection);
+    }
+
+    private String currentQuery() {
+        return searchText.getText().toString();
+    }
+
+    private void search() {
+        if (serviceStub == null) return;
+        try {
+            serviceStub.search(currentQuery(), searchCallback);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Service exception in search(): " + e);
+        }
+    }
+
+    @Override
+    protected void onListItemClick(ListView l, View v, int position, long id) {
+        String category = adapter.categories.get(position);
+        String itemId = adapter.ids.get(position);
+        String name = adapter.names.get(position);
+        if (category.equals("artists")) {
+            LibraryActivity.show(this, "albums", "artist_id:" + itemId, name);
+        } else if (category.equals("albums")) {
+            LibraryActivity.show(this, "titles", "album_id:" + itemId, name);
+        } else if (category.equals("titles")) {
+            playItem("track_id:" + itemId, name);
+        }
+    }
+
+    private void playItem(String itemFilter, String name) {
+        if (serviceStub == null) {
+            return;
+        }
+        try {
+            if (serviceStub.playLibraryItem(itemFilter)) {
+                Toast.makeText(this, "Playing " + name, Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(this, "No player selected.", Toast.LENGTH_SHORT).show();
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Service exception in playLibraryItem(): " + e);
+        }
+    }
+
+    private class ResultAdapter extends BaseAdapter {
+        List<String> categories = new ArrayList<String>();
+        List<String> ids = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+
+        public int getCount() {
+            return ids.size();
+        }
+
+        public Object getItem(int position) {
+            return names.get(position);
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View row = convertView;
+            if (row == null) {
+                row = getLayoutInflater().inflate(android.R.layout.simple_list_item_2, parent, false);
+            }
+            ((TextView) row.findViewById(android.R.id.text1)).setText(names.get(position));
+            ((TextView) row.findViewById(android.R.id.text2)).setText(
+                    categoryLabel(categories.get(position)));
+            return row;
+        }
+
+        void setResults(List<String> newCategories, List<String> newIds, List<String> newNames) {
+            categories = newCategories;
+            ids = newIds;
+            names = newNames;
+            notifyDataSetChanged();
+        }
+    }
+
+    private static String categoryLabel(String category) {
+        if (category.equals("artists")) return "Artist";
+        if (category.equals("albums")) return "Album";
+        return "Song";
+    }
+
+    private final ISearchCallback searchCallback = new ISearchCallback.Stub() {
+        public void onSearchResults(final String query, final List<String> categories,
+                final List<String> ids, final List<String> names) throws RemoteException {
+            uiThreadHandler.post(new Runnable() {
+                public void run() {
+                    // Typed on since?  Then another answer is coming.
+                    if (query.equals(currentQuery())) {
+                        adapter.setResults(categories, ids, names);
+                    }
+                }
+            });
+        }
+    };
+}
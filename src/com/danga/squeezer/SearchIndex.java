@@ -0,0 +1,235 @@
+package com.danga.squeezer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-memory prefix index over artist, album and song names, for search as
+ * you type.  A query matches a name if each of its words starts a word in
+ * the name, ignoring case and accents: "road abb" finds "Abbey Road" and
+ * "bjo" finds "Bj\u00f6rk".
+ *
+ * Every word start in every (folded) name is an entry in one sorted
+ * array, packed as a long of item index and offset into the name, so
+ * there's no String per entry.  A lookup binary searches for the run of
+ * entries each query word prefixes, walks the shortest of those runs and
+ * checks the other words against each candidate, so "love night" costs
+ * what the rarer of the two words does.
+ *
+ * Immutable once built, so any number of threads can search it.
+ */
+final class SearchIndex {
+    // Folding for U+00E0..U+00FF (after lower-casing) and U+0100..U+017F.
+    private static final String FOLD_LATIN_1 = "aaaaaaaceeeeiiiidnooooo\u00f7ouuuuyty";
+    private static final String FOLD_LATIN_EXTENDED_A =
+        "aaaaaaccccccccddddeeeeeeeeeegggggggghhhhiiiiiiiiiiiijjkkkllllllllllnnnnnnnnn"
+        + "oooooooorrrrrrssssssssttttttuuuuuuuuuuuuwwyyyzzzzzzs";
+
+    private final String[] categories;
+    private final String[] ids;
+    private final String[] names;
+    private final String[] folded;
+    // (item << 16) | offset of a word start in folded[item], sorted by the
+    // text from there on.
+    private final long[] entries;
+
+    private SearchIndex(String[] categories, String[] ids, String[] names, String[] folded,
+            long[] entries) {
+        this.categories = categories;
+        this.ids = ids;
+        this.names = names;
+        this.folded = folded;
+        this.entries = entries;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Adds up to limit items matching query to the lists, in order of the
+     * text matching its rarest word, and returns how many were added.
+     */
+    int search(String query, int limit, List<String> outCategories, List<String> outIds,
+            List<String> outNames) {
+        String[] words = split(fold(query));
+        if (words.length == 0) return 0;
+        int runStart = 0;
+        int runEnd = entries.length;
+        for (String word : words) {
+            int start = bound(word, false);
+            int end = bound(word, true);
+            if (end - start < runEnd - runStart) {
+                runStart = start;
+                runEnd = end;
+            }
+        }
+        int found = 0;
+        Set<Integer> seen = new HashSet<Integer>();
+        for (int i = runStart; i < runEnd && found < limit; i++) {
+            int item = (int) (entries[i] >>> 16);
+            if (!seen.add(item) || !hasWordPrefixes(folded[item], words)) continue;
+            outCategories.add(categories[item]);
+            outIds.add(ids[item]);
+            outNames.add(names[item]);
+            found++;
+        }
+        return found;
+    }
+
+    // The first entry prefix starts, or (if after) the first one past
+    // those.  Entries prefix starts are contiguous.
+    private int bound(String prefix, boolean after) {
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long entry = entries[mid];
+            int cmp = compareToPrefix(folded[(int) (entry >>> 16)], (int) (entry & 0xFFFF), prefix);
+            if (cmp < 0 || (after && cmp == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Compares text from offset on with prefix: 0 if it starts with prefix.
+    private static int compareToPrefix(String text, int offset, String prefix) {
+        int length = Math.min(text.length() - offset, prefix.length());
+        for (int i = 0; i < length; i++) {
+            int diff = text.charAt(offset + i) - prefix.charAt(i);
+            if (diff != 0) return diff;
+        }
+        return text.length() - offset < prefix.length() ? -1 : 0;
+    }
+
+    // Whether every word starts a word in text.
+    private static boolean hasWordPrefixes(String text, String[] words) {
+        for (int w = 0; w < words.length; w++) {
+            boolean match = false;
+            for (int i = 0; i < text.length() && !match; i++) {
+                if ((i == 0 || text.charAt(i - 1) == ' ') && text.startsWith(words[w], i)) {
+                    match = true;
+                }
+            }
+            if (!match) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Lower-cases s, strips accents from Latin letters, drops apostrophes
+     * and turns other punctuation into spaces, so "Bj\u00f6rk's D\u00e9but!" and
+     * "bjorks debut" compare equal.
+     */
+    static String fold(String s) {
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = Character.toLowerCase(s.charAt(i));
+            if (c >= '\u00e0' && c <= '\u00ff') {
+                c = FOLD_LATIN_1.charAt(c - '\u00e0');
+            } else if (c >= '\u0100' && c <= '\u017f') {
+                c = FOLD_LATIN_EXTENDED_A.charAt(c - '\u0100');
+            } else if (c == '\u00df') {
+                c = 's';
+            }
+            if (c == '\'' || c == '\u2019') continue;
+            out.append(Character.isLetterOrDigit(c) ? c : ' ');
+        }
+        return out.toString();
+    }
+
+    private static String[] split(String foldedText) {
+        List<String> words = new ArrayList<String>();
+        for (String word : foldedText.split(" ")) {
+            if (word.length() > 0) words.add(word);
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    static final class Builder {
+        private final List<String> categories = new ArrayList<String>();
+        private final List<String> ids = new ArrayList<String>();
+        private final List<String> names = new ArrayList<String>();
+
+        // category should be a constant ("artists", ...) so it's shared.
+        Builder add(String category, String id, String name) {
+            categories.add(category);
+            ids.add(id);
+            names.add(name);
+            return this;
+        }
+
+        SearchIndex build() {
+            int count = ids.size();
+            String[] folded = new String[count];
+            int entryCount = 0;
+            for (int item = 0; item < count; item++) {
+                folded[item] = fold(names.get(item));
+                entryCount += countWordStarts(folded[item]);
+            }
+            long[] entries = new long[entryCount];
+            int e = 0;
+            for (int item = 0; item < count; item++) {
+                String text = folded[item];
+                for (int i = 0; i < text.length() && i <= 0xFFFF; i++) {
+                    if (isWordStart(text, i)) entries[e++] = ((long) item << 16) | i;
+                }
+            }
+            sort(entries, folded);
+            return new SearchIndex(categories.toArray(new String[count]),
+                    ids.toArray(new String[count]), names.toArray(new String[count]),
+                    folded, entries);
+        }
+
+        private static int countWordStarts(String text) {
+            int starts = 0;
+            for (int i = 0; i < text.length() && i <= 0xFFFF; i++) {
+                if (isWordStart(text, i)) starts++;
+            }
+            return starts;
+        }
+
+        private static boolean isWordStart(String text, int i) {
+            return text.charAt(i) != ' ' && (i == 0 || text.charAt(i - 1) == ' ');
+        }
+
+        // Bottom-up merge sort of entries by their text; no boxing.
+        private static void sort(long[] entries, String[] folded) {
+            long[] from = entries;
+            long[] to = new long[entries.length];
+            for (int width = 1; width < entries.length; width *= 2) {
+                for (int low = 0; low < entries.length; low += 2 * width) {
+                    int mid = Math.min(low + width, entries.length);
+                    int high = Math.min(low + 2 * width, entries.length);
+                    int i = low, j = mid, k = low;
+                    while (i < mid && j < high) {
+                        to[k++] = compare(from[i], from[j], folded) <= 0 ? from[i++] : from[j++];
+                    }
+                    while (i < mid) to[k++] = from[i++];
+                    while (j < high) to[k++] = from[j++];
+                }
+                long[] swap = from;
+                from = to;
+                to = swap;
+            }
+            if (from != entries) System.arraycopy(from, 0, entries, 0, entries.length);
+        }
+
+        private static int compare(long a, long b, String[] folded) {
+            String textA = folded[(int) (a >>> 16)];
+            String textB = folded[(int) (b >>> 16)];
+            int i = (int) (a & 0xFFFF);
+            int j = (int) (b & 0xFFFF);
+            while (i < textA.length() && j < textB.length()) {
+                int diff = textA.charAt(i++) - textB.charAt(j++);
+                if (diff != 0) return diff;
+            }
+            return (textA.length() - i) - (textB.length() - j);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.danga.squeezer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Finds SqueezeCenter servers on the local network with the UDP discovery
+ * protocol Squeezeboxes themselves use, then ranks them by how quickly
+ * their CLI port accepts a connection.
+ *
+ * The request is a broadcast to port 3483 of an 'e' followed by the tags
+ * we'd like answered, each four letters and a zero length.  A server
+ * replies to the sender with an 'E' followed by tag, one byte of length
+ * and value for each tag it knows: "NAME" is its name and "CLIP" its CLI
+ * port.  Older servers don't know "CLIP"; they're assumed to be on 9090.
+ *
+ * UDP gets lost, so the request goes out a few times while replies are
+ * collected.  Then every server that answered is probed at once, so the
+ * whole thing takes about LISTEN_MILLIS plus the slowest probe.
+ *
+ * discover() blocks, so keep it off the UI thread.
+ */
+final class ServerDiscovery {
+    private static final String TAG = "ServerDiscovery";
+
+    static final int DISCOVERY_PORT = 3483;
+    private static final int DEFAULT_CLI_PORT = 9090;
+
+    // How long replies are collected for, over how many broadcasts.
+    private static final int LISTEN_MILLIS = 1500;
+    private static final int BROADCASTS = 3;
+    private static final int PROBE_TIMEOUT_MILLIS = 2000;
+    private static final int MAX_PARALLEL_PROBES = 8;
+
+    private static final byte[] REQUEST = {
+        'e',
+        'N', 'A', 'M', 'E', 0,
+        'C', 'L', 'I', 'P', 0,
+    };
+
+    static final class Server {
+        final String name;
+        final String hostPort;
+        final long connectMillis;
+
+        Server(String name, String hostPort, long connectMillis) {
+            this.name = name;
+            this.hostPort = hostPort;
+            this.connectMillis = connectMillis;
+        }
+
+        public String toString() {
+            return name + " at " + hostPort + " (" + connectMillis + "ms)";
+        }
+    }
+
+    private final List<InetAddress> broadcastAddresses;
+    private final int port;
+
+    // port is DISCOVERY_PORT but for a stand-in server.
+    ServerDiscovery(List<InetAddress> broadcastAddresses, int port) {
+        this.broadcastAddresses = broadcastAddresses;
+        this.port = port;
+    }
+
+    /**
+     * Returns the servers that answered and whose CLI port we could
+     * connect to, quickest first.
+     */
+    List<Server> discover() throws IOException {
+        Map<String, String> candidates = listen();
+        Log.v(TAG, "Discovery replies: " + candidates);
+        return probe(candidates);
+    }
+
+    // Broadcasts the request and collects replies, as CLI "host:port" to
+    // server name, in the order they answered.
+    private Map<String, String> listen() throws IOException {
+        Map<String, String> candidates = new LinkedHashMap<String, String>();
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setBroadcast(true);
+            byte[] buffer = new byte[1500];
+            long start = SystemClock.elapsedRealtime();
+            for (int sent = 0; sent < BROADCASTS; sent++) {
+                for (InetAddress address : broadcastAddresses) {
+                    socket.send(new DatagramPacket(REQUEST, REQUEST.length, address, port));
+                }
+                long until = start + (long) LISTEN_MILLIS * (sent + 1) / BROADCASTS;
+                receiveUntil(socket, buffer, until, candidates);
+            }
+        } finally {
+            socket.close();
+        }
+        return candidates;
+    }
+
+    private static void receiveUntil(DatagramSocket socket, byte[] buffer, long until,
+            Map<String, String> candidates) throws IOException {
+        while (true) {
+            long left = until - SystemClock.elapsedRealtime();
+            if (left <= 0) return;
+            socket.setSoTimeout((int) left);
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return;
+            }
+            parseReply(packet, candidates);
+        }
+    }
+
+    // 'E', then (tag, length, value)*.
+    private static void parseReply(DatagramPacket packet, Map<String, String> candidates) {
+        byte[] data = packet.getData();
+        int offset = packet.getOffset();
+        int end = offset + packet.getLength();
+        if (packet.getLength() < 1 || data[offset] != 'E') return;
+        String host = packet.getAddress().getHostAddress();
+        String name = host;
+        int cliPort = DEFAULT_CLI_PORT;
+        int i = offset + 1;
+        while (i + 5 <= end) {
+            int length = data[i + 4] & 0xFF;
+            if (i + 5 + length > end) break;
+            String value = decode(data, i + 5, length);
+            if (tagEquals(data, i, "NAME") && length > 0) {
+                name = value;
+            } else if (tagEquals(data, i, "CLIP")) {
+                int parsed = Util.parseDecimalIntOrZero(value);
+                if (parsed > 0) cliPort = parsed;
+            }
+            i += 5 + length;
+        }
+        String hostPort = host + ":" + cliPort;
+        if (!candidates.containsKey(hostPort)) candidates.put(hostPort, name);
+    }
+
+    private static boolean tagEquals(byte[] data, int offset, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (data[offset + i] != tag.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static String decode(byte[] data, int offset, int length) {
+        try {
+            return new String(data, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return new String(data, offset, length);
+        }
+    }
+
+    // Times a connect to each candidate's CLI port, all at once.
+    private static List<Server> probe(Map<String, String> candidates) {
+        List<Server> servers = new ArrayList<Server>();
+        if (candidates.isEmpty()) return servers;
+        ExecutorService probes = Executors.newFixedThreadPool(
+                Math.min(candidates.size(), MAX_PARALLEL_PROBES));
+        try {
+            List<Future<Server>> results = new ArrayList<Future<Server>>();
+            for (final Map.Entry<String, String> candidate : candidates.entrySet()) {
+                results.add(probes.submit(new Callable<Server>() {
+                    public Server call() throws IOException {
+                        return probe(candidate.getValue(), candidate.getKey());
+                    }
+                }));
+            }
+            for (Future<Server> result : results) {
+                try {
+                    servers.add(result.get());
+                } catch (ExecutionException e) {
+                    Log.v(TAG, "Probe failed: " + e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            probes.shutdownNow();
+        }
+        Collections.sort(servers, new Comparator<Server>() {
+            public int compare(Server a, Server b) {
+                return a.connectMillis < b.connectMillis ? -1
+                    : a.connectMillis > b.connectMillis ? 1 : 0;
+            }
+        });
+        return servers;
+    }
+
+    private static Server probe(String name, String hostPort) throws IOException {
+        int colon = hostPort.lastIndexOf(':');
+        InetSocketAddress address = new InetSocketAddress(
+                hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+        Socket socket = new Socket();
+        try {
+            long start = SystemClock.elapsedRealtime();
+            socket.connect(address, PROBE_TIMEOUT_MILLIS);
+            return new Server(name, hostPort, SystemClock.elapsedRealtime() - start);
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -8,7 +8,6 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
-import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
@@ -38,12 +37,6 @@ public class SettingsActivity extends PreferenceActivity implements
         getPreferenceManager().setSharedPreferencesName(Preferences.NAME);
         addPreferencesFromResource(R.xml.preferences);
 
-        // Both not yet implemented, so disable.  TODO(bradfitz): implement.
-        CheckBoxPreference autoDiscoverPref = (CheckBoxPreference) findPreference(Preferences.KEY_AUTO_DISCOVER);
-        autoDiscoverPref.setEnabled(false);
-        CheckBoxPreference autoConnectPref = (CheckBoxPreference) findPreference(Preferences.KEY_AUTO_CONNECT);
-        autoConnectPref.setEnabled(false);
-
         addrPref = (EditTextPreference) findPreference(Preferences.KEY_SERVERADDR);
         addrPref.setOnPreferenceChangeListener(this);
         
@@ -1,20 +1,25 @@
 package com.danga.squeezer;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.util.Arrays;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -23,12 +28,18 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.DhcpInfo;
+import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class SqueezeService extends Service {
@@ -36,6 +47,51 @@ public class SqueezeService extends Service {
     private static final int PLAYBACKSERVICE_STATUS = 1;
 
     private static final int DEFAULT_PORT = 9090;
+
+    // The server pushes status on every change anyway, and we extrapolate
+    // the song position between pushes, so this is just to catch drift.
+    private static final int STATUS_SUBSCRIBE_INTERVAL_SECONDS = 30;
+    // How often the players we're not subscribed to are polled, to catch
+    // what "listen" events don't tell us (e.g. elapsed time after a seek).
+    private static final int PLAYER_REFRESH_INTERVAL_SECONDS = 60;
+    // Players asked for per "players" request.
+    private static final int PLAYERS_PAGE_SIZE = 100;
+    // Same, for players on a dashboard's screen.
+    private static final int VISIBLE_PLAYER_REFRESH_SECONDS = 10;
+    private static final int CLOCK_DRIFT_TOLERANCE_MILLIS = 1500;
+
+    private static final long REQUEST_TIMEOUT_MILLIS = 10000;
+
+    // Reconnecting after the connection drops: the first retry within a
+    // second, backing off to one every couple of minutes.
+    private static final long RECONNECT_INITIAL_MILLIS = 1000;
+    private static final long RECONNECT_MAX_MILLIS = 2 * 60 * 1000;
+    // Retries before clients are told we're disconnected, so a blip
+    // shorter than that never shows.
+    private static final int QUIET_RECONNECT_ATTEMPTS = 2;
+
+    // Where the connection is at (connectionState):
+    private static final int STATE_DISCONNECTED = 0;          // as asked, or never connected
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_CONNECTED = 2;
+    private static final int STATE_WAITING_TO_RECONNECT = 3;  // dropped; a retry is scheduled
+    private static final int STATE_WAITING_FOR_NETWORK = 4;   // dropped, and no network to retry on
+
+    // How long to stay subscribed to status updates
+    // after the last client goes away.
+    private static final int UNSUBSCRIBE_DELAY_SECONDS = 10;
+
+    // How many upcoming playlist entries to fetch album art for ahead of
+    // time, so it's there the moment the song changes.
+    private static final int ART_PREFETCH_COUNT = 3;
+
+    // Most results one search returns.
+    private static final int SEARCH_LIMIT = 50;
+    // How long typing has to pause before a search goes to the server.
+    private static final long SEARCH_DEBOUNCE_MILLIS = 300;
+
+    // Library items handed to a client at a time as a page streams in.
+    private static final int BROWSE_BATCH_SIZE = 25;
 	
     // Incremented once per new connection and given to the Thread
     // that's listening on the socket.  So if it dies and it's not the
@@ -45,25 +101,99 @@ public class SqueezeService extends Service {
 
     private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
 
+    // Fetches album art ahead of time.  One at a time, so it doesn't
+    // compete with anything the user is waiting for.
+    private final ScheduledThreadPoolExecutor artPrefetchExecutor = new ScheduledThreadPoolExecutor(1);
+    // Only used on artPrefetchExecutor's thread.
+    private final AlbumArtDecoder artPrefetchDecoder = new AlbumArtDecoder();
+    // "<player> <index>/<tracks>" of the last prefetch, so each playlist
+    // position is only prefetched once.
+    private final AtomicReference<String> lastArtPrefetch = new AtomicReference<String>();
+
+    // The on-device library, and the only thread that touches it.
+    private LibraryIndex libraryIndex;
+    private LibrarySync librarySync;
+    private final ScheduledThreadPoolExecutor libraryExecutor = new ScheduledThreadPoolExecutor(1);
+
+    // Names in libraryIndex, for search as you type.  Built on
+    // libraryExecutor whenever the index changes; null until then.
+    private volatile SearchIndex searchIndex;
+    // Runs searches.  Not libraryExecutor, so a sync can't hold up a
+    // keystroke.
+    private final ScheduledThreadPoolExecutor searchExecutor = new ScheduledThreadPoolExecutor(1);
+    // Bumped by every search, so a superseded one can tell.
+    private final AtomicInteger searchGeneration = new AtomicInteger(0);
+    // Server discovery, which blocks for a couple of seconds.
+    private final ScheduledThreadPoolExecutor discoveryExecutor = new ScheduledThreadPoolExecutor(1);
+    private final AtomicBoolean discovering = new AtomicBoolean(false);
+    // The search the server is working on, if any.
+    private final AtomicReference<CommandPipeline.Request> serverSearch =
+        new AtomicReference<CommandPipeline.Request>();
+
+    // Library pages still coming, per client, so a client's can be
+    // cancelled when it goes away.  Guarded by itself.
+    private final Map<IBinder, List<BrowsePage>> browsePages =
+        new HashMap<IBinder, List<BrowsePage>>();
+
+    // Replies to our requests, matched up with the requests.
+    private final CommandPipeline cliRequests = new CommandPipeline(executor);
+    // Only used on the ListeningThread.
+    private final StatusLineParser statusParser = new StatusLineParser();
+
     // Connection state:
-    // TODO: this is getting ridiculous. Move this into ConnectionState class.
-    private final AtomicBoolean isConnected = new AtomicBoolean(false);
-    private final AtomicBoolean isPlaying = new AtomicBoolean(false);
-    private final AtomicBoolean isPoweredOn = new AtomicBoolean(false);
+    private final Object connectionLock = new Object();
+    // Guarded by connectionLock:
+    private int connectionState = STATE_DISCONNECTED;
+    // Bumped by each connect attempt and by disconnect(), so an attempt
+    // still opening its socket can tell it's no longer wanted.
+    private int connectAttempt;
+    private final Backoff reconnectBackoff = new Backoff(RECONNECT_INITIAL_MILLIS, RECONNECT_MAX_MILLIS);
+    private ScheduledFuture<?> pendingReconnect;
+    private boolean clientsToldDisconnected;
+    // Whether the next reconnect attempt was asked for via startConnect(),
+    // and so owes its result to a waiting client.
+    private boolean reconnectReportsResult;
+    // Set by an explicit disconnect, so auto-connect leaves it be until
+    // the next connect.
+    private volatile boolean userDisconnected;
+    // For auto-connect, which acts when the network comes back.  Only
+    // used on the main thread.
+    private boolean hadNetwork;
     private final AtomicReference<Socket> socketRef = new AtomicReference<Socket>();
-    private final AtomicReference<IServiceCallback> callback =
-        new AtomicReference<IServiceCallback>();
-    private final AtomicReference<PrintWriter> socketWriter = new AtomicReference<PrintWriter>();
+    private final CallbackDispatcher callbacks = new CallbackDispatcher(
+        new CallbackDispatcher.ClientCountListener() {
+            public void onClientCountChanged(int oldCount, int newCount) {
+                // Refcounted: only the first client in and the last one out
+                // change our server subscription.
+                if ((oldCount == 0) != (newCount == 0)) {
+                    updatePlayerSubscriptionState();
+                }
+            }
+        });
+    // Pending "unsubscribe" after the last client left, if any.
+    private final AtomicReference<ScheduledFuture<?>> pendingUnsubscribe =
+        new AtomicReference<ScheduledFuture<?>>();
+    private final AtomicReference<CommandWriter> commandWriter = new AtomicReference<CommandWriter>();
     private final AtomicReference<String> activePlayerId = new AtomicReference<String>();
     private final AtomicReference<Map<String, SqueezePlayer>> knownPlayers = 
         new AtomicReference<Map<String, SqueezePlayer>>();
 
-    private final AtomicReference<String> currentSong = new AtomicReference<String>();
-    private final AtomicReference<String> currentArtist = new AtomicReference<String>();
-    private final AtomicReference<String> currentAlbum = new AtomicReference<String>();
-    private final AtomicReference<String> currentArtworkTrackId = new AtomicReference<String>();
-    private final AtomicReference<Integer> currentTimeSecond = new AtomicReference<Integer>();
-    private final AtomicReference<Integer> currentSongDuration = new AtomicReference<Integer>();
+    // What the active player is doing.  Always replaced as a whole (see
+    // publishStatus), never piecemeal, so readers get a consistent view.
+    private final AtomicReference<PlayerStatus> playerStatus =
+        new AtomicReference<PlayerStatus>(PlayerStatus.EMPTY);
+    // The latest status of every known player, the active one included,
+    // so switching players can show something without a round trip.
+    // Fed from "listen" events and refreshPlayerStatuses().
+    private final ConcurrentHashMap<String, PlayerStatus> playerStatuses =
+        new ConcurrentHashMap<String, PlayerStatus>();
+    private final AtomicReference<ScheduledFuture<?>> playerRefresh =
+        new AtomicReference<ScheduledFuture<?>>();
+    // Players a dashboard is showing, and the polling that keeps them fresh.
+    private final AtomicReference<Set<String>> visiblePlayers =
+        new AtomicReference<Set<String>>(Collections.<String>emptySet());
+    private final AtomicReference<ScheduledFuture<?>> visiblePlayerRefresh =
+        new AtomicReference<ScheduledFuture<?>>();
 
     // Where we connected (or are connecting) to:
     private final AtomicReference<String> currentHost = new AtomicReference<String>();
@@ -71,8 +201,16 @@ public class SqueezeService extends Service {
     private final AtomicReference<Integer> cliPort = new AtomicReference<Integer>();
     
     private boolean debugLogging = false;
+
+    // Set to true to parse server lines the old way (split(" ") and a
+    // URLDecoder call per token) to compare against CliLineTokenizer.
+    private static final boolean LEGACY_LINE_PARSING = false;
+
+    // Only touched from the ListeningThread.
+    private final CliLineTokenizer lineTokenizer = new CliLineTokenizer(LEGACY_LINE_PARSING);
     
     private WifiManager.WifiLock wifiLock;
+    private AlbumArtCache albumArtCache;
     private SharedPreferences preferences;
 
     @Override
@@ -86,8 +224,25 @@ public class SqueezeService extends Service {
         wifiLock = ((WifiManager) getSystemService(Context.WIFI_SERVICE)).createWifiLock(
                 WifiManager.WIFI_MODE_FULL, "Squeezer_WifiLock");
         
+        albumArtCache = AlbumArtCache.get(this);
+
+        libraryIndex = new LibraryIndex(this);
+        librarySync = new LibrarySync(libraryIndex, new LibrarySync.RequestSender() {
+            public CommandPipeline.Request sendRequest(String command,
+                    CommandPipeline.ResponseHandler handler, long timeoutMillis) {
+                return SqueezeService.this.sendRequest(command, handler, timeoutMillis);
+            }
+        }, libraryExecutor, new LibrarySync.Listener() {
+            public void onIndexCurrent(boolean changed) {
+                if (changed || searchIndex == null) buildSearchIndex();
+            }
+        });
+
         preferences = getSharedPreferences(Preferences.NAME, MODE_PRIVATE);
         debugLogging = preferences.getBoolean(Preferences.KEY_DEBUG_LOGGING, false);
+
+        hadNetwork = hasNetwork();
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 	
     @Override
@@ -98,284 +253,561 @@ public class SqueezeService extends Service {
     @Override
 	public void onDestroy() {
         super.onDestroy();
+        unregisterReceiver(connectivityReceiver);
         disconnect();
-        callback.set(null);
+        callbacks.kill();
+        artPrefetchExecutor.shutdownNow();
+        searchExecutor.shutdownNow();
+        discoveryExecutor.shutdownNow();
+        libraryExecutor.execute(new Runnable() {
+            public void run() {
+                libraryIndex.close();
+            }
+        });
+        libraryExecutor.shutdown();
     }
 
+    // Drops the connection, and everything we knew through it.  Abandons
+    // any connect under way.
     private void disconnect() {
-        currentConnectionGeneration.incrementAndGet();
-        Socket socket = socketRef.get();
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {}
+        synchronized (connectionLock) {
+            connectionState = STATE_DISCONNECTED;
+            connectAttempt++;
+            cancelPendingReconnect();
         }
-        socketRef.set(null);
-        socketWriter.set(null);
-        isConnected.set(false);
-        isPlaying.set(false);
+        forgetConnection();
+    }
+
+    // Closes the connection, and forgets everything we knew through it.
+    private void forgetConnection() {
+        closeConnection();
+        visiblePlayers.set(Collections.<String>emptySet());
+        ScheduledFuture<?> refresh = visiblePlayerRefresh.getAndSet(null);
+        if (refresh != null) refresh.cancel(false);
+        playerStatus.set(PlayerStatus.EMPTY);
+        playerStatuses.clear();
         knownPlayers.set(null);
         setConnectionState(false, false);
         clearOngoingNotification();
-        currentSong.set(null);
-        currentArtist.set(null);
-        currentAlbum.set(null);
-        currentArtworkTrackId.set(null);
         httpPort.set(null);
         activePlayerId.set(null);
-        currentTimeSecond.set(null);
-        currentSongDuration.set(null);
+        lastArtPrefetch.set(null);
     }
 
-    private synchronized void sendCommand(String... commands) {
+    // Closes the socket, but keeps the players, their statuses and which
+    // is active, to resume with.
+    private void closeConnection() {
+        currentConnectionGeneration.incrementAndGet();
+        closeQuietly(socketRef.getAndSet(null));
+        CommandWriter writer = commandWriter.getAndSet(null);
+        if (writer != null) writer.close();
+        librarySync.stop();
+        cliRequests.failAll();
+        ScheduledFuture<?> refresh = playerRefresh.getAndSet(null);
+        if (refresh != null) refresh.cancel(false);
+    }
+
+    // Queues the commands for the CommandWriter thread; never blocks, so
+    // it's safe from binder threads and the ListeningThread.
+    private void sendCommand(String... commands) {
         if (commands.length == 0) return;
-        PrintWriter writer = socketWriter.get();
+        CommandWriter writer = commandWriter.get();
         if (writer == null) return;
-        if (commands.length == 1) {
-            Log.v(TAG, "SENDING: " + commands[0]);
-            writer.println(commands[0]);
-        } else {
-            // Get it into one packet by deferring flushing...
+        if (debugLogging) {
             for (String command : commands) {
-                writer.print(command + "\n");
+                Log.v(TAG, "SENDING: " + command);
             }
-            writer.flush();
+        }
+        if (!writer.enqueue(commands)) {
+            Log.w(TAG, "Dropped commands; writer " + writer);
         }
     }
 	
     private void sendPlayerCommand(String command) {
-        if (activePlayerId == null) {
+        String playerId = activePlayerId.get();
+        if (playerId == null) {
             return;
         }
-        sendCommand(activePlayerId + " " + command);
+        sendCommand(URLEncoder.encode(playerId) + " " + command);
     }
 	
-    private void onLineReceived(String serverLine) {
-        if (debugLogging) Log.v(TAG, "LINE: " + serverLine);
-        List<String> tokens = Arrays.asList(serverLine.split(" "));
-        if (tokens.size() < 2) {
-            return;
-        }
-        if (serverLine.startsWith("players 0 100 count")) {
-            parsePlayerList(tokens);
+    // line[offset, offset+length) is the start of a line still arriving.
+    // Returns where to feed all of it if a request wants it a record at a
+    // time, else null.
+    private CliRecordSplitter onPartialLineReceived(char[] line, int offset, int length) {
+        CliLineTokenizer tokens = lineTokenizer;
+        tokens.reset(line, offset, length);
+        CliRecordSplitter splitter = cliRequests.dispatchPartial(tokens);
+        if (splitter != null && debugLogging) {
+            Log.v(TAG, "Streaming reply: " + tokens.line().substring(0, Math.min(length, 80)) + "...");
+        }
+        return splitter;
+    }
+
+    // line[offset, offset+length) is the start of a line from the server
+    // that's too long to hold, and is being dropped.
+    private void onLineTooLong(char[] line, int offset, int length) {
+        CliLineTokenizer tokens = lineTokenizer;
+        tokens.reset(line, offset, length);
+        boolean answered = cliRequests.failPartial(tokens);
+        Log.w(TAG, "Dropped a line too long to hold" + (answered ? ", and its request: " : ": ")
+              + tokens.line().substring(0, Math.min(length, 80)) + "...");
+    }
+
+    // line[offset, offset+length) is one line from the server, without the newline.
+    private void onLineReceived(char[] line, int offset, int length) {
+        CliLineTokenizer tokens = lineTokenizer;
+        tokens.reset(line, offset, length);
+        if (debugLogging) Log.v(TAG, "LINE: " + tokens.line());
+        if (cliRequests.dispatch(tokens)) {
+            return;  // a reply to something we asked
+        }
+        if (!tokens.next() || !tokens.next()) {
+            return;  // fewer than two tokens
+        }
+        tokens.rewind();
+        tokens.next();
+        if (tokens.tokenEquals("rescan")) {
+            // "rescan done": the library may have changed.
+            if (tokens.next() && tokens.tokenEquals("done")) {
+                librarySync.start(currentServer());
+            }
             return;
         }
-        if ("pref".equals(tokens.get(0)) &&
-            "httpport".equals(tokens.get(1)) &&
-            tokens.size() >= 3) {
-            httpPort.set(Integer.parseInt(tokens.get(2)));
-            Log.v(TAG, "HTTP port is now: " + httpPort);
+        if (tokens.next() && tokens.tokenEquals("client")) {
+            // A player came, went or was forgotten.
+            tokens.rewind();
+            tokens.next();
+            String playerId = tokens.token();
+            tokens.next();
+            onClientEvent(playerId, tokens);
             return;
         }
-        
-        // Player-specific commands follow.  But we ignore all that aren't for our
-        // active player.
+        tokens.rewind();
+        tokens.next();
+
+        // Player-specific commands follow.  The active player's drive the
+        // UI; other players' just keep their cached status current.
         String activePlayer = activePlayerId.get();
         if (activePlayer == null || activePlayer.length() == 0 ||
-            !decode(tokens.get(0)).equals(activePlayerId.get())) {
-            // Different player that we're not interested in.   
-            // (yet? maybe later.)
+            !tokens.tokenEquals(activePlayer)) {
+            Map<String, SqueezePlayer> players = knownPlayers.get();
+            if (players == null) return;
+            String playerId = tokens.token();
+            if (players.containsKey(playerId) && tokens.next()) {
+                onOtherPlayerEvent(playerId, tokens);
+            }
             return;
         }
-        String command = tokens.get(1);
-        if (command == null) return;
-        if (serverLine.contains("prefset server volume")) {
-            String newVolume = tokens.get(4);
-            Log.v(TAG, "New volume is: " + newVolume);
-            sendNewVolumeCallback(Util.parseDecimalIntOrZero(newVolume));
+        tokens.next();
+        if (tokens.tokenEquals("prefset")) {
+            if (tokens.next() && tokens.tokenEquals("server") &&
+                tokens.next() && tokens.tokenEquals("volume") &&
+                tokens.next()) {
+                int newVolume = tokens.tokenAsDecimalIntOrZero();
+                Log.v(TAG, "New volume is: " + newVolume);
+                publishStatus(playerStatus.get().buildUpon().setVolume(newVolume).build());
+                sendNewVolumeCallback(newVolume);
+            }
             return;
         }
-        if (command.equals("play")) {
+        if (tokens.tokenEquals("play")) {
             setPlayingState(true);
             return;
         }
-        if (command.equals("stop")) {
+        if (tokens.tokenEquals("stop")) {
             setPlayingState(false);
             return;
         }
-        if (command.equals("pause")) {
-            boolean newState = !isPlaying.get();
-            if (tokens.size() >= 3) {
-                String explicitPause = tokens.get(2); 
-                if ("0".equals(explicitPause)) {
-                    newState = true;  // playing.  (unpaused)
-                } else if ("1".equals(explicitPause)) {
-                    newState = false;  // explicitly paused.
-                }
-            }
-            setPlayingState(newState);
+        if (tokens.tokenEquals("pause")) {
+            setPlayingState(PlayerEventParser.parsePauseEvent(tokens, playerStatus.get().isPlaying()));
             return;
         }
-        if (command.equals("status")) {
-            parseStatusLine(tokens);
+        if (tokens.tokenEquals("status")) {
+            parseStatusLine(activePlayer, tokens);
             return;
         }
-        if (command.equals("playlist")) {
-            if (tokens.size() >= 4 && "newsong".equals(tokens.get(2))) {
-                String newSong = decode(tokens.get(3));
-                currentSong.set(newSong);
-                updateOngoingNotification();
-                sendMusicChangedCallback();
+        if (tokens.tokenEquals("playlist")) {
+            if (tokens.next() && tokens.tokenEquals("newsong") && tokens.next()) {
+                String newSong = tokens.token();
+                publishStatus(playerStatus.get().buildUpon().setSong(newSong).build());
                 
                 // Now also ask for the rest of the status.
-                sendPlayerCommand("status - 1 tags:ylqwaJ");
+                requestStatus(activePlayer, "tags:ylqwaJ");
             }
         }
 
     }
 
-    private void sendNewVolumeCallback(int newVolume) {
-        if (callback.get() == null) return;
-        try {
-            callback.get().onVolumeChange(newVolume);
-        } catch (RemoteException e) {
+    // Called with tokens positioned on the token after the player id.
+    private void onOtherPlayerEvent(String playerId, CliLineTokenizer tokens) {
+        if (tokens.tokenEquals("status")) {
+            parseStatusLine(playerId, tokens);
+            return;
+        }
+        boolean playlistEvent = tokens.tokenEquals("playlist");
+        PlayerStatus newStatus = PlayerEventParser.parse(cachedStatus(playerId), tokens,
+                                                         SystemClock.elapsedRealtime());
+        if (newStatus == null) return;
+        updatePlayerStatus(playerId, newStatus);
+        if (playlistEvent) {
+            // "playlist newsong": ask for the rest of the new song.
+            requestStatus(playerId, "tags:ylqwaJ");
         }
     }
 
-    private void sendNewTimeCallback(int secondsIn, int secondsTotal) {
-        if (callback.get() == null) return;
-        try {
-            callback.get().onTimeInSongChange(secondsIn, secondsTotal);
-        } catch (RemoteException e) {
+    // playerId's latest known status, or an empty one for it.
+    private PlayerStatus cachedStatus(String playerId) {
+        PlayerStatus status = playerStatuses.get(playerId);
+        if (status != null) return status;
+        return PlayerStatus.EMPTY.buildUpon().setPlayerId(playerId).build();
+    }
+
+    // Records playerId's new status, and publishes it if that's the
+    // active player.
+    private void updatePlayerStatus(String playerId, PlayerStatus newStatus) {
+        if (playerId.equals(activePlayerId.get())) {
+            publishStatus(newStatus);
+        } else {
+            cacheStatus(newStatus);
         }
     }
-    
-    private void parseStatusLine(List<String> tokens) {
-        int n = 0;
-        boolean musicHasChanged = false;
-        boolean sawArtworkId = false;
-        int time = 0;
-        int duration = 0;
-
-        for (String token : tokens) {
-            n++;
-            if (n <= 2) continue;
-            if (token == null || token.length() == 0) continue;
-            int colonPos = token.indexOf("%3A");
-            if (colonPos == -1) {
-                if (n <= 4) continue;  // e.g. "00%3A04%3A20%3A05%3A09%3A36 status - 1 ...."
-                Log.e(TAG, "Expected colon in status line token: " + token);
-                return;
+
+    // Asks every known player in playerIds (all of them if null) but the
+    // active one, which we're subscribed to, for its status.  Pipelined,
+    // so it's cheap even for many players, and the replies come back
+    // together.
+    private void refreshPlayerStatuses(Set<String> playerIds) {
+        Map<String, SqueezePlayer> players = knownPlayers.get();
+        if (players == null) return;
+        String activePlayer = activePlayerId.get();
+        for (String playerId : players.keySet()) {
+            if (playerId.equals(activePlayer)) continue;
+            if (playerIds == null || playerIds.contains(playerId)) {
+                requestStatus(playerId, "tags:jylqwaJ");
             }
-            String key = decode(token.substring(0, colonPos));
-            String value = decode(token.substring(colonPos + 3));
-            if (key == null || value == null) continue;
-            if (key.equals("mixer volume")) {
-                continue;
-            } else
-            if (key.equals("mode")) {
-                if (value.equals("pause")) {
-                    setPlayingState(false);
-                } else if (value.equals("play")) {
-                    setPlayingState(true);
+        }
+    }
+
+    private void watchPlayers(IServiceCallback callback, List<String> visiblePlayerIds) {
+        callbacks.setWatchingPlayers(callback, visiblePlayerIds != null);
+        Set<String> visible = visiblePlayerIds == null
+            ? Collections.<String>emptySet() : new HashSet<String>(visiblePlayerIds);
+        Set<String> oldVisible = visiblePlayers.getAndSet(visible);
+        if (visible.equals(oldVisible)) return;
+        ScheduledFuture<?> newRefresh = null;
+        if (!visible.isEmpty()) {
+            // Right away, for the ones just scrolled into view, then now
+            // and then.
+            newRefresh = executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    if (callbacks.hasPlayerWatchers()) refreshPlayerStatuses(visiblePlayers.get());
                 }
-                continue;
-            } else
-            if (key.equals("artist")) {
-                if (Util.atomicStringUpdated(currentArtist, value)) musicHasChanged = true;
-                continue;
-            } else
-            if (key.equals("title")) {
-                if (Util.atomicStringUpdated(currentSong, value)) musicHasChanged = true;
-                continue;
-            } else
-            if (key.equals("album")) {
-                if (Util.atomicStringUpdated(currentAlbum, value)) musicHasChanged = true;
-                continue;
-            } else
-            if (key.equals("artwork_track_id")) {
-                currentArtworkTrackId.set(value);
-                sawArtworkId = true;
-                continue;
-            } else
-            if (key.equals("time")) {
-                time = Util.parseDecimalIntOrZero(value);
-                continue;
-            } else
-            if (key.equals("duration")) {
-                duration = Util.parseDecimalIntOrZero(value);
-                continue;
-            } else
-            if (key.equals("power")) {
-            	isPoweredOn.set(Util.parseDecimalIntOrZero(value) == 1);
-                continue;
-            }
-            // TODO: the rest ....
-            // 00%3A04%3A20%3A17%3A04%3A7f status   player_name%3AOffice player_connected%3A1 player_ip%3A10.0.0.73%3A42648 power%3A1 signalstrength%3A0 mode%3Aplay time%3A99.803 rate%3A1 duration%3A224.705 can_seek%3A1 mixer%20volume%3A25 playlist%20repeat%3A0 playlist%20shuffle%3A0 playlist%20mode%3Adisabled playlist_cur_index%3A5 playlist_timestamp%3A1250053991.01067 playlist_tracks%3A46
+            }, 0, VISIBLE_PLAYER_REFRESH_SECONDS, TimeUnit.SECONDS);
         }
-        if (musicHasChanged) {
-            if (!sawArtworkId) {
-                // TODO: we should disambiguate between no artwork because there is no
-                // artwork (explicitly known) and no artwork because it's e.g. Pandora,
-                // in which case we'd use the current cover.jpg URL.
-                currentArtworkTrackId.set(null);
+        ScheduledFuture<?> oldRefresh = visiblePlayerRefresh.getAndSet(newRefresh);
+        if (oldRefresh != null) oldRefresh.cancel(false);
+    }
+
+    private List<PlayerStatus> playerStatusesSnapshot() {
+        List<PlayerStatus> statuses = new ArrayList<PlayerStatus>();
+        Map<String, SqueezePlayer> players = knownPlayers.get();
+        if (players == null) return statuses;
+        for (SqueezePlayer player : players.values()) {
+            statuses.add(cachedStatus(player.getPlayerId()).buildUpon()
+                         .setPlayerName(player.getName()).build());
+        }
+        return statuses;
+    }
+
+    private void sendNewVolumeCallback(int newVolume) {
+        callbacks.onVolumeChange(newVolume);
+    }
+
+    private void sendNewTimeCallback(int secondsIn, int secondsTotal) {
+        callbacks.onTimeInSongChange(secondsIn, secondsTotal);
+    }
+    
+    // Called with tokens positioned on the "status" token.
+    private void parseStatusLine(String playerId, CliLineTokenizer tokens) {
+        boolean active = playerId.equals(activePlayerId.get());
+        PlayerStatus oldStatus = active ? playerStatus.get() : cachedStatus(playerId);
+        PlayerStatus newStatus = statusParser.parse(playerId, oldStatus, tokens,
+                                                    SystemClock.elapsedRealtime());
+        if (newStatus == null) return;
+        updatePlayerStatus(playerId, newStatus);
+        if (active && statusParser.playlistIndex() != -1) {
+            prefetchUpcomingAlbumArt(playerId, statusParser.playlistIndex(),
+                                     statusParser.playlistTracks());
+        }
+    }
+
+    // Looks up the art for the next few playlist entries and warms the
+    // AlbumArtCache with it.  Only on Wi-Fi: on a metered network, art
+    // for songs that may be skipped isn't worth the bytes.
+    private void prefetchUpcomingAlbumArt(final String playerId, int currentIndex, int tracks) {
+        final int size = albumArtCache.getDisplaySize();
+        int count = Math.min(ART_PREFETCH_COUNT, tracks - currentIndex - 1);
+        if (size == 0 || count <= 0) {
+            return;  // nobody's looking at art, or nothing's up next
+        }
+        if (!Util.atomicStringUpdated(lastArtPrefetch, playerId + " " + currentIndex + "/" + tracks)) {
+            return;
+        }
+        if (!isOnWifi()) {
+            return;
+        }
+        sendRequest(URLEncoder.encode(playerId) + " status " + (currentIndex + 1) + " " + count + " tags:J",
+                new CommandPipeline.ResponseHandler() {
+            public void onResponse(CliLineTokenizer tokens) {
+                final List<String> artworkTrackIds = new ArrayList<String>();
+                while (tokens.next()) {
+                    if (tokens.keyEquals("artwork_track_id")) {
+                        artworkTrackIds.add(tokens.value());
+                    }
+                }
+                final String serverUrl = serverUrl();
+                if (artworkTrackIds.isEmpty() || serverUrl == null) return;
+                artPrefetchExecutor.execute(new Runnable() {
+                    public void run() {
+                        for (String artworkTrackId : artworkTrackIds) {
+                            prefetchAlbumArt(serverUrl, playerId, artworkTrackId, size);
+                        }
+                    }
+                });
             }
+            public void onFailure() {
+            }
+        });
+    }
+
+    // Runs on artPrefetchExecutor.
+    private void prefetchAlbumArt(String serverUrl, String playerId, String artworkTrackId, int size) {
+        if (albumArtCache.getFromMemory(artworkTrackId, size) != null) {
+            return;
+        }
+        String url = PlayerStatus.albumArtUrl(serverUrl, playerId, artworkTrackId, "", size, size);
+        byte[] bytes = albumArtCache.load(artworkTrackId, size, ArtworkFetcher.get().newFetch(url));
+        if (bytes == null) {
+            return;
+        }
+        albumArtCache.decode(artworkTrackId, bytes, size, artPrefetchDecoder);
+        if (debugLogging) Log.v(TAG, "Prefetched art for " + artworkTrackId);
+    }
+
+    private boolean isOnWifi() {
+        ConnectivityManager connectivity =
+            (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+        return network != null && network.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    // Makes newStatus the current status and tells everyone what changed.
+    private void publishStatus(PlayerStatus newStatus) {
+        cacheStatus(newStatus);
+        onStatusChanged(playerStatus.getAndSet(newStatus), newStatus);
+    }
+
+    private void cacheStatus(PlayerStatus status) {
+        String playerId = status.getPlayerId();
+        if (playerId == null) return;
+        playerStatuses.put(playerId, status);
+        if (callbacks.hasPlayerWatchers()) {
+            callbacks.onPlayerStatusChanged(
+                    status.buildUpon().setPlayerName(playerName(playerId)).build());
+        }
+    }
+
+    // Diffs two snapshots and fires whatever side effects & callbacks
+    // the differences call for.
+    private void onStatusChanged(PlayerStatus oldStatus, PlayerStatus newStatus) {
+        boolean playingChanged = newStatus.isPlaying() != oldStatus.isPlaying();
+        boolean musicHasChanged = newStatus.musicChangedFrom(oldStatus);
+        if (playingChanged) {
+            updateWifiLock(newStatus.isPlaying());
+        }
+        if (playingChanged || musicHasChanged) {
             updateOngoingNotification();
+        }
+        if (playingChanged) {
+            sendPlayStatusCallback(newStatus.isPlaying());
+        }
+        if (musicHasChanged) {
             sendMusicChangedCallback();
         }
-        Integer lastTimeInteger = currentTimeSecond.get();
-        int lastTime = lastTimeInteger == null ? 0 : lastTimeInteger.intValue();
-        if (musicHasChanged || time != lastTime) {
-            currentTimeSecond.set(time);
-            currentSongDuration.set(duration);
-            sendNewTimeCallback(time, duration);
+        // Clients run the clock themselves between these.
+        if (musicHasChanged || newStatus.clockDriftedFrom(oldStatus, CLOCK_DRIFT_TOLERANCE_MILLIS)) {
+            sendNewTimeCallback(newStatus.getSecondsElapsed(), newStatus.getSecondsTotal());
         }
     }
     
-    private void parsePlayerList(List<String> tokens) {
-        Log.v(TAG, "Parsing player list.");
+    // One page of "players <start> <PLAYERS_PAGE_SIZE>", e.g.
+    // "players 0 100 count%3A2 playerindex%3A0 playerid%3A... name%3A...".
+    // Pages add to the same map; the last one installs it.
+    private final class PlayerListPage extends PlayerListParser {
+        private final int start;
+
+        PlayerListPage(int start, Map<String, SqueezePlayer> players) {
+            super(players);
+            this.start = start;
+        }
+
+        void onEnd() {
+            if (start + PLAYERS_PAGE_SIZE < total && received > 0) {
+                int next = start + PLAYERS_PAGE_SIZE;
+                sendRequest("players " + next + " " + PLAYERS_PAGE_SIZE,
+                            new PlayerListPage(next, players));
+            } else {
+                installPlayerList(players);
+            }
+        }
+
+        public void onFailure() {
+            Log.w(TAG, "No player list.");
+        }
+    }
+
+    private void installPlayerList(Map<String, SqueezePlayer> players) {
+        Log.v(TAG, "Got player list: " + players.size() + " players.");
         // TODO: can this block (sqlite lookup via binder call?)  Might want to move it elsewhere.
-    	final String lastConnectedPlayer = preferences.getString(Preferences.KEY_LASTPLAYER, null);
-    	Log.v(TAG, "lastConnectedPlayer was: " + lastConnectedPlayer);
-        Map<String, SqueezePlayer> players = new LinkedHashMap<String, SqueezePlayer>();
-                
-        int n = 0;
-        SqueezePlayer player = new SqueezePlayer();
-        String defaultPlayerId = null;
+        final String lastConnectedPlayer = preferences.getString(Preferences.KEY_LASTPLAYER, null);
+        Log.v(TAG, "lastConnectedPlayer was: " + lastConnectedPlayer);
+        String activePlayer = activePlayerId.get();  // set if we're resuming
+        String defaultPlayerId = activePlayer != null ? activePlayer : lastConnectedPlayer;
+        if (defaultPlayerId == null || !players.containsKey(defaultPlayerId)) {
+            defaultPlayerId = lastPlayerId(players);  // arbitrary; last one in list.
+        }
+
+        knownPlayers.set(players);
+        playerStatuses.keySet().retainAll(players.keySet());
         
-		for (String token : tokens) {
-            if (++n <= 3) continue;
-            int colonPos = token.indexOf("%3A");
-            if (colonPos == -1) {
-                Log.e(TAG, "Expected colon in playerlist token.");
-                return;
+        callbacks.onPlayersDiscovered();
+        
+        if (defaultPlayerId != null && defaultPlayerId.equals(activePlayer)) {
+            // Resumed; the handshake already asked after it.
+            callbacks.onPlayerChanged(defaultPlayerId, players.get(defaultPlayerId).getName());
+        } else {
+            changeActivePlayer(defaultPlayerId);
+        }
+
+        // Learn what the others are up to, so switching to one is instant.
+        ScheduledFuture<?> oldRefresh = playerRefresh.getAndSet(executor.scheduleWithFixedDelay(
+                new Runnable() {
+                    public void run() {
+                        // Only worth it while somebody might switch.
+                        if (callbacks.clientCount() > 0) refreshPlayerStatuses(null);
+                    }
+                }, 0, PLAYER_REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS));
+        if (oldRefresh != null) oldRefresh.cancel(false);
+    }
+
+    private static String lastPlayerId(Map<String, SqueezePlayer> players) {
+        String last = null;
+        for (String playerId : players.keySet()) last = playerId;
+        return last;
+    }
+
+    // "<playerid> client new|disconnect|reconnect|forget", tokens being on
+    // "client".  Patches the one player's entry instead of re-listing.
+    private void onClientEvent(String playerId, CliLineTokenizer tokens) {
+        if (!tokens.next()) return;
+        Map<String, SqueezePlayer> players = knownPlayers.get();
+        if (players == null) return;  // still listing them; that'll see it
+        if (tokens.tokenEquals("new") || tokens.tokenEquals("reconnect")) {
+            if (players.containsKey(playerId)) {
+                // Back (e.g. after a network blip); it may have changed.
+                requestStatus(playerId, "tags:jylqwaJ");
+            } else {
+                requestPlayerDetails(playerId);
             }
-            String key = token.substring(0, colonPos);
-            String value = decode(token.substring(colonPos + 3));
-            if (debugLogging) Log.v(TAG, "key=" + key + ", value: " + value);
-            if ("playerindex".equals(key)) {
-                maybeAddPlayerToMap(player, players);
-                player = new SqueezePlayer();
-            } else if ("playerid".equals(key)) {
-                player.setPlayerId(value);
-                if (value.equals(lastConnectedPlayer)) {
-                    defaultPlayerId = value;  // Still around, so let's use it.
-                }
-            } else if ("ip".equals(key)) {
-                player.setIp(value);
-            } else if ("name".equals(key)) {
+        } else if (tokens.tokenEquals("disconnect")) {
+            // The server keeps listing it until it's forgotten, so it
+            // stays; its status will say what it's up to.
+            Log.v(TAG, "Player disconnected: " + playerId);
+        } else if (tokens.tokenEquals("forget")) {
+            forgetPlayer(playerId);
+        }
+    }
+
+    // Fetches what "players" would have told us about a player that's new
+    // since, pipelined, and adds it once the last answer is in.
+    private void requestPlayerDetails(final String playerId) {
+        final SqueezePlayer player = new SqueezePlayer();
+        player.setPlayerId(playerId);
+        final String id = URLEncoder.encode(playerId);
+        sendRequest("player name " + id + " ?", new PlayerDetailHandler() {
+            void onValue(String value) {
                 player.setName(value);
-            } else if ("model".equals(key)) {
+            }
+        });
+        sendRequest("player ip " + id + " ?", new PlayerDetailHandler() {
+            void onValue(String value) {
+                player.setIp(value);
+            }
+        });
+        sendRequest("player model " + id + " ?", new PlayerDetailHandler() {
+            void onValue(String value) {
                 player.setModel(value);
-            } else if ("canpoweroff".equals(key)) {
-                player.setCanpoweroff(Util.parseDecimalIntOrZero(value) == 1);
+            }
+        });
+        sendRequest("player canpoweroff " + id + " ?", new PlayerDetailHandler() {
+            void onValue(String value) {
+                player.setCanpoweroff("1".equals(value));
+                // Answers come in order, so this is the last.
+                addKnownPlayer(player);
+            }
+        });
+    }
+
+    // "player <field> <playerid> <value>"
+    private abstract static class PlayerDetailHandler implements CommandPipeline.ResponseHandler {
+        abstract void onValue(String value);
+
+        public void onResponse(CliLineTokenizer tokens) {
+            if (tokens.next() && tokens.next() && tokens.next() && tokens.next()) {
+                onValue(tokens.token());
             }
         }
-        maybeAddPlayerToMap(player, players);
 
-        if (defaultPlayerId == null || !players.containsKey(defaultPlayerId)) {
-            defaultPlayerId = player.getPlayerId();  // arbitrary; last one in list.
+        public void onFailure() {
         }
+    }
 
-        knownPlayers.set(players);
-        
-        if (callback.get() != null) {
-            try {
-                callback.get().onPlayersDiscovered();
-            } catch (RemoteException e) {}
+    private void addKnownPlayer(SqueezePlayer player) {
+        Map<String, SqueezePlayer> players = knownPlayers.get();
+        if (players == null) return;
+        Map<String, SqueezePlayer> newPlayers = new LinkedHashMap<String, SqueezePlayer>(players);
+        PlayerListParser.maybeAddPlayerToMap(player, newPlayers);
+        if (newPlayers.size() == players.size()) return;  // nameless, or raced in already
+        // Copy on write: readers iterate the old map freely.
+        if (!knownPlayers.compareAndSet(players, newPlayers)) return;
+        callbacks.onPlayersDiscovered();
+        String activePlayer = activePlayerId.get();
+        if (activePlayer == null || activePlayer.length() == 0) {
+            changeActivePlayer(player.getPlayerId());  // the first one
+        } else {
+            requestStatus(player.getPlayerId(), "tags:jylqwaJ");
+        }
+    }
+
+    private void forgetPlayer(String playerId) {
+        Map<String, SqueezePlayer> players = knownPlayers.get();
+        if (players == null || !players.containsKey(playerId)) return;
+        Map<String, SqueezePlayer> newPlayers = new LinkedHashMap<String, SqueezePlayer>(players);
+        newPlayers.remove(playerId);
+        if (!knownPlayers.compareAndSet(players, newPlayers)) return;
+        Log.v(TAG, "Player forgotten: " + playerId);
+        playerStatuses.remove(playerId);
+        callbacks.onPlayersDiscovered();
+        if (playerId.equals(activePlayerId.get())) {
+            if (newPlayers.isEmpty()) {
+                activePlayerId.set(null);
+                publishStatus(PlayerStatus.EMPTY);
+                callbacks.onPlayerChanged("", "");
+            } else {
+                changeActivePlayer(lastPlayerId(newPlayers));
+            }
         }
-        
-        changeActivePlayer(defaultPlayerId);
     }
 
     private boolean changeActivePlayer(final String playerId) {
@@ -399,8 +831,13 @@ public class SqueezeService extends Service {
             sendCommand(URLEncoder.encode(oldPlayerId) + " status - 1 subscribe:0");
         }
         
+        if (changed) {
+            // Show what we last knew at once; the fetch below reconciles.
+            publishStatus(cachedStatus(playerId));
+        }
+
         // Start an async fetch of its status.
-        sendPlayerCommand("status - 1 tags:jylqwaJ");
+        requestStatus(playerId, "tags:jylqwaJ");
 
         if (changed) {
             updatePlayerSubscriptionState();
@@ -418,14 +855,10 @@ public class SqueezeService extends Service {
             });
         }
        
-        if (callback.get() != null) {
-            try {
-                if (playerId != null && players.containsKey(playerId)) {
-                    callback.get().onPlayerChanged(playerId, players.get(playerId).getName());
-                } else {
-                    callback.get().onPlayerChanged("", "");
-                }
-            } catch (RemoteException e) {}
+        if (playerId != null && players.containsKey(playerId)) {
+            callbacks.onPlayerChanged(playerId, players.get(playerId).getName());
+        } else {
+            callbacks.onPlayerChanged("", "");
         }
         return true;
     }
@@ -433,81 +866,777 @@ public class SqueezeService extends Service {
     private void updatePlayerSubscriptionState() {
         // Subscribe or unsubscribe to the player's realtime status updates
         // depending on whether we have an Activity or some sort of client
-        // that cares about second-to-second updates.
-        if (callback.get() != null) {
-            sendPlayerCommand("status - 1 subscribe:1");
+        // that cares about status updates.
+        ScheduledFuture<?> unsubscribe = pendingUnsubscribe.getAndSet(null);
+        if (unsubscribe != null) unsubscribe.cancel(false);
+        if (callbacks.clientCount() > 0) {
+            sendPlayerCommand("status - 1 subscribe:" + STATUS_SUBSCRIBE_INTERVAL_SECONDS);
         } else {
-            sendPlayerCommand("status - 1 subscribe:0");
+            // Linger a bit, so e.g. going to the SettingsActivity and back
+            // doesn't drop the subscription and leave the time behind.
+            pendingUnsubscribe.set(executor.schedule(new Runnable() {
+                public void run() {
+                    if (callbacks.clientCount() == 0) {
+                        sendPlayerCommand("status - 1 subscribe:0");
+                    }
+                }
+            }, UNSUBSCRIBE_DELAY_SECONDS, TimeUnit.SECONDS));
         }
     }
 
-    // Add String pair to map if both are non-null and non-empty.    
-    private static void maybeAddPlayerToMap(SqueezePlayer player, Map<String, SqueezePlayer> players) {
-        if (player.getPlayerId() != null && !player.getPlayerId().equals("") && 
-            player.getName() != null && !player.getName().equals("")) {
-            Log.v(TAG, "Adding player: " + player);
-            players.put(player.getPlayerId(), player);
+    // resumed: we already know the players, and have an active one to
+    // pick up again, so ask after it alongside the rest.
+    private void onCliPortConnectionEstablished(Socket socket, boolean resumed) {
+        Thread listeningThread = new ListeningThread(socket,
+                                                     currentConnectionGeneration.incrementAndGet());
+        listeningThread.start();
+
+        // Pipelined, so these all go out in one packet.
+        String firstPlayers = "players 0 " + PLAYERS_PAGE_SIZE;
+        cliRequests.expect(firstPlayers,
+                           new PlayerListPage(0, new LinkedHashMap<String, SqueezePlayer>()),
+                           REQUEST_TIMEOUT_MILLIS);
+        cliRequests.expect("pref httpport ?", new CommandPipeline.ResponseHandler() {
+            public void onResponse(CliLineTokenizer tokens) {
+                // "pref httpport 9000"
+                if (tokens.next() && tokens.next() && tokens.next()) {
+                    httpPort.set(tokens.tokenAsDecimalIntOrZero());
+                    Log.v(TAG, "HTTP port is now: " + httpPort);
+                }
+            }
+            public void onFailure() {
+                Log.w(TAG, "Never learned the HTTP port; no album art.");
+            }
+        }, REQUEST_TIMEOUT_MILLIS);
+        sendCommand("listen 1",
+                firstPlayers,      // first page of players; the rest follow
+                "pref httpport ?"  // learn the HTTP port (needed for images)
+        );
+        String activePlayer = activePlayerId.get();
+        if (resumed && activePlayer != null) {
+            // The new connection has no subscription, and things may have
+            // moved on while we were away.  (Queued within the writer's
+            // batch window, so these go out in the same write.)
+            requestStatus(activePlayer, "tags:jylqwaJ");
+            updatePlayerSubscriptionState();
         }
+
+        // Then, behind those, see whether the library index is current.
+        librarySync.start(currentServer());
     }
 
-    private String decode(String substring) {
+    private void startConnect(String hostPort) {
+        // Common mistakes, based on crash reports...
+        if (hostPort.startsWith("Http://") || hostPort.startsWith("http://")) {
+            hostPort = hostPort.substring(7);
+        }
+
+        // Ending in whitespace?  From LatinIME, probably?
+        while (hostPort.endsWith(" ")) {
+            hostPort = hostPort.substring(0, hostPort.length() - 1);
+        }
+
+        final int port = parsePort(hostPort);
+        final String host = parseHost(hostPort);
+        final String cleanHostPort = host + ":" + port;
+
+        userDisconnected = false;
+        final int attempt;
+        synchronized (connectionLock) {
+            if ((connectionState == STATE_WAITING_TO_RECONNECT
+                 || connectionState == STATE_WAITING_FOR_NETWORK)
+                && cleanHostPort.equals(currentServer())) {
+                // Already on it: try now, and pick up where we left off.
+                reconnectNow(true);
+                return;
+            }
+            cancelPendingReconnect();
+            connectionState = STATE_CONNECTING;
+            attempt = ++connectAttempt;
+        }
+
+        currentHost.set(host);
+        cliPort.set(port);
+        httpPort.set(null);  // not known until later, after connect.
+
+        // Start the off-thread connect.
+        executor.execute(new Runnable() {
+            public void run() {
+                boolean connected = connect(host, port, cleanHostPort, false, attempt);
+                if (!connected) {
+                    synchronized (connectionLock) {
+                        // Disconnected, or connecting elsewhere, meanwhile.
+                        if (attempt != connectAttempt) return;
+                        connectionState = STATE_DISCONNECTED;
+                    }
+                    setConnectionState(false, true);
+                }
+                if (autoDiscover()) {
+                    if (connected) {
+                        // The last good server is the one to try first next time.
+                        preferences.edit()
+                            .putString(Preferences.KEY_LAST_DISCOVERED_SERVER, cleanHostPort)
+                            .commit();
+                    } else {
+                        tryNextDiscoveredServer(cleanHostPort);
+                    }
+                }
+            }
+        });
+    }
+
+    // Runs on the executor, as attempt number attempt.  resume keeps the
+    // players and statuses from the last connection, rather than starting
+    // over.  If disconnect() or another attempt comes along while the
+    // socket is opening, the new socket is closed and this gives up.
+    private boolean connect(String host, int port, String cleanHostPort, boolean resume,
+            int attempt) {
+        synchronized (connectionLock) {
+            if (attempt != connectAttempt) return false;
+        }
+        if (resume) {
+            closeConnection();
+        } else {
+            forgetConnection();
+        }
+        Socket socket = null;
         try {
-            return URLDecoder.decode(substring, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            return "";
+            // Opened via a channel so the ListeningThread can read
+            // with NIO.  Stays in blocking mode.
+            socket = SocketChannel.open().socket();
+            socket.connect(new InetSocketAddress(host, port),
+                           4000 /* ms timeout */);
+        } catch (SocketTimeoutException e) {
+            Log.e(TAG, "Socket timeout connecting to: " + cleanHostPort);
+            closeQuietly(socket);
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "IOException connecting to: " + cleanHostPort);
+            closeQuietly(socket);
+            return false;
         }
+        synchronized (connectionLock) {
+            if (attempt != connectAttempt) {
+                Log.v(TAG, "Connect to " + cleanHostPort + " abandoned meanwhile.");
+                closeQuietly(socket);
+                return false;
+            }
+            // Installed under the lock, so a disconnect() from here on
+            // finds the socket to close.
+            socketRef.set(socket);
+            CommandWriter writer = new CommandWriter(socket.getChannel());
+            writer.start();
+            commandWriter.set(writer);
+            connectionState = STATE_CONNECTED;
+            reconnectBackoff.reset();
+            clientsToldDisconnected = false;
+        }
+        Log.d(TAG, "Connected to: " + cleanHostPort);
+        setConnectionState(true, true);
+        Log.d(TAG, "connection state broadcasted true.");
+        onCliPortConnectionEstablished(socket, resume);
+        return true;
     }
 
-    private void onCliPortConnectionEstablished() {
-        Thread listeningThread = new ListeningThread(socketRef.get(),
-                                                     currentConnectionGeneration.incrementAndGet());
-        listeningThread.start();
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {}
+    }
 
-        sendCommand("listen 1",
-                "players 0 100",   // get first 100 players
-                "pref httpport ?"  // learn the HTTP port (needed for images)
-        );
+    // The ListeningThread lost the connection (not one we closed).  Keeps
+    // everything we know and gets it back, quietly if it's quick.
+    private void onConnectionLost() {
+        synchronized (connectionLock) {
+            if (connectionState != STATE_CONNECTED) return;
+            connectionState = STATE_WAITING_TO_RECONNECT;
+        }
+        closeConnection();
+        scheduleReconnect();
     }
 
-    private void setConnectionState(boolean currentState, boolean postConnect) {
-        isConnected.set(currentState);
-        if (callback.get() == null) {
+    // After losing the connection, or failing to get it back: tries again
+    // after a backoff, or once there's a network to try on.
+    private void scheduleReconnect() {
+        boolean tellClients = false;
+        synchronized (connectionLock) {
+            if (connectionState != STATE_WAITING_TO_RECONNECT) {
+                return;  // disconnected, or connecting afresh, meanwhile
+            }
+            cancelPendingReconnect();
+            if (!hasNetwork()) {
+                Log.v(TAG, "No network; reconnecting once there is.");
+                connectionState = STATE_WAITING_FOR_NETWORK;
+            } else {
+                long delay = reconnectBackoff.nextDelayMillis();
+                Log.v(TAG, "Reconnecting in " + delay + "ms.");
+                connectionState = STATE_WAITING_TO_RECONNECT;
+                pendingReconnect = executor.schedule(reconnect, delay, TimeUnit.MILLISECONDS);
+            }
+            if (!clientsToldDisconnected
+                && (connectionState == STATE_WAITING_FOR_NETWORK
+                    || reconnectBackoff.attempts() > QUIET_RECONNECT_ATTEMPTS)) {
+                clientsToldDisconnected = true;
+                tellClients = true;
+            }
+        }
+        if (tellClients) {
+            // The players and statuses stay, for when we're back.
+            setConnectionState(false, false);
+            clearOngoingNotification();
+        }
+    }
+
+    private final Runnable reconnect = new Runnable() {
+        public void run() {
+            boolean reportResult;
+            int attempt;
+            synchronized (connectionLock) {
+                if (connectionState != STATE_WAITING_TO_RECONNECT) return;
+                pendingReconnect = null;
+                reportResult = reconnectReportsResult;
+                reconnectReportsResult = false;
+                connectionState = STATE_CONNECTING;
+                attempt = ++connectAttempt;
+            }
+            String server = currentServer();
+            Log.v(TAG, "Reconnecting to: " + server);
+            if (!connect(currentHost.get(), cliPort.get(), server, true, attempt)) {
+                synchronized (connectionLock) {
+                    if (attempt != connectAttempt) return;  // see startConnect()
+                    connectionState = STATE_WAITING_TO_RECONNECT;
+                }
+                if (reportResult) setConnectionState(false, true);
+                scheduleReconnect();
+            }
+        }
+    };
+
+    // Skips the rest of the backoff.  Must hold connectionLock.
+    private void reconnectNow(boolean reportResult) {
+        cancelPendingReconnect();
+        reconnectBackoff.reset();
+        reconnectReportsResult |= reportResult;
+        connectionState = STATE_WAITING_TO_RECONNECT;
+        pendingReconnect = executor.schedule(reconnect, 0, TimeUnit.MILLISECONDS);
+    }
+
+    // Must hold connectionLock.
+    private void cancelPendingReconnect() {
+        if (pendingReconnect != null) pendingReconnect.cancel(false);
+        pendingReconnect = null;
+    }
+
+    private boolean hasNetwork() {
+        ConnectivityManager connectivity =
+            (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+        return network != null && network.isConnected();
+    }
+
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onConnectivityChanged();
+        }
+    };
+
+    // On the main thread, whenever the network comes or goes.
+    private void onConnectivityChanged() {
+        boolean network = hasNetwork();
+        boolean networkCameBack = network && !hadNetwork;
+        hadNetwork = network;
+        synchronized (connectionLock) {
+            if (connectionState == STATE_WAITING_TO_RECONNECT
+                || connectionState == STATE_WAITING_FOR_NETWORK) {
+                if (network) {
+                    // No point waiting out the backoff now.
+                    if (networkCameBack || connectionState == STATE_WAITING_FOR_NETWORK) {
+                        reconnectNow(false);
+                    }
+                } else {
+                    cancelPendingReconnect();
+                    connectionState = STATE_WAITING_FOR_NETWORK;
+                }
+                return;
+            }
+            if (connectionState != STATE_DISCONNECTED) return;
+        }
+        if (!networkCameBack || !isOnWifi() || userDisconnected
+            || !preferences.getBoolean(Preferences.KEY_AUTO_CONNECT, false)) {
             return;
         }
+        String server = preferences.getString(Preferences.KEY_SERVERADDR, "");
+        if (server.length() == 0 && autoDiscover()) {
+            server = preferences.getString(Preferences.KEY_LAST_DISCOVERED_SERVER, "");
+        }
+        if (server.length() > 0) {
+            Log.v(TAG, "Wifi is up; auto-connecting to: " + server);
+            startConnect(server);
+        } else if (autoDiscover()) {
+            discoverServers();
+        }
+    }
+
+    // Connected, and not in the middle of a reconnect.
+    private boolean isConnected() {
+        synchronized (connectionLock) {
+            return connectionState == STATE_CONNECTED;
+        }
+    }
+
+    // Not connected, nor connecting or meaning to reconnect.
+    private boolean isIdle() {
+        synchronized (connectionLock) {
+            return connectionState == STATE_DISCONNECTED;
+        }
+    }
+
+    private boolean autoDiscover() {
+        return preferences.getBoolean(Preferences.KEY_AUTO_DISCOVER, false);
+    }
+
+    // Looks for servers in the background, unless already looking.  The
+    // results are remembered best first, and if we're not connected or
+    // connecting by the time they're in, we connect to the best.
+    private void discoverServers() {
+        if (!discovering.compareAndSet(false, true)) return;
+        discoveryExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    List<ServerDiscovery.Server> servers =
+                        new ServerDiscovery(broadcastAddresses(), ServerDiscovery.DISCOVERY_PORT)
+                        .discover();
+                    Log.v(TAG, "Discovered servers: " + servers);
+                    StringBuilder hostPorts = new StringBuilder();
+                    for (ServerDiscovery.Server server : servers) {
+                        if (hostPorts.length() > 0) hostPorts.append(' ');
+                        hostPorts.append(server.hostPort);
+                    }
+                    preferences.edit()
+                        .putString(Preferences.KEY_DISCOVERED_SERVERS, hostPorts.toString())
+                        .commit();
+                    if (!servers.isEmpty() && isIdle()) {
+                        startConnect(servers.get(0).hostPort);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Server discovery failed: " + e);
+                } finally {
+                    discovering.set(false);
+                }
+            }
+        });
+    }
+
+    // Where discovery broadcasts go: the Wifi subnet's broadcast address
+    // if we're on one, and the all-ones one (which some routers drop).
+    private List<InetAddress> broadcastAddresses() {
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        try {
+            DhcpInfo dhcp = ((WifiManager) getSystemService(Context.WIFI_SERVICE)).getDhcpInfo();
+            if (dhcp != null && dhcp.ipAddress != 0) {
+                int broadcast = (dhcp.ipAddress & dhcp.netmask) | ~dhcp.netmask;
+                byte[] quads = new byte[4];
+                for (int k = 0; k < 4; k++) {
+                    quads[k] = (byte) (broadcast >> (k * 8));  // little-endian
+                }
+                addresses.add(InetAddress.getByAddress(quads));
+            }
+            addresses.add(InetAddress.getByName("255.255.255.255"));
+        } catch (UnknownHostException e) {
+            Log.e(TAG, "Bad broadcast address: " + e);
+        }
+        return addresses;
+    }
+
+    // After failing to connect to failedHostPort: tries the next server
+    // discovery found, if any.  Each failure moves down the list, so this
+    // ends.
+    private void tryNextDiscoveredServer(String failedHostPort) {
+        String[] servers = preferences.getString(Preferences.KEY_DISCOVERED_SERVERS, "").split(" ");
+        int next = 0;
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i].equals(failedHostPort)) next = i + 1;
+        }
+        if (next < servers.length && servers[next].length() > 0) {
+            Log.v(TAG, "Trying next discovered server: " + servers[next]);
+            startConnect(servers[next]);
+        }
+    }
+
+    // Names the server we're connected to, for the library index.
+    private String currentServer() {
+        return currentHost.get() + ":" + cliPort.get();
+    }
+
+    // Asks for playerId's status, and takes it on board: published if
+    // playerId is the active player by the time the reply comes in, else
+    // just cached.
+    private void requestStatus(final String playerId, String tags) {
+        sendRequest(URLEncoder.encode(playerId) + " status - 1 " + tags, new CommandPipeline.ResponseHandler() {
+            public void onResponse(CliLineTokenizer tokens) {
+                tokens.next();  // player id
+                tokens.next();  // "status"
+                parseStatusLine(playerId, tokens);
+            }
+            public void onFailure() {
+            }
+        });
+    }
+
+    // Sends command and calls handler with the server's reply to it (or
+    // its failure to reply).
+    private CommandPipeline.Request sendRequest(String command,
+            CommandPipeline.ResponseHandler handler) {
+        return sendRequest(command, handler, REQUEST_TIMEOUT_MILLIS);
+    }
+
+    private CommandPipeline.Request sendRequest(String command,
+            CommandPipeline.ResponseHandler handler, long timeoutMillis) {
+        CommandPipeline.Request request = cliRequests.expect(command, handler, timeoutMillis);
+        CommandWriter writer = commandWriter.get();
+        if (writer == null) return request;  // not connected; it times out
+        if (debugLogging) Log.v(TAG, "SENDING: " + command);
+        if (!writer.enqueueRequest(command)) {
+            Log.w(TAG, "Dropped request; writer " + writer);
+        }
+        return request;
+    }
+
+    // The key naming each item in a reply to category's command, or null
+    // if we don't browse that category.  Every item starts with "id".
+    private static String libraryNameKey(String category) {
+        if ("artists".equals(category)) return "artist";
+        if ("albums".equals(category)) return "album";
+        if ("genres".equals(category)) return "genre";
+        if ("titles".equals(category)) return "title";
+        return null;
+    }
+
+    private boolean browseLibrary(String category, String filter, int start, int count,
+            ILibraryCallback callback) {
+        String nameKey = libraryNameKey(category);
+        if (nameKey == null || !isConnected() || count <= 0) return false;
+        if (filter == null) filter = "";
+        if (librarySync.isCurrent() && LibraryIndex.canQuery(category, filter)) {
+            queryLibraryIndex(category, filter, start, count, callback);
+            return true;
+        }
+        StringBuilder command = new StringBuilder(category)
+            .append(' ').append(start).append(' ').append(count);
+        if (filter != null && filter.length() > 0) {
+            command.append(' ').append(URLEncoder.encode(filter));
+        }
+        if (category.equals("albums")) {
+            command.append(" tags:l");  // album names
+        }
+        BrowsePage page = new BrowsePage(category, nameKey, start, count, callback);
+        synchronized (browsePages) {
+            List<BrowsePage> pages = browsePages.get(callback.asBinder());
+            if (pages == null) {
+                pages = new ArrayList<BrowsePage>();
+                browsePages.put(callback.asBinder(), pages);
+            }
+            pages.add(page);
+        }
+        page.request = sendRequest(command.toString(), page);
+        return true;
+    }
+
+    // Answers a browse from the on-device index instead of the server.
+    private void queryLibraryIndex(final String category, final String filter,
+            final int start, final int count, final ILibraryCallback callback) {
+        libraryExecutor.execute(new Runnable() {
+            public void run() {
+                List<String> ids = new ArrayList<String>();
+                List<String> names = new ArrayList<String>();
+                int total = libraryIndex.query(category, filter, start, count, ids, names);
+                try {
+                    callback.onItemsReceived(category, start, total, ids, names);
+                } catch (RemoteException e) {
+                }
+            }
+        });
+    }
+
+    private void cancelBrowse(ILibraryCallback callback) {
+        List<BrowsePage> pages;
+        synchronized (browsePages) {
+            pages = browsePages.remove(callback.asBinder());
+        }
+        if (pages == null) return;
+        for (BrowsePage page : pages) {
+            page.cancelled = true;
+            if (page.request != null) page.request.cancel();
+        }
+    }
+
+    // One outstanding page of a library listing, e.g. "albums 200 100".
+    // Handed to the client in batches as it arrives.  "count" can come
+    // after the records, so batches before it say the total is -1; the
+    // last batch, even if empty, always has it.
+    private final class BrowsePage extends CommandPipeline.RecordHandler {
+        private final String category;
+        private final String nameKey;
+        private final int start;
+        private final int count;
+        private final ILibraryCallback callback;
+        volatile CommandPipeline.Request request;
+        volatile boolean cancelled;
+
+        // Only touched on the ListeningThread:
+        private int total = -1;   // unknown until "count" is seen
+        private int delivered;    // items handed to the client so far
+        private List<String> ids = new ArrayList<String>();
+        private List<String> names = new ArrayList<String>();
+
+        BrowsePage(String category, String nameKey, int start, int count,
+                ILibraryCallback callback) {
+            super("id");
+            this.category = category;
+            this.nameKey = nameKey;
+            this.start = start;
+            this.count = count;
+            this.callback = callback;
+        }
+
+        // e.g. "albums 0 100 tags%3Al count%3A4231"
+        void onHeader(CliLineTokenizer tokens) {
+            while (tokens.next()) {
+                if (tokens.keyEquals("count")) total = tokens.valueAsDecimalIntOrZero();
+            }
+        }
+
+        // e.g. "id%3A12 album%3AFoo"
+        void onRecord(CliLineTokenizer tokens) {
+            ids.add("");
+            names.add("");
+            int last = ids.size() - 1;
+            while (tokens.next()) {
+                if (!tokens.hasKey()) continue;
+                if (tokens.keyEquals("id")) {
+                    ids.set(last, tokens.value());
+                } else if (tokens.keyEquals(nameKey)) {
+                    names.set(last, tokens.value());
+                } else if (tokens.keyEquals("count")) {
+                    total = tokens.valueAsDecimalIntOrZero();
+                }
+            }
+            if (ids.size() >= BROWSE_BATCH_SIZE) deliver();
+        }
+
+        void onEnd() {
+            finished();
+            if (total < 0) total = 0;
+            deliver();
+            if (cancelled) return;
+            if (delivered < Math.min(count, total - start)) {
+                // Came up short (the library changed?); let the client
+                // ask again rather than wait for the rest.
+                try {
+                    callback.onItemsFailed(category, start);
+                } catch (RemoteException e) {
+                    cancelBrowse(callback);
+                }
+            }
+        }
+
+        public void onFailure() {
+            finished();
+            if (cancelled) return;
+            try {
+                callback.onItemsFailed(category, start);
+            } catch (RemoteException e) {
+                cancelBrowse(callback);
+            }
+        }
+
+        private void deliver() {
+            if (cancelled) return;
+            List<String> batchIds = ids;
+            List<String> batchNames = names;
+            ids = new ArrayList<String>();
+            names = new ArrayList<String>();
+            int batchStart = start + delivered;
+            delivered += batchIds.size();
+            try {
+                callback.onItemsReceived(category, batchStart, total, batchIds, batchNames);
+            } catch (RemoteException e) {
+                cancelBrowse(callback);
+            }
+        }
+
+        private void finished() {
+            synchronized (browsePages) {
+                List<BrowsePage> pages = browsePages.get(callback.asBinder());
+                if (pages == null) return;
+                pages.remove(this);
+                if (pages.isEmpty()) browsePages.remove(callback.asBinder());
+            }
+        }
+    }
+
+    // On libraryExecutor.
+    private void buildSearchIndex() {
+        long startTime = SystemClock.uptimeMillis();
+        SearchIndex.Builder builder = new SearchIndex.Builder();
+        for (String category : new String[] { "artists", "albums", "titles" }) {
+            List<String> ids = new ArrayList<String>();
+            List<String> names = new ArrayList<String>();
+            libraryIndex.query(category, "", 0, Integer.MAX_VALUE, ids, names);
+            for (int i = 0; i < ids.size(); i++) {
+                builder.add(category, ids.get(i), names.get(i));
+            }
+        }
+        searchIndex = builder.build();
+        Log.v(TAG, "Search index of " + searchIndex.size() + " names built in "
+              + (SystemClock.uptimeMillis() - startTime) + "ms");
+    }
+
+    private boolean search(final String query, final ISearchCallback callback) {
+        final int generation = searchGeneration.incrementAndGet();
+        CommandPipeline.Request stale = serverSearch.getAndSet(null);
+        if (stale != null) stale.cancel();
+
+        final SearchIndex index = searchIndex;
+        if (index != null && librarySync.isCurrent()) {
+            // A few milliseconds even for 100k songs, so every keystroke
+            // gets its answer.
+            searchExecutor.execute(new Runnable() {
+                public void run() {
+                    if (generation != searchGeneration.get()) return;
+                    long startTime = SystemClock.uptimeMillis();
+                    List<String> categories = new ArrayList<String>();
+                    List<String> ids = new ArrayList<String>();
+                    List<String> names = new ArrayList<String>();
+                    index.search(query, SEARCH_LIMIT, categories, ids, names);
+                    if (debugLogging) {
+                        Log.v(TAG, "Searched " + index.size() + " names for \"" + query + "\" in "
+                              + (SystemClock.uptimeMillis() - startTime) + "ms");
+                    }
+                    deliverSearchResults(generation, query, categories, ids, names, callback);
+                }
+            });
+            return true;
+        }
+
+        if (!isConnected()) return false;
+        if (query.trim().length() == 0) {
+            deliverSearchResults(generation, query, new ArrayList<String>(),
+                    new ArrayList<String>(), new ArrayList<String>(), callback);
+            return true;
+        }
+        // No index yet: ask the server, but only once typing pauses, and
+        // forget about the question if another comes first.
+        searchExecutor.schedule(new Runnable() {
+            public void run() {
+                if (generation != searchGeneration.get()) return;
+                serverSearch.set(sendRequest(
+                        "search 0 " + SEARCH_LIMIT + " " + URLEncoder.encode("term:" + query),
+                        new ServerSearch(generation, query, callback)));
+            }
+        }, SEARCH_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void deliverSearchResults(int generation, String query, List<String> categories,
+            List<String> ids, List<String> names, ISearchCallback callback) {
+        if (generation != searchGeneration.get()) return;
         try {
-            Log.d(TAG, "pre-call setting callback connection state to: " + currentState);
-            callback.get().onConnectionChanged(currentState, postConnect);
-            Log.d(TAG, "post-call setting callback connection state.");
+            callback.onSearchResults(query, categories, ids, names);
         } catch (RemoteException e) {
         }
     }
+
+    // The server's answer to one search.
+    private final class ServerSearch implements CommandPipeline.ResponseHandler {
+        private final int generation;
+        private final String query;
+        private final ISearchCallback callback;
+
+        ServerSearch(int generation, String query, ISearchCallback callback) {
+            this.generation = generation;
+            this.query = query;
+            this.callback = callback;
+        }
+
+        // e.g. "search 0 50 term%3Afoo count%3A3 contributors_count%3A1
+        // contributor_id%3A12 contributor%3AFoo%20Fighters albums_count%3A1
+        // album_id%3A40 album%3AFoo tracks_count%3A1 track_id%3A901 track%3AFoo"
+        public void onResponse(CliLineTokenizer tokens) {
+            List<String> categories = new ArrayList<String>();
+            List<String> ids = new ArrayList<String>();
+            List<String> names = new ArrayList<String>();
+            while (tokens.next()) {
+                if (!tokens.hasKey()) continue;
+                if (tokens.keyEquals("contributor_id")) {
+                    addItem("artists", tokens.value(), categories, ids, names);
+                } else if (tokens.keyEquals("album_id")) {
+                    addItem("albums", tokens.value(), categories, ids, names);
+                } else if (tokens.keyEquals("track_id")) {
+                    addItem("titles", tokens.value(), categories, ids, names);
+                } else if (tokens.keyEquals("contributor") || tokens.keyEquals("album")
+                           || tokens.keyEquals("track")) {
+                    if (!names.isEmpty()) names.set(names.size() - 1, tokens.value());
+                }
+            }
+            deliverSearchResults(generation, query, categories, ids, names, callback);
+        }
+
+        public void onFailure() {
+            // Timed out, disconnected or superseded; the next keystroke
+            // asks again.
+        }
+
+        private void addItem(String category, String id, List<String> categories,
+                List<String> ids, List<String> names) {
+            categories.add(category);
+            ids.add(id);
+            names.add("");
+        }
+    }
+
+    private void setConnectionState(boolean currentState, boolean postConnect) {
+        Log.d(TAG, "setting callback connection state to: " + currentState);
+        callbacks.onConnectionChanged(currentState, postConnect);
+    }
 	
     private void setPlayingState(boolean state) {
+        PlayerStatus oldStatus;
+        PlayerStatus newStatus;
+        do {
+            // Stop (or restart) the clock where it is right now.
+            long now = SystemClock.elapsedRealtime();
+            oldStatus = playerStatus.get();
+            newStatus = oldStatus.buildUpon()
+                .setElapsed(oldStatus.getElapsedMillisAt(now), now)
+                .setPlaying(state)
+                .build();
+        } while (!playerStatus.compareAndSet(oldStatus, newStatus));
+        cacheStatus(newStatus);
+        onStatusChanged(oldStatus, newStatus);
+    }
+
+    private void updateWifiLock(boolean playing) {
         // TODO: this might be running in the wrong thread.  Is wifiLock thread-safe?
-        if (state && !wifiLock.isHeld()) {
+        if (playing && !wifiLock.isHeld()) {
             Log.v(TAG, "Locking wifi while playing.");
             wifiLock.acquire();
         }
-        if (!state && wifiLock.isHeld()) {
+        if (!playing && wifiLock.isHeld()) {
             Log.v(TAG, "Unlocking wifi.");
             wifiLock.release();
         }
-        
-        isPlaying.set(state);
-        updateOngoingNotification();
-		
-        if (callback.get() == null) {
-            return;
-        }
-        try {
-            callback.get().onPlayStatusChanged(state);
-        } catch (RemoteException e) {
-        }
+    }
 
+    private void sendPlayStatusCallback(boolean playing) {
+        callbacks.onPlayStatusChanged(playing);
     }
 
     private void updateOngoingNotification() {
-        boolean playing = isPlaying.get();  
+        PlayerStatus playerState = playerStatus.get();
+        boolean playing = playerState.isPlaying();
         if (!playing) {
             if (!preferences.getBoolean(Preferences.KEY_NOTIFY_OF_CONNECTION, false)) {
                 clearOngoingNotification();
@@ -521,8 +1650,7 @@ public class SqueezeService extends Service {
         Intent showNowPlaying = new Intent(this, SqueezerActivity.class)
             .setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_REORDER_TO_FRONT);
         PendingIntent pIntent = PendingIntent.getActivity(this, 0, showNowPlaying, 0);
-        String song = currentSong.get();
-        if (song == null) song = "";
+        String song = playerState.getSong();
         if (playing) {
             status.setLatestEventInfo(this, "Music Playing", song, pIntent);
             status.flags |= Notification.FLAG_ONGOING_EVENT;
@@ -536,13 +1664,34 @@ public class SqueezeService extends Service {
     }
 
     private void sendMusicChangedCallback() {
-        if (callback.get() == null) {
+        if (callbacks.clientCount() == 0) {
             return;
         }
-        try {
-            callback.get().onMusicChanged();
-        } catch (RemoteException e) {
-        }
+        callbacks.onMusicChanged(statusSnapshot());
+    }
+
+    // The current status, plus the bits only the service knows, for
+    // handing out to clients.
+    private PlayerStatus statusSnapshot() {
+        PlayerStatus status = playerStatus.get();
+        return status.buildUpon()
+            .setPlayerName(playerName(status.getPlayerId()))
+            .setServerUrl(serverUrl())
+            .build();
+    }
+
+    // Returns the empty string (not null) if unknown.
+    private String playerName(String playerId) {
+        Map<String, SqueezePlayer> players = knownPlayers.get();
+        SqueezePlayer player = (players == null || playerId == null) ? null : players.get(playerId);
+        return player == null ? "" : player.getName();
+    }
+
+    // "http://host:port" of the server's web interface, or null if unknown.
+    private String serverUrl() {
+        Integer port = httpPort.get();
+        if (port == null || port == 0) return null;
+        return "http://" + currentHost.get() + ":" + port;
     }
 
     private void clearOngoingNotification() {
@@ -555,14 +1704,12 @@ public class SqueezeService extends Service {
 
         public void registerCallback(IServiceCallback callback) throws RemoteException {
             Log.v(TAG, "Callback attached.");
-	    	SqueezeService.this.callback.set(callback);
-	    	updatePlayerSubscriptionState();
+	    	callbacks.register(callback);
 	    }
 	    
 	    public void unregisterCallback(IServiceCallback callback) throws RemoteException {
             Log.v(TAG, "Callback detached.");
-	    	SqueezeService.this.callback.compareAndSet(callback, null);
-            updatePlayerSubscriptionState();
+	    	callbacks.unregister(callback);
 	    }
 
 	    public int adjustVolumeBy(int delta) throws RemoteException {
@@ -574,58 +1721,40 @@ public class SqueezeService extends Service {
             return 50 + delta;  // TODO: return non-blocking dead-reckoning value
         }
 
-        public boolean isConnected() throws RemoteException {
-            return isConnected.get();
+        public boolean browseLibrary(String category, String filter, int start, int count,
+                ILibraryCallback callback) throws RemoteException {
+            return SqueezeService.this.browseLibrary(category, filter, start, count, callback);
         }
 
-        public void startConnect(String hostPort) throws RemoteException {
-            // Common mistakes, based on crash reports...
-            if (hostPort.startsWith("Http://") || hostPort.startsWith("http://")) {
-                hostPort = hostPort.substring(7);
-            }
+        public void cancelBrowse(ILibraryCallback callback) throws RemoteException {
+            SqueezeService.this.cancelBrowse(callback);
+        }
 
-            // Ending in whitespace?  From LatinIME, probably?
-            while (hostPort.endsWith(" ")) {
-                hostPort = hostPort.substring(0, hostPort.length() - 1);
-            }
+        public boolean playLibraryItem(String filter) throws RemoteException {
+            if (activePlayerId.get() == null) return false;
+            sendPlayerCommand("playlistcontrol cmd:load " + URLEncoder.encode(filter));
+            return true;
+        }
 
-            final int port = parsePort(hostPort);
-            final String host = parseHost(hostPort);
-            final String cleanHostPort = host + ":" + port;
+        public boolean search(String query, ISearchCallback callback) throws RemoteException {
+            return SqueezeService.this.search(query, callback);
+        }
 
-            currentHost.set(host);
-            cliPort.set(port);
-            httpPort.set(null);  // not known until later, after connect.
-            
-            // Start the off-thread connect.
-            executor.execute(new Runnable() {
-                public void run() {
-                    SqueezeService.this.disconnect();
-                    Socket socket = new Socket();
-                    try {
-                        socket.connect(new InetSocketAddress(host, port),
-                                       4000 /* ms timeout */);
-                        socketRef.set(socket);
-                        Log.d(TAG, "Connected to: " + cleanHostPort);
-                        socketWriter.set(new PrintWriter(socket.getOutputStream(), true));
-                        Log.d(TAG, "writer == " + socketWriter.get());
-                        setConnectionState(true, true);
-                        Log.d(TAG, "connection state broadcasted true.");
-                        onCliPortConnectionEstablished();
-                    } catch (SocketTimeoutException e) {
-                        Log.e(TAG, "Socket timeout connecting to: " + cleanHostPort);
-                        setConnectionState(false, true);
-                    } catch (IOException e) {
-                        Log.e(TAG, "IOException connecting to: " + cleanHostPort);
-                        setConnectionState(false, true);
-                    }
-                }
+        public boolean isConnected() throws RemoteException {
+            return SqueezeService.this.isConnected();
+        }
 
-            });
+        public void startConnect(String hostPort) throws RemoteException {
+            SqueezeService.this.startConnect(hostPort);
+        }
+
+        public void discoverServers() throws RemoteException {
+            SqueezeService.this.discoverServers();
         }
 
         public void disconnect() throws RemoteException {
-            if (!isConnected()) return;
+            userDisconnected = true;
+            if (!isConnected() && isIdle()) return;
             SqueezeService.this.disconnect();
         }
 
@@ -647,17 +1776,17 @@ public class SqueezeService extends Service {
         }
         
         public boolean canPowerOn() {
-        	return canPower() && !isPoweredOn.get();
+        	return canPower() && !playerStatus.get().isPoweredOn();
         }
         
         public boolean canPowerOff() {
-        	return canPower() && isPoweredOn.get();
+        	return canPower() && playerStatus.get().isPoweredOn();
         }
         
         private boolean canPower() {
             Map<String, SqueezePlayer> players = knownPlayers.get();
         	SqueezePlayer activePlayer = (players == null ? null : players.get(activePlayerId.get()));
-        	return isConnected.get() && activePlayer != null && activePlayer.isCanpoweroff();
+        	return SqueezeService.this.isConnected() && activePlayer != null && activePlayer.isCanpoweroff();
         }
 		
         public boolean togglePausePlay() throws RemoteException {
@@ -665,7 +1794,7 @@ public class SqueezeService extends Service {
                 return false;
             }
             Log.v(TAG, "pause...");
-            if (isPlaying.get()) {
+            if (playerStatus.get().isPlaying()) {
                 setPlayingState(false);
                 // NOTE: we never send ambiguous "pause" toggle commands (without the '1')
                 // because then we'd get confused when they came back in to us, not being
@@ -687,7 +1816,7 @@ public class SqueezeService extends Service {
                 return false;
             }
             Log.v(TAG, "play..");
-            isPlaying.set(true);
+            setPlayingState(true);
             sendPlayerCommand("play");
             Log.v(TAG, "played.");
             return true;
@@ -697,7 +1826,7 @@ public class SqueezeService extends Service {
             if (!isConnected()) {
                 return false;
             }
-            isPlaying.set(false);
+            setPlayingState(false);
             sendPlayerCommand("stop");
             return true;
         }
@@ -719,7 +1848,7 @@ public class SqueezeService extends Service {
         }
         
         public boolean isPlaying() throws RemoteException {
-            return isPlaying.get();
+            return playerStatus.get().isPlaying();
         }
 
         public boolean getPlayers(List<String> playerIds, List<String> playerNames)
@@ -754,44 +1883,40 @@ public class SqueezeService extends Service {
         }
 
         public String currentAlbum() throws RemoteException {
-            return Util.nonNullString(currentAlbum);
+            return playerStatus.get().getAlbum();
         }
 
         public String currentArtist() throws RemoteException {
-            return Util.nonNullString(currentArtist);
+            return playerStatus.get().getArtist();
         }
 
         public String currentSong() throws RemoteException {
-            return Util.nonNullString(currentSong);
+            return playerStatus.get().getSong();
         }
 
         public String currentAlbumArtUrl() throws RemoteException {
-            Integer port = httpPort.get();
-            if (port == null || port == 0) return "";
-            String artworkTrackId = currentArtworkTrackId.get();
-            if (artworkTrackId != null) {
-                Log.v(TAG, "artwork track ID = " + artworkTrackId);
-                return "http://" + currentHost.get() + ":" + port
-                    + "/music/" + artworkTrackId + "/cover.jpg";
-            } else {
-                // Return the "current album art" URL instead, with the cache-buster
-                // of the song name in it, to force the activity to reload when
-                // listening to e.g. Pandora, where there is no artwork_track_id (tag J)
-                // in the status.
-                return "http://" + currentHost.get() + ":" + port
-                    + "/music/current/cover?player=" + activePlayerId.get()
-                    + "&song=" + URLEncoder.encode(currentSong());
-            }
+            return statusSnapshot().getAlbumArtUrl();
+        }
+
+        public PlayerStatus getStatusSnapshot() throws RemoteException {
+            return statusSnapshot();
+        }
+
+        public List<PlayerStatus> getPlayerStatuses() throws RemoteException {
+            return playerStatusesSnapshot();
+        }
+
+        public void watchPlayers(IServiceCallback callback, List<String> visiblePlayerIds)
+                throws RemoteException {
+            SqueezeService.this.watchPlayers(callback, visiblePlayerIds);
         }
 
         public int getSecondsElapsed() throws RemoteException {
-            Integer seconds = currentTimeSecond.get();
-            return seconds == null ? 0 : seconds.intValue();
+            return playerStatus.get().getSecondsElapsed();
         }
 
         public int getSecondsTotal() throws RemoteException {
-            Integer seconds = currentSongDuration.get();
-            return seconds == null ? 0 : seconds.intValue();
+            return playerStatus.get().getSecondsTotal();
         }
 
         public void preferenceChanged(String key) throws RemoteException {
@@ -804,12 +1929,27 @@ public class SqueezeService extends Service {
                 debugLogging = preferences.getBoolean(key, false);
                 return;
             }
+            if (Preferences.KEY_AUTO_DISCOVER.equals(key)) {
+                if (autoDiscover()) discoverServers();
+                return;
+            }
         }
     };
 
-    private class ListeningThread extends Thread {
+    private class ListeningThread extends Thread implements CliLineReader.Listener {
+        // Status subscriptions push a line a second per player; read them in
+        // big gulps rather than the old 128 char BufferedReader refills.
+        private static final int READ_BUFFER_SIZE = 16 * 1024;
+        // A line still arriving once this long is offered to the request
+        // it answers a record at a time, if that request wants it so.
+        private static final int STREAM_THRESHOLD = READ_BUFFER_SIZE / 4;
+        // A line no request streams is held whole until it ends; past this
+        // it's dropped instead, and the request it answers failed.
+        private static final int MAX_LINE_BYTES = 1024 * 1024;
+
         private final Socket socket;
         private final int generationNumber; 
+
         public ListeningThread(Socket socket, int generationNumber) {
             this.socket = socket;
             this.generationNumber = generationNumber;
@@ -817,41 +1957,36 @@ public class SqueezeService extends Service {
 		
         @Override
             public void run() {
-            BufferedReader in;
+            IOException exception = null;
             try {
-                in = new BufferedReader(
-                                        new InputStreamReader(socket.getInputStream()),
-                                        128);
+                new CliLineReader(socket.getChannel(), READ_BUFFER_SIZE, STREAM_THRESHOLD,
+                                  MAX_LINE_BYTES, this).run();
             } catch (IOException e) {
-                Log.v(TAG, "IOException while creating BufferedReader: " + e);
-                SqueezeService.this.disconnect();
-                return;
+                exception = e;
             }
-            IOException exception = null;
-            while (true) {
-                String line;
-                try {
-                    line = in.readLine();
-                } catch (IOException e) {
-                    line = null;
-                    exception = e;
-                }
-                if (line == null) {
-                    // Socket disconnected.  This is expected
-                    // if we're not the main connection generation anymore,
-                    // else we should notify about it.
-                    if (currentConnectionGeneration.get() == generationNumber) {
-                        Log.v(TAG, "Server disconnected; exception=" + exception);
-                        SqueezeService.this.disconnect();
-                    } else {
-                        // Who cares.
-                        Log.v(TAG, "Old generation connection disconnected, as expected.");
-                    }
-                    return;
-                }
-                SqueezeService.this.onLineReceived(line);
+            // Socket disconnected.  This is expected
+            // if we're not the main connection generation anymore,
+            // else we should notify about it.
+            if (currentConnectionGeneration.get() == generationNumber) {
+                Log.v(TAG, "Server disconnected; exception=" + exception);
+                onConnectionLost();
+            } else {
+                // Who cares.
+                Log.v(TAG, "Old generation connection disconnected, as expected.");
             }
         }
+
+        public void onLine(char[] chars, int offset, int length) {
+            SqueezeService.this.onLineReceived(chars, offset, length);
+        }
+
+        public CliRecordSplitter onPartialLine(char[] chars, int offset, int length) {
+            return SqueezeService.this.onPartialLineReceived(chars, offset, length);
+        }
+
+        public void onLineTooLong(char[] chars, int offset, int length) {
+            SqueezeService.this.onLineTooLong(chars, offset, length);
+        }
     }
 
     private static String parseHost(String hostPort) {
@@ -1,9 +1,5 @@
 package com.danga.squeezer;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -23,12 +19,13 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.graphics.drawable.Drawable;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.Html;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -51,6 +48,9 @@ public class SqueezerActivity extends Activity {
     private static final int DIALOG_ABOUT = 1;
     private static final int DIALOG_CONNECTING = 2;
 
+    // The album ImageView's size in main.xml.
+    private static final int ALBUM_ART_SIZE_DIP = 210;
+
     private ISqueezeService serviceStub = null;
     private AtomicBoolean isConnected = new AtomicBoolean(false);
     private AtomicBoolean isPlaying = new AtomicBoolean(false);
@@ -69,6 +69,12 @@ public class SqueezerActivity extends Activity {
     private SeekBar seekBar;
 
     private final ScheduledThreadPoolExecutor backgroundExecutor = new ScheduledThreadPoolExecutor(1);
+    private AlbumArtCache albumArtCache;
+    // Only used from backgroundExecutor's thread (but cancel() from any).
+    private final AlbumArtDecoder albumArtDecoder = new AlbumArtDecoder();
+    // The fetch for currentAlbumArtUrl, so it can be cancelled if that changes.
+    private final AtomicReference<ArtworkFetcher.Fetch> albumArtFetch =
+        new AtomicReference<ArtworkFetcher.Fetch>();
 	
     private ServiceConnection serviceConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName name, IBinder service) {
@@ -80,10 +86,7 @@ public class SqueezerActivity extends Activity {
 
         	        // Assume they want to connect...
         	        if (!isConnected()) {
-        	            String ipPort = getConfiguredCliIpPort();
-        	            if (ipPort != null) {
-        	                startVisibleConnectionTo(ipPort);
-        	            }
+        	            autoConnect();
         	        }
         	    }
         	});
@@ -104,8 +107,13 @@ public class SqueezerActivity extends Activity {
     private String connectingTo = null;
     private ProgressDialog connectingDialog = null;
 
+    // The song position, as of SystemClock.elapsedRealtime() secondsInAt.
+    // The service only tells us when it changes other than by ticking, so
+    // we run the clock ourselves in between.
     private volatile int secondsIn;
+    private volatile long secondsInAt;
     private volatile int secondsTotal;
+    private volatile boolean isResumed = false;
     private final static int UPDATE_TIME = 1;
     
     private Handler uiThreadHandler = new Handler() {
@@ -116,7 +124,7 @@ public class SqueezerActivity extends Activity {
         @Override
         public void handleMessage (Message msg) {
             if (msg.what == UPDATE_TIME) {
-                updateTimeDisplayTo(secondsIn, secondsTotal);
+                updateTimeDisplay();
             }
         }
     };
@@ -153,6 +161,7 @@ public class SqueezerActivity extends Activity {
         nextButton = (ImageButton) findViewById(R.id.next);
         prevButton = (ImageButton) findViewById(R.id.prev);
         albumArt = (ImageView) findViewById(R.id.album);
+        albumArtCache = AlbumArtCache.get(this);
         currentTime = (TextView) findViewById(R.id.currenttime);
         totalTime = (TextView) findViewById(R.id.totaltime);
         seekBar = (SeekBar) findViewById(R.id.seekbar);
@@ -260,7 +269,7 @@ public class SqueezerActivity extends Activity {
     	} else {
             nextButton.setImageResource(android.R.drawable.ic_media_next);
             prevButton.setImageResource(android.R.drawable.ic_media_previous);
-            updateSongInfoFromService();
+            updateSongInfo(getStatusSnapshot());
             seekBar.setEnabled(true);
     	}
     	updatePlayPauseIcon();
@@ -297,6 +306,7 @@ public class SqueezerActivity extends Activity {
     public void onResume() {
         super.onResume();
         Log.d(TAG, "onResume...");
+        isResumed = true;
 
         // Start it and have it run forever (until it shuts itself down).
         // This is required so swapping out the activity (and unbinding the
@@ -322,10 +332,7 @@ public class SqueezerActivity extends Activity {
             // automatically.  (Requires a serviceStub.  Else we'll do this
             // on the service connection callback.)
             if (!isConnected()) {
-                String ipPort = getConfiguredCliIpPort();
-                if (ipPort != null) {
-                    startVisibleConnectionTo(ipPort);
-                }
+                autoConnect();
             }
         }
     }
@@ -344,16 +351,54 @@ public class SqueezerActivity extends Activity {
             return;
         }
 
-        try {
-            setTitleForPlayer(serviceStub.getActivePlayerName());
-            isPlaying.set(serviceStub.isPlaying());
-            updatePlayPauseIcon();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception: " + e);
-        }
-       
+        PlayerStatus status = getStatusSnapshot();
+        setTitleForPlayer(status.getPlayerName());
+        setClockRunning(status.isPlaying());
+        updatePlayPauseIcon();
     }
     
+    // May be called from any thread.
+    private synchronized void setSongClock(int secondsIn, int secondsTotal) {
+        this.secondsIn = secondsIn;
+        this.secondsInAt = SystemClock.elapsedRealtime();
+        this.secondsTotal = secondsTotal;
+        uiThreadHandler.sendEmptyMessage(UPDATE_TIME);
+    }
+
+    // May be called from any thread.  Stops or restarts the song clock
+    // where it is right now, so neither the time spent playing nor the
+    // time spent paused is lost or counted twice.
+    private synchronized void setClockRunning(boolean playing) {
+        boolean wasRunning = isPlaying.getAndSet(playing);
+        if (playing != wasRunning && secondsInAt != 0) {
+            long now = SystemClock.elapsedRealtime();
+            if (wasRunning && isConnected.get()) {
+                int seconds = secondsIn + (int) ((now - secondsInAt) / 1000);
+                secondsIn = secondsTotal > 0 ? Math.min(seconds, secondsTotal) : seconds;
+            }
+            secondsInAt = now;
+        }
+        uiThreadHandler.sendEmptyMessage(UPDATE_TIME);
+    }
+
+    // Should only be called from the UI thread.  Shows where the song clock
+    // is now, and schedules the next tick if it's running.
+    private void updateTimeDisplay() {
+        uiThreadHandler.removeMessages(UPDATE_TIME);
+        int seconds = secondsIn;
+        int total = secondsTotal;
+        if (isPlaying.get() && isConnected.get() && secondsInAt != 0) {
+            long sinceSet = SystemClock.elapsedRealtime() - secondsInAt;
+            seconds += (int) (sinceSet / 1000);
+            if (total > 0 && seconds >= total) {
+                seconds = total;  // the service will tell us about the next song
+            } else if (isResumed) {
+                uiThreadHandler.sendEmptyMessageDelayed(UPDATE_TIME, 1000 - sinceSet % 1000);
+            }
+        }
+        updateTimeDisplayTo(seconds, total);
+    }
+
     private void updateTimeDisplayTo(int secondsIn, int secondsTotal) {
         if (seekBar.getMax() != secondsTotal) {
             seekBar.setMax(secondsTotal);
@@ -364,143 +409,107 @@ public class SqueezerActivity extends Activity {
     }
     
     // Should only be called from the UI thread.
-    private void updateSongInfoFromService() {
-        artistText.setText(getServiceCurrentArtist());
-        albumText.setText(getServiceCurrentAlbum());
-        trackText.setText(getServiceCurrentSong());
-        updateTimeDisplayTo(getSecondsElapsed(), getSecondsTotal());
-        updateAlbumArtIfNeeded();
+    private void updateSongInfo(PlayerStatus status) {
+        artistText.setText(status.getArtist());
+        albumText.setText(status.getAlbum());
+        trackText.setText(status.getSong());
+        isPlaying.set(status.isPlaying());
+        setSongClock(status.getSecondsElapsed(), status.getSecondsTotal());
+        updateAlbumArtIfNeeded(status);
     }
 
     // Should only be called from the UI thread.
-    private void updateAlbumArtIfNeeded() {
-        final String albumArtUrl = getCurrentAlbumArtUrl();
-        if (Util.atomicStringUpdated(currentAlbumArtUrl, albumArtUrl)) {
+    private void updateAlbumArtIfNeeded(PlayerStatus status) {
+        // Have the server scale it to the view, rather than fetch it full size.
+        final int artSize = albumArtSizePx();
+        final String albumArtUrl = status.getAlbumArtUrl(artSize, artSize);
+        if (!Util.atomicStringUpdated(currentAlbumArtUrl, albumArtUrl)) {
+            return;
+        }
+        // Whatever's being fetched or decoded is for the old art.
+        ArtworkFetcher.Fetch oldFetch = albumArtFetch.getAndSet(null);
+        if (oldFetch != null) {
+            oldFetch.cancel();
+        }
+        albumArtDecoder.cancel();
+        final String cacheKey = AlbumArtCache.keyFor(status);
+        if (cacheKey == null) {
             albumArt.setImageDrawable(null);
-            if (albumArtUrl != null && albumArtUrl.length() > 0) {
-                backgroundExecutor.execute(new Runnable() { 
+            return;
+        }
+        albumArtCache.setDisplaySize(artSize);
+        Bitmap cached = albumArtCache.getFromMemory(cacheKey, artSize);
+        if (cached != null) {
+            albumArt.setImageBitmap(cached);
+            return;
+        }
+        albumArt.setImageDrawable(null);
+        final ArtworkFetcher.Fetch fetch = ArtworkFetcher.get().newFetch(albumArtUrl);
+        albumArtFetch.set(fetch);
+        backgroundExecutor.execute(new Runnable() { 
+            public void run() {
+                if (!albumArtUrl.equals(currentAlbumArtUrl.get())) {
+                    // Bail out before fetch the resource if the song
+                    // album art has changed since this Runnable got
+                    // scheduled.
+                    return;
+                }
+                byte[] bytes = albumArtCache.load(cacheKey, artSize, fetch);
+                if (bytes == null || !albumArtUrl.equals(currentAlbumArtUrl.get())) {
+                    return;
+                }
+                final Bitmap bitmap = albumArtCache.decode(cacheKey, bytes, artSize, albumArtDecoder);
+                if (bitmap == null) {
+                    return;
+                }
+                uiThreadHandler.post(new Runnable() {
                     public void run() {
-                        if (!albumArtUrl.equals(currentAlbumArtUrl.get())) {
-                            // Bail out before fetch the resource if the song
-                            // album art has changed since this Runnable got
-                            // scheduled.
-                            return;
+                        if (albumArtUrl.equals(currentAlbumArtUrl.get())) {
+                            // Only set the image if the song art hasn't changed since we
+                            // started and finally fetched the image over the network
+                            // and decoded it.
+                            albumArt.setImageBitmap(bitmap);
                         }
-                        URL url;
-                        InputStream inputStream = null;
-                        boolean gotContent = false;
-                        try {
-                            url = new URL(albumArtUrl);
-                            inputStream = (InputStream) url.getContent();
-                            gotContent = true;
-                        } catch (MalformedURLException e) {
-                        } catch (IOException e) {
-                        } 
-                        if (!gotContent) {
-                            return;
-                        }
-                        final Drawable drawable = Drawable.createFromStream(inputStream, "src");
-                        uiThreadHandler.post(new Runnable() {
-                            public void run() {
-                                if (albumArtUrl.equals(currentAlbumArtUrl.get())) {
-                                    // Only set the image if the song art hasn't changed since we
-                                    // started and finally fetched the image over the network
-                                    // and decoded it.
-                                    albumArt.setImageDrawable(drawable);
-                                }
-                            }
-                        });
                     }
                 });
             }
-        }
-    }
-    
-    private String getActivePlayerId() {
-        if (serviceStub == null) {
-            return "";
-        }
-        try {
-            return serviceStub.getActivePlayerId();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return "";
-    }
-    
-    private int getSecondsElapsed() {
-        if (serviceStub == null) {
-            return 0;
-        }
-        try {
-            return serviceStub.getSecondsElapsed();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return 0;
-    }
-    
-    private int getSecondsTotal() {
-        if (serviceStub == null) {
-            return 0;
-        }
-        try {
-            return serviceStub.getSecondsTotal();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return 0;
-    }
-    
-    private String getServiceCurrentSong() {
-        if (serviceStub == null) {
-            return "";
-        }
-        try {
-            return serviceStub.currentSong();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return "";
+        });
     }
 
-    private String getCurrentAlbumArtUrl() {
-        if (serviceStub == null) {
-            return "";
+    // The album art view's size in pixels, even before it's been laid out.
+    private int albumArtSizePx() {
+        int size = Math.max(albumArt.getWidth(), albumArt.getHeight());
+        if (size > 0) {
+            return size;
         }
-        try {
-            return serviceStub.currentAlbumArtUrl();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return "";
+        return (int) (ALBUM_ART_SIZE_DIP * getResources().getDisplayMetrics().density);
     }
 
-    private String getServiceCurrentAlbum() {
+    private String getActivePlayerId() {
         if (serviceStub == null) {
             return "";
         }
         try {
-            return serviceStub.currentAlbum();
+            return serviceStub.getActivePlayerId();
         } catch (RemoteException e) {
             Log.e(TAG, "Service exception in isConnected(): " + e);
         }
         return "";
     }
     
-    private String getServiceCurrentArtist() {
+    // Never returns null.
+    private PlayerStatus getStatusSnapshot() {
         if (serviceStub == null) {
-            return "";
+            return PlayerStatus.EMPTY;
         }
         try {
-            return serviceStub.currentArtist();
+            return serviceStub.getStatusSnapshot();
         } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
+            Log.e(TAG, "Service exception in getStatusSnapshot(): " + e);
         }
-        return "";
+        return PlayerStatus.EMPTY;
     }
 
-
     private boolean isConnected() {
         if (serviceStub == null) {
             return false;
@@ -540,6 +549,8 @@ public class SqueezerActivity extends Activity {
     @Override
     public void onPause() {
         super.onPause();
+        isResumed = false;
+        uiThreadHandler.removeMessages(UPDATE_TIME);
         if (serviceStub != null) {
             try {
                 serviceStub.unregisterCallback(serviceCallback);
@@ -578,8 +589,12 @@ public class SqueezerActivity extends Activity {
     	// Disable things that don't work when not connected.
         MenuItem players = menu.findItem(R.id.menu_item_players);
         players.setEnabled(connected);
+        MenuItem browse = menu.findItem(R.id.menu_item_browse);
+        browse.setEnabled(connected);
         MenuItem search = menu.findItem(R.id.menu_item_search);
         search.setEnabled(connected);
+        MenuItem dashboard = menu.findItem(R.id.menu_item_dashboard);
+        dashboard.setEnabled(connected);
 
     	return true;	
     }
@@ -620,7 +635,11 @@ public class SqueezerActivity extends Activity {
                     public void onClick(DialogInterface dialog, int indexSelected) {
                         String playerId = playerIds.get(indexSelected);
                         try {
-                            serviceStub.setActivePlayer(playerId);
+                            if (serviceStub.setActivePlayer(playerId)) {
+                                // The service has its last known status;
+                                // show it now rather than after a round trip.
+                                updateSongInfo(serviceStub.getStatusSnapshot());
+                            }
                         } catch (RemoteException e) {
                             Log.e(TAG, "Error setting active player: " + e);
                         }
@@ -654,11 +673,6 @@ public class SqueezerActivity extends Activity {
     @Override
     protected void onPrepareDialog(int id, Dialog dialog) {
         switch (id) {
-        case DIALOG_CHOOSE_PLAYER:
-            // TODO(bradfitz): move most the code above for CHOOSE_PLAYER into here,
-            // where it'll actually re-query the server every time.  This only really
-            // matters if players change while the Service is still running.
-            return;
         case DIALOG_CONNECTING:
             ProgressDialog connectingDialog = (ProgressDialog) dialog;
             connectingDialog.setMessage(
@@ -717,8 +731,19 @@ public class SqueezerActivity extends Activity {
             }
             return true;
       	case R.id.menu_item_players:
+      	    // Players come and go while we run; list the current ones.
+      	    removeDialog(DIALOG_CHOOSE_PLAYER);
       	    showDialog(DIALOG_CHOOSE_PLAYER);
       	    return true;
+        case R.id.menu_item_browse:
+            LibraryActivity.show(this);
+            return true;
+        case R.id.menu_item_search:
+            SearchActivity.show(this);
+            return true;
+        case R.id.menu_item_dashboard:
+            DashboardActivity.show(this);
+            return true;
         case R.id.menu_item_about:
             showDialog(DIALOG_ABOUT);
             return true;
@@ -726,16 +751,43 @@ public class SqueezerActivity extends Activity {
         return super.onMenuItemSelected(featureId, item);
     }
 
-    // Returns null if not configured.
+    // Returns null if not configured.  With auto-discovery and no address
+    // set, the last discovered server we connected to.
     private String getConfiguredCliIpPort() {
         final SharedPreferences preferences = getSharedPreferences(Preferences.NAME, 0);
-        final String ipPort = preferences.getString(Preferences.KEY_SERVERADDR, null);
+        String ipPort = preferences.getString(Preferences.KEY_SERVERADDR, null);
+        if ((ipPort == null || ipPort.length() == 0) && isAutoDiscoverEnabled()) {
+            ipPort = preferences.getString(Preferences.KEY_LAST_DISCOVERED_SERVER, null);
+        }
         if (ipPort == null || ipPort.length() == 0) {
             return null;
         }
         return ipPort;
     }
     
+    private boolean isAutoDiscoverEnabled() {
+        final SharedPreferences preferences = getSharedPreferences(Preferences.NAME, 0);
+        return preferences.getBoolean(Preferences.KEY_AUTO_DISCOVER, false);
+    }
+
+    // Connects to the configured server (with auto-discovery and none
+    // set, the last good one) and has discovery look again in the
+    // background, in case that's gone; the service connects to what it
+    // finds if so.
+    private void autoConnect() {
+        if (isAutoDiscoverEnabled()) {
+            try {
+                serviceStub.discoverServers();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Service exception in discoverServers(): " + e);
+            }
+        }
+        String ipPort = getConfiguredCliIpPort();
+        if (ipPort != null) {
+            startVisibleConnectionTo(ipPort);
+        }
+    }
+
     private void onUserInitiatesConnect() {
         if (serviceStub == null) {
             Log.e(TAG, "serviceStub is null.");
@@ -743,7 +795,12 @@ public class SqueezerActivity extends Activity {
         }
         String ipPort = getConfiguredCliIpPort();
         if (ipPort == null) {
-            SettingsActivity.show(this);
+            if (isAutoDiscoverEnabled()) {
+                autoConnect();
+                Toast.makeText(this, "Looking for servers...", Toast.LENGTH_SHORT).show();
+            } else {
+                SettingsActivity.show(this);
+            }
             return;
         }
         Log.v(TAG, "User-initiated connect to: " + ipPort);
@@ -795,10 +852,10 @@ public class SqueezerActivity extends Activity {
                 setTitleForPlayer(playerName);
             }
 
-            public void onMusicChanged() throws RemoteException {
+            public void onMusicChanged(final PlayerStatus status) throws RemoteException {
                 uiThreadHandler.post(new Runnable() {
                         public void run() {
-                            updateSongInfoFromService();
+                            updateSongInfo(status);
                         }
                     });
             }
@@ -819,15 +876,17 @@ public class SqueezerActivity extends Activity {
 
             public void onPlayStatusChanged(boolean newStatus)
                 throws RemoteException {
-                isPlaying.set(newStatus);
+                setClockRunning(newStatus);
                 updatePlayPauseIcon();
             }
 
             public void onTimeInSongChange(final int secondsIn, final int secondsTotal)
                     throws RemoteException {
-                SqueezerActivity.this.secondsIn = secondsIn;
-                SqueezerActivity.this.secondsTotal = secondsTotal;
-                uiThreadHandler.sendEmptyMessage(UPDATE_TIME);
+                setSongClock(secondsIn, secondsTotal);
+            }
+
+            public void onPlayerStatusesChanged(List<PlayerStatus> statuses) throws RemoteException {
+                // Only the dashboard watches all the players.
             }
         };
 }
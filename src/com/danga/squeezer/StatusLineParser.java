@@ -0,0 +1,119 @@
+package com.danga.squeezer;
+
+import android.util.Log;
+
+/**
+ * Takes a player's "status" line on top of what was known about the
+ * player before.  Strings are only allocated for values that actually
+ * changed, so the steady stream of status lines for a song that's still
+ * playing makes next to no garbage.
+ *
+ * Kept out of SqueezeService, and free of Android but for PlayerStatus,
+ * so tools/ benchmarks the very code the service runs.  Not thread-safe;
+ * the service keeps one for the ListeningThread.
+ */
+final class StatusLineParser {
+    private static final String TAG = "StatusLineParser";
+
+    private int playlistIndex;
+    private int playlistTracks;
+
+    /**
+     * tokens are positioned on the "status" token.  Returns the player's
+     * new status, its song position taken as of now (a
+     * SystemClock.elapsedRealtime()), or null if the line is malformed.
+     */
+    PlayerStatus parse(String playerId, PlayerStatus oldStatus, CliLineTokenizer tokens, long now) {
+        PlayerStatus.Builder status = oldStatus.buildUpon()
+            .setPlayerId(playerId)
+            .setElapsed(0, now)
+            .setSecondsTotal(0);
+        boolean sawArtworkId = false;
+        playlistIndex = -1;
+        playlistTracks = 0;
+
+        while (tokens.next()) {
+            if (!tokens.hasKey()) {
+                if (tokens.index() <= 3) continue;  // e.g. "00%3A04%3A20%3A05%3A09%3A36 status - 1 ...."
+                Log.e(TAG, "Expected colon in status line token: " + tokens.token());
+                return null;
+            }
+            if (tokens.keyEquals("mixer volume")) {
+                status.setVolume(tokens.valueAsDecimalIntOrZero());
+                continue;
+            } else
+            if (tokens.keyEquals("mode")) {
+                if (tokens.valueEquals("pause")) {
+                    status.setPlaying(false);
+                } else if (tokens.valueEquals("play")) {
+                    status.setPlaying(true);
+                }
+                continue;
+            } else
+            if (tokens.keyEquals("artist")) {
+                if (!tokens.valueEquals(status.getArtist())) status.setArtist(tokens.value());
+                continue;
+            } else
+            if (tokens.keyEquals("title")) {
+                if (!tokens.valueEquals(status.getSong())) status.setSong(tokens.value());
+                continue;
+            } else
+            if (tokens.keyEquals("album")) {
+                if (!tokens.valueEquals(status.getAlbum())) status.setAlbum(tokens.value());
+                continue;
+            } else
+            if (tokens.keyEquals("artwork_track_id")) {
+                if (!tokens.valueEquals(status.getArtworkTrackId())) {
+                    status.setArtworkTrackId(tokens.value());
+                }
+                sawArtworkId = true;
+                continue;
+            } else
+            if (tokens.keyEquals("time")) {
+                status.setElapsed(tokens.valueAsMillisOrZero(), now);
+                continue;
+            } else
+            if (tokens.keyEquals("rate")) {
+                status.setRate(tokens.valueAsDecimalIntOrZero());
+                continue;
+            } else
+            if (tokens.keyEquals("duration")) {
+                status.setSecondsTotal(tokens.valueAsDecimalIntOrZero());
+                continue;
+            } else
+            if (tokens.keyEquals("power")) {
+                status.setPoweredOn(tokens.valueAsDecimalIntOrZero() == 1);
+                continue;
+            } else
+            if (tokens.keyEquals("playlist_cur_index")) {
+                playlistIndex = tokens.valueAsDecimalIntOrZero();
+                continue;
+            } else
+            if (tokens.keyEquals("playlist_tracks")) {
+                playlistTracks = tokens.valueAsDecimalIntOrZero();
+                continue;
+            }
+            // TODO: the rest ....
+            // 00%3A04%3A20%3A17%3A04%3A7f status   player_name%3AOffice player_connected%3A1 player_ip%3A10.0.0.73%3A42648 power%3A1 signalstrength%3A0 mode%3Aplay time%3A99.803 rate%3A1 duration%3A224.705 can_seek%3A1 mixer%20volume%3A25 playlist%20repeat%3A0 playlist%20shuffle%3A0 playlist%20mode%3Adisabled playlist_cur_index%3A5 playlist_timestamp%3A1250053991.01067 playlist_tracks%3A46
+        }
+        PlayerStatus newStatus = status.build();
+        if (!sawArtworkId && newStatus.musicChangedFrom(oldStatus)) {
+            // TODO: we should disambiguate between no artwork because there is no
+            // artwork (explicitly known) and no artwork because it's e.g. Pandora,
+            // in which case we'd use the current cover.jpg URL.
+            newStatus = status.setArtworkTrackId(null).build();
+        }
+        return newStatus;
+    }
+
+    // From the last line parsed: the playlist index playing, or -1 if
+    // it didn't say.
+    int playlistIndex() {
+        return playlistIndex;
+    }
+
+    // From the last line parsed: how many tracks the playlist has.
+    int playlistTracks() {
+        return playlistTracks;
+    }
+}
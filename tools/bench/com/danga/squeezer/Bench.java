@@ -0,0 +1,68 @@
+package com.danga.squeezer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A minimal stand-in for JMH: warms an operation up, then times it and
+ * reports nanoseconds and bytes allocated per call, the latter being
+ * what gc.alloc.rate.norm would say.  Allocation needs a HotSpot-style
+ * JVM; elsewhere it prints "?".
+ *
+ * Times are for comparing two ways of doing the same thing on the same
+ * machine, not for quoting.
+ */
+final class Bench {
+    interface Op {
+        // Return something derived from the work, so it isn't optimized away.
+        long run();
+    }
+
+    private static final long WARMUP_MILLIS = Long.getLong("bench.warmup", 1000);
+    private static final long MEASURE_MILLIS = Long.getLong("bench.measure", 2000);
+
+    private static long sink;
+
+    private Bench() {
+    }
+
+    static void header() {
+        System.out.printf("%-48s %12s %12s%n", "benchmark", "ns/op", "bytes/op");
+    }
+
+    static void run(String name, Op op) {
+        loopFor(op, WARMUP_MILLIS);
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long ops = loopFor(op, MEASURE_MILLIS);
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        String bytes = allocatedBefore < 0 ? "?"
+            : String.format("%.1f", (allocatedAfter - allocatedBefore) / (double) ops);
+        System.out.printf("%-48s %12.1f %12s%n", name, elapsed / (double) ops, bytes);
+    }
+
+    // Runs op in growing batches until millis are up.  Returns the count.
+    private static long loopFor(Op op, long millis) {
+        long deadline = System.nanoTime() + millis * 1000000;
+        long ops = 0;
+        int batch = 1;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < batch; i++) {
+                sink += op.run();
+            }
+            ops += batch;
+            if (batch < 1 << 16) batch <<= 1;
+        }
+        return ops;
+    }
+
+    // Bytes this thread has allocated so far, or -1 if we can't tell.
+    static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if (!hotspot.isThreadAllocatedMemorySupported()) return -1;
+        return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,222 @@
+package com.danga.squeezer;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+
+/**
+ * The CLI parsing hot path, in-place tokenizer against the split(" ") +
+ * URLDecoder path it replaced (CliLineTokenizer's legacySplit mode):
+ *
+ *  - a status line through StatusLineParser, as SqueezeService takes
+ *    them: for a song still playing, and for a new one;
+ *  - a 50-player "players" reply through PlayerListParser;
+ *  - a 1000-song "titles" reply streamed through CliRecordSplitter in
+ *    4KB reads, with LibrarySync's;
+ *  - Util.parseDecimalIntOrZero and token decoding on their own.
+ *
+ *     ant -f tools/build.xml bench
+ *
+ * Judge a parser change by bytes/op as much as ns/op: on the device it's
+ * the garbage, and the GC pauses it causes, that hurt.
+ */
+public class ParserBenchmarks {
+    static final String PLAYER_ID = "00:04:20:17:04:7f";
+    static final String STATUS_LINE =
+        "00%3A04%3A20%3A17%3A04%3A7f status - 1 tags%3AylqwaJ player_name%3AOffice"
+        + " player_connected%3A1 player_ip%3A10.0.0.73%3A42648 power%3A1 signalstrength%3A0"
+        + " mode%3Aplay time%3A99.803 rate%3A1 duration%3A224.705 can_seek%3A1"
+        + " mixer%20volume%3A25 playlist%20repeat%3A0 playlist%20shuffle%3A0"
+        + " playlist%20mode%3Adisabled playlist_cur_index%3A5"
+        + " playlist_timestamp%3A1250053991.01067 playlist_tracks%3A46"
+        + " title%3ANine%20Ways artist%3AAphex%20Twin album%3ADrukqs%20%E2%80%93%20Disc%202"
+        + " artwork_track_id%3A2213 coverart%3A1";
+
+    public static void main(String[] args) {
+        Bench.header();
+
+        final char[] status = STATUS_LINE.toCharArray();
+        final CliLineTokenizer tokens = new CliLineTokenizer();
+        final CliLineTokenizer legacy = new CliLineTokenizer(true);
+        final StatusLineParser statusParser = new StatusLineParser();
+        tokens.reset(status, 0, status.length);
+        tokens.next();  // player id
+        tokens.next();  // "status"
+        final PlayerStatus playing = statusParser.parse(PLAYER_ID, PlayerStatus.EMPTY, tokens, 0);
+        Bench.run("status line, same song", new Bench.Op() {
+            public long run() {
+                return parseStatus(statusParser, tokens, status, playing);
+            }
+        });
+        Bench.run("status line, same song, legacySplit", new Bench.Op() {
+            public long run() {
+                return parseStatus(statusParser, legacy, status, playing);
+            }
+        });
+        Bench.run("status line, new song", new Bench.Op() {
+            public long run() {
+                return parseStatus(statusParser, tokens, status, PlayerStatus.EMPTY);
+            }
+        });
+
+        final char[] players = playersReply(50).toCharArray();
+        Bench.run("players reply (50), record splitter", new Bench.Op() {
+            public long run() {
+                PlayersHandler handler = new PlayersHandler();
+                tokens.reset(players, 0, players.length);
+                handler.onResponse(tokens);
+                return handler.players.size();
+            }
+        });
+
+        final char[] titles = titlesReply(1000).toCharArray();
+        final int[] reads = tokenAlignedReads(titles, 4096);
+        final TitlesHandler titlesHandler = new TitlesHandler();
+        Bench.run("titles reply (1000), streamed 4KB reads", new Bench.Op() {
+            public long run() {
+                CliRecordSplitter splitter = new CliRecordSplitter(titlesHandler);
+                int start = 0;
+                for (int end : reads) {
+                    splitter.feed(titles, start, end);
+                    start = end;
+                }
+                splitter.finish();
+                return titlesHandler.received;
+            }
+        });
+
+        final String[] numbers = { "0", "25", "-12", "224.705", "1250053991", "garbage" };
+        final char[][] numberChars = new char[numbers.length][];
+        for (int i = 0; i < numbers.length; i++) numberChars[i] = numbers[i].toCharArray();
+        Bench.run("Util.parseDecimalIntOrZero x6", new Bench.Op() {
+            public long run() {
+                long sum = 0;
+                for (String number : numbers) sum += Util.parseDecimalIntOrZero(number);
+                return sum;
+            }
+        });
+        Bench.run("CliLineTokenizer.parseDecimalIntOrZero x6", new Bench.Op() {
+            public long run() {
+                long sum = 0;
+                for (char[] number : numberChars) {
+                    sum += CliLineTokenizer.parseDecimalIntOrZero(number, number.length);
+                }
+                return sum;
+            }
+        });
+
+        final String token = "album%3ADrukqs%20%E2%80%93%20Disc%202";
+        final char[] tokenChars = token.toCharArray();
+        final char[] decoded = new char[tokenChars.length];
+        Bench.run("decode token, URLDecoder", new Bench.Op() {
+            public long run() {
+                try {
+                    return URLDecoder.decode(token, "UTF-8").length();
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        Bench.run("decode token, percentDecode", new Bench.Op() {
+            public long run() {
+                return CliLineTokenizer.percentDecode(tokenChars, 0, tokenChars.length, decoded);
+            }
+        });
+    }
+
+    private static long parseStatus(StatusLineParser parser, CliLineTokenizer tokens,
+            char[] line, PlayerStatus oldStatus) {
+        tokens.reset(line, 0, line.length);
+        tokens.next();  // player id
+        tokens.next();  // "status"
+        PlayerStatus status = parser.parse(PLAYER_ID, oldStatus, tokens, 0);
+        return status.getVolume() + parser.playlistIndex();
+    }
+
+    private static final class PlayersHandler extends PlayerListParser {
+        PlayersHandler() {
+            super(new LinkedHashMap<String, SqueezePlayer>());
+        }
+
+        void onEnd() {
+        }
+
+        public void onFailure() {
+        }
+    }
+
+    // The fields LibrarySync.PageHandler takes.
+    private static final class TitlesHandler extends CommandPipeline.RecordHandler {
+        long received;
+
+        TitlesHandler() {
+            super("id");
+        }
+
+        void onHeader(CliLineTokenizer tokens) {
+        }
+
+        void onRecord(CliLineTokenizer tokens) {
+            while (tokens.next()) {
+                if (!tokens.hasKey()) continue;
+                if (tokens.keyEquals("id") || tokens.keyEquals("title")
+                        || tokens.keyEquals("album_id") || tokens.keyEquals("artist_id")) {
+                    received += tokens.value().length();
+                } else if (tokens.keyEquals("count")) {
+                    received += tokens.valueAsDecimalIntOrZero();
+                }
+            }
+        }
+
+        void onEnd() {
+        }
+
+        public void onFailure() {
+        }
+    }
+
+    static String playersReply(int count) {
+        StringBuilder reply = new StringBuilder("players 0 100 count%3A").append(count);
+        for (int i = 0; i < count; i++) {
+            reply.append(" playerindex%3A").append(i)
+                .append(" playerid%3A00%3A04%3A20%3A00%3A").append(String.format("%02x", i / 256))
+                .append("%3A").append(String.format("%02x", i % 256))
+                .append(" uuid%3A").append(String.format("%032x", i))
+                .append(" ip%3A10.0.").append(i / 256).append('.').append(i % 256).append("%3A42648")
+                .append(" name%3ARoom%20").append(i)
+                .append(" model%3Asqueezebox3 isplayer%3A1 displaytype%3Agraphic-320x32")
+                .append(" canpoweroff%3A1 connected%3A1");
+        }
+        return reply.toString();
+    }
+
+    static String titlesReply(int count) {
+        StringBuilder reply = new StringBuilder("titles 0 ").append(count)
+            .append(" tags%3Aes count%3A").append(count * 10);
+        for (int i = 0; i < count; i++) {
+            reply.append(" id%3A").append(10000 + i)
+                .append(" title%3ASong%20Number%20").append(i).append("%20%E2%80%93%20Live")
+                .append(" album_id%3A").append(i / 12)
+                .append(" artist_id%3A").append(i / 40);
+        }
+        return reply.toString();
+    }
+
+    // Ends of reads of about readSize chars, moved back onto spaces the
+    // way ListeningThread only hands on complete tokens.
+    private static int[] tokenAlignedReads(char[] chars, int readSize) {
+        int[] ends = new int[chars.length / readSize + 2];
+        int n = 0;
+        int start = 0;
+        while (start < chars.length) {
+            int end = Math.min(chars.length, start + readSize);
+            while (end < chars.length && end > start && chars[end] != ' ') end--;
+            if (end == start) end = Math.min(chars.length, start + readSize);
+            ends[n++] = end;
+            start = end;
+        }
+        int[] trimmed = new int[n];
+        System.arraycopy(ends, 0, trimmed, 0, n);
+        return trimmed;
+    }
+}
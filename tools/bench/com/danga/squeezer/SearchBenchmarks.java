@@ -0,0 +1,156 @@
+package com.danga.squeezer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Search as you type over a big library: builds a SearchIndex of 100k
+ * generated song names (2-5 words each, some accented, with a few
+ * common words so some prefixes match thousands), then times search()
+ * for every prefix of a few typed queries, i.e. once per keystroke.
+ * Reports build time and heap held by the index, and the median and
+ * worst keystroke with its allocation.
+ *
+ *     ant -f tools/build.xml bench
+ *
+ * A phone is many times slower than a desktop JVM; what matters is that
+ * the worst keystroke stays well inside a frame or two there.
+ */
+public class SearchBenchmarks {
+    private static final int NAMES = 100000;
+    // What SqueezeService asks for.
+    private static final int LIMIT = 50;
+    private static final int BUILDS = 5;
+    private static final int SEARCHES_PER_KEYSTROKE = 200;
+
+    private static final String[] COMMON_WORDS = {
+        "the", "love", "night", "a", "of", "you", "me", "in", "my", "live",
+        "remix", "song", "blue", "heart", "dance", "\u00e9t\u00e9", "caf\u00e9", "bj\u00f6rk",
+    };
+    private static final String[] QUERIES = {
+        "love night", "the be", "bjork", "sympathy for the devil", "zq", "cafe remi",
+    };
+
+    public static void main(String[] args) {
+        String[] names = generateNames(new Random(42));
+
+        SearchIndex index = null;
+        long[] buildMillis = new long[BUILDS];
+        for (int i = 0; i < BUILDS; i++) {
+            long start = System.nanoTime();
+            index = build(names);
+            buildMillis[i] = (System.nanoTime() - start) / 1000000;
+        }
+        Arrays.sort(buildMillis);
+        index = null;
+        long heapWithout = usedHeap();
+        index = build(names);
+        long heapWith = usedHeap();
+        // The names are held either way, so this is the index's own cost:
+        // folded copies and the entry array.
+        System.out.printf("%d names: build median %dms of %d, index holds ~%.1fMB%n", NAMES,
+                buildMillis[BUILDS / 2], BUILDS, (heapWith - heapWithout) / 1048576.0);
+
+        List<String> categories = new ArrayList<String>();
+        List<String> ids = new ArrayList<String>();
+        List<String> results = new ArrayList<String>();
+        System.out.printf("%-26s %10s %10s %10s %12s%n",
+                "query", "keystrokes", "median us", "worst us", "worst bytes");
+        for (String query : QUERIES) {
+            int keystrokes = query.length();
+            long[] nanos = new long[keystrokes];
+            long worstNanos = -1;
+            long worstBytes = 0;
+            String worst = "";
+            for (int k = 1; k <= keystrokes; k++) {
+                String prefix = query.substring(0, k);
+                // Warm up on this prefix, then time it.
+                for (int i = 0; i < SEARCHES_PER_KEYSTROKE; i++) {
+                    search(index, prefix, categories, ids, results);
+                }
+                long bytes = Bench.allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < SEARCHES_PER_KEYSTROKE; i++) {
+                    search(index, prefix, categories, ids, results);
+                }
+                nanos[k - 1] = (System.nanoTime() - start) / SEARCHES_PER_KEYSTROKE;
+                bytes = bytes < 0 ? -1 : (Bench.allocatedBytes() - bytes) / SEARCHES_PER_KEYSTROKE;
+                if (nanos[k - 1] > worstNanos) {
+                    worstNanos = nanos[k - 1];
+                    worst = prefix;
+                    worstBytes = bytes;
+                }
+            }
+            long[] sorted = nanos.clone();
+            Arrays.sort(sorted);
+            System.out.printf("%-26s %10d %10.1f %10.1f %12s%n", "\"" + query + "\"", keystrokes,
+                    sorted[keystrokes / 2] / 1000.0, sorted[keystrokes - 1] / 1000.0,
+                    worstBytes < 0 ? "?" : worstBytes + " (\"" + worst + "\")");
+        }
+    }
+
+    private static SearchIndex build(String[] names) {
+        SearchIndex.Builder builder = new SearchIndex.Builder();
+        for (int i = 0; i < names.length; i++) {
+            builder.add("titles", String.valueOf(i), names[i]);
+        }
+        return builder.build();
+    }
+
+    private static void search(SearchIndex index, String query, List<String> categories,
+            List<String> ids, List<String> names) {
+        categories.clear();
+        ids.clear();
+        names.clear();
+        index.search(query, LIMIT, categories, ids, names);
+    }
+
+    // 2-5 words each, from common words and random pronounceable ones.
+    private static String[] generateNames(Random random) {
+        String[] words = new String[5000];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = pseudoWord(random);
+        }
+        words[17] = "sympathy";
+        words[99] = "devil";
+        words[1234] = "beatles";
+        String[] names = new String[NAMES];
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < NAMES; i++) {
+            name.setLength(0);
+            int count = 2 + random.nextInt(4);
+            for (int w = 0; w < count; w++) {
+                if (w > 0) name.append(' ');
+                String word = random.nextInt(4) == 0
+                    ? COMMON_WORDS[random.nextInt(COMMON_WORDS.length)]
+                    : words[random.nextInt(words.length)];
+                name.append(w == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+            }
+            names[i] = name.toString();
+        }
+        names[NAMES / 2] = "Sympathy for the Devil";
+        return names;
+    }
+
+    private static String pseudoWord(Random random) {
+        String consonants = "bcdfghjklmnprstvwz";
+        String vowels = "aeiou";
+        StringBuilder word = new StringBuilder();
+        int syllables = 1 + random.nextInt(3);
+        for (int s = 0; s < syllables; s++) {
+            word.append(consonants.charAt(random.nextInt(consonants.length())));
+            word.append(vowels.charAt(random.nextInt(vowels.length())));
+        }
+        return word.toString();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,32 @@
+package android.os;
+
+// Just enough of android.os.Parcel for PlayerStatus in the tools build.
+// Nothing is parcelled off-device.
+public final class Parcel {
+    private Parcel() {
+    }
+
+    public String readString() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int readInt() {
+        throw new UnsupportedOperationException();
+    }
+
+    public long readLong() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeString(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeInt(int value) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeLong(long value) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+// Just enough of android.os.Parcelable for PlayerStatus in the tools build.
+public interface Parcelable {
+    int describeContents();
+
+    void writeToParcel(Parcel dest, int flags);
+
+    interface Creator<T> {
+        T createFromParcel(Parcel source);
+
+        T[] newArray(int size);
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+// Just enough of android.os.SystemClock for the tools build.
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,35 @@
+package android.util;
+
+// Just enough of android.util.Log for the app classes the tools build
+// compiles.  Logs to stderr when -Dsqueezer.log=true.
+public final class Log {
+    private static final boolean ENABLED = Boolean.getBoolean("squeezer.log");
+
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return log("V", tag, msg);
+    }
+
+    public static int d(String tag, String msg) {
+        return log("D", tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return log("I", tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return log("W", tag, msg);
+    }
+
+    public static int e(String tag, String msg) {
+        return log("E", tag, msg);
+    }
+
+    private static int log(String level, String tag, String msg) {
+        if (ENABLED) System.err.println(level + "/" + tag + ": " + msg);
+        return 0;
+    }
+}
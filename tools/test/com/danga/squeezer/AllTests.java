@@ -0,0 +1,18 @@
+package com.danga.squeezer;
+
+// Entry point for "ant -f tools/build.xml test".
+public class AllTests {
+    public static void main(String[] args) {
+        int failed = TestCase.run(
+                BackoffTest.class,
+                CliLineReaderTest.class,
+                CliLineTokenizerTest.class,
+                CliRecordSplitterTest.class,
+                CommandPipelineTest.class,
+                CommandWriterTest.class,
+                PlayerEventParserTest.class,
+                ServerDiscoveryTest.class,
+                StatusLineParserTest.class);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
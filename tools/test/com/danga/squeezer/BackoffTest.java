@@ -0,0 +1,31 @@
+package com.danga.squeezer;
+
+public class BackoffTest extends TestCase {
+    public void testDoublesUpToTheMaximum() {
+        Backoff backoff = new Backoff(1000, 30000);
+        long[] steps = { 1000, 2000, 4000, 8000, 16000, 30000, 30000 };
+        for (long step : steps) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue("delay " + delay + " for step " + step,
+                       delay >= step / 2 && delay <= step);
+        }
+        assertEquals(steps.length, backoff.attempts());
+    }
+
+    public void testResetStartsOver() {
+        Backoff backoff = new Backoff(1000, 30000);
+        for (int i = 0; i < 5; i++) backoff.nextDelayMillis();
+        backoff.reset();
+        assertEquals(0, backoff.attempts());
+        assertTrue(backoff.nextDelayMillis() <= 1000);
+    }
+
+    // Long outages don't overflow the shift.
+    public void testManyAttempts() {
+        Backoff backoff = new Backoff(1000, 30000);
+        for (int i = 0; i < 100; i++) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay > 0 && delay <= 30000);
+        }
+    }
+}
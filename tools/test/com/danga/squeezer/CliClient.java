@@ -0,0 +1,116 @@
+package com.danga.squeezer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The client half of the harness: the service's CLI plumbing without the
+ * service.  Commands go out through a CommandWriter, replies are matched
+ * by a CommandPipeline, and lines are framed by the CliLineReader that
+ * SqueezeService.ListeningThread runs, so a line that gets long before it
+ * ends is offered to dispatchPartial() and streamed if a RecordHandler
+ * wants it.
+ *
+ * Lines that answer no request go to the Listener, as events would.
+ */
+class CliClient {
+    interface Listener {
+        // On the reading thread; tokens are rewound.
+        void onEvent(CliLineTokenizer tokens);
+
+        void onDisconnected();
+    }
+
+    // As the service's.
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+
+    // Much smaller than the service's, so tests stream with short replies.
+    private final int streamThreshold;
+
+    private final SocketChannel channel;
+    private final CommandWriter writer;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    final CommandPipeline pipeline = new CommandPipeline(timer);
+    private final Listener listener;
+    private final Thread readThread;
+
+    private volatile long linesReceived;
+
+    CliClient(String host, int port, int streamThreshold, Listener listener) throws IOException {
+        this.streamThreshold = streamThreshold;
+        this.listener = listener;
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        writer = new CommandWriter(channel);
+        writer.start();
+        readThread = new Thread("CliClient") {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        };
+        readThread.start();
+    }
+
+    CommandWriter writer() {
+        return writer;
+    }
+
+    long linesReceived() {
+        return linesReceived;
+    }
+
+    // Expects a reply to command and sends it, as SqueezeService.sendRequest does.
+    CommandPipeline.Request request(String command, CommandPipeline.ResponseHandler handler,
+            long timeoutMillis) {
+        CommandPipeline.Request request = pipeline.expect(command, handler, timeoutMillis);
+        writer.enqueueRequest(command);
+        return request;
+    }
+
+    void close() {
+        writer.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        try {
+            readThread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        timer.shutdownNow();
+    }
+
+    private void readLoop() {
+        final CliLineTokenizer tokens = new CliLineTokenizer();
+        CliLineReader reader = new CliLineReader(channel, 1024, streamThreshold, MAX_LINE_BYTES,
+                new CliLineReader.Listener() {
+                    public void onLine(char[] chars, int offset, int length) {
+                        linesReceived++;
+                        tokens.reset(chars, offset, length);
+                        if (!pipeline.dispatch(tokens)) listener.onEvent(tokens);
+                    }
+
+                    public CliRecordSplitter onPartialLine(char[] chars, int offset, int length) {
+                        tokens.reset(chars, offset, length);
+                        return pipeline.dispatchPartial(tokens);
+                    }
+
+                    public void onLineTooLong(char[] chars, int offset, int length) {
+                        tokens.reset(chars, offset, length);
+                        pipeline.failPartial(tokens);
+                    }
+                });
+        try {
+            reader.run();
+        } catch (IOException e) {
+            // Closed under us.
+        }
+        pipeline.failAll();
+        listener.onDisconnected();
+    }
+}
@@ -0,0 +1,145 @@
+package com.danga.squeezer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CliLineReaderTest extends TestCase {
+    private static final int BUFFER_SIZE = 64;
+    private static final int STREAM_THRESHOLD = 16;
+    private static final int MAX_LINE_BYTES = 256;
+
+    // Hands out data at most chunk bytes a read, then ends.
+    private static final class ChunkedChannel implements ReadableByteChannel {
+        private final byte[] data;
+        private final int chunk;
+        private int position;
+
+        ChunkedChannel(String data, int chunk) {
+            try {
+                this.data = data.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            this.chunk = chunk;
+        }
+
+        public int read(ByteBuffer dst) {
+            if (position == data.length) return -1;
+            int n = Math.min(Math.min(chunk, dst.remaining()), data.length - position);
+            dst.put(data, position, n);
+            position += n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    // Writes down lines, and streams replies starting with streamPrefix.
+    private static class RecordingListener implements CliLineReader.Listener {
+        final List<String> lines = new ArrayList<String>();
+        final List<String> tooLong = new ArrayList<String>();
+        String streamPrefix;
+        RecordingHandler streamed;
+
+        public void onLine(char[] chars, int offset, int length) {
+            lines.add(new String(chars, offset, length));
+        }
+
+        public CliRecordSplitter onPartialLine(char[] chars, int offset, int length) {
+            if (streamPrefix == null || !new String(chars, offset, length).startsWith(streamPrefix)) {
+                return null;
+            }
+            streamed = new RecordingHandler("id");
+            return new CliRecordSplitter(streamed);
+        }
+
+        public void onLineTooLong(char[] chars, int offset, int length) {
+            tooLong.add(new String(chars, offset, length));
+        }
+    }
+
+    private static CliLineReader read(String data, int chunk, RecordingListener listener)
+            throws IOException {
+        CliLineReader reader = new CliLineReader(new ChunkedChannel(data, chunk), BUFFER_SIZE,
+                                                 STREAM_THRESHOLD, MAX_LINE_BYTES, listener);
+        reader.run();
+        return reader;
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < times; i++) repeated.append(s);
+        return repeated.toString();
+    }
+
+    public void testLinesAcrossReads() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        read("a b\r\nc%20d\n\nM\u00fcller\n", 3, listener);
+        assertEquals(4, listener.lines.size());
+        assertEquals("a b", listener.lines.get(0));
+        assertEquals("c%20d", listener.lines.get(1));
+        assertEquals("", listener.lines.get(2));
+        assertEquals("M\u00fcller", listener.lines.get(3));
+    }
+
+    // Held whole past the read buffer, then back to a small buffer.
+    public void testGrowsForALongLineAndShrinksAfter() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        String longLine = "players" + repeat(" x%3A1", 30);
+        CliLineReader reader = read(longLine + "\nshort\n", 10, listener);
+        assertEquals(2, listener.lines.size());
+        assertEquals(longLine, listener.lines.get(0));
+        assertEquals("short", listener.lines.get(1));
+        assertEquals(BUFFER_SIZE, reader.bufferCapacity());
+    }
+
+    public void testUnclaimedLineOverTheCapIsDropped() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        String hugeLine = "titles 0 500" + repeat(" title%3AA%20Song", 40);
+        CliLineReader reader = read(hugeLine + "\nnext\n", 32, listener);
+        assertEquals(1, listener.tooLong.size());
+        assertTrue(listener.tooLong.get(0).startsWith("titles 0 500 title%3AA%20Song"));
+        assertEquals(1, listener.lines.size());
+        assertEquals("next", listener.lines.get(0));
+        assertEquals(BUFFER_SIZE, reader.bufferCapacity());
+    }
+
+    public void testStreamedReplyNeverHeldWhole() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        listener.streamPrefix = "titles";
+        String reply = "titles 0 100 count%3A100" + repeat(" id%3A7 title%3AA%20Song", 100);
+        CliLineReader reader = read(reply + "\nnext\n", 32, listener);
+        assertTrue(listener.streamed.ended);
+        assertEquals(100, listener.streamed.recordCount());
+        assertEquals(0, listener.tooLong.size());
+        assertEquals(1, listener.lines.size());
+        assertEquals(BUFFER_SIZE, reader.bufferCapacity());
+    }
+
+    public void testStreamedReplyWithAHugeTokenFails() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        listener.streamPrefix = "titles";
+        String reply = "titles 0 1 count%3A1 id%3A7 title%3A" + repeat("A", MAX_LINE_BYTES);
+        read(reply + "\nnext\n", 32, listener);
+        assertTrue(listener.streamed.failed);
+        assertFalse(listener.streamed.ended);
+        assertEquals(1, listener.lines.size());
+        assertEquals("next", listener.lines.get(0));
+    }
+
+    public void testStreamedReplyCutOffFails() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        listener.streamPrefix = "titles";
+        read("titles 0 100 count%3A100" + repeat(" id%3A7", 10), 32, listener);
+        assertTrue(listener.streamed.failed);
+    }
+}
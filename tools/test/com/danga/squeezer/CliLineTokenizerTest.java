@@ -0,0 +1,85 @@
+package com.danga.squeezer;
+
+public class CliLineTokenizerTest extends TestCase {
+    // From StatusLineParser's comment, as the server sends it.
+    static final String STATUS_LINE =
+        "00%3A04%3A20%3A17%3A04%3A7f status - 1 tags%3AylqwaJ player_name%3AOffice"
+        + " player_connected%3A1 power%3A1 signalstrength%3A0 mode%3Aplay time%3A99.803"
+        + " rate%3A1 duration%3A224.705 can_seek%3A1 mixer%20volume%3A25"
+        + " playlist%20repeat%3A0 playlist%20shuffle%3A0 playlist_cur_index%3A7"
+        + " playlist_timestamp%3A1250054787.82897 playlist_tracks%3A13"
+        + " title%3ANine%20Ways artist%3AAphex%20Twin album%3ADrukqs"
+        + " artwork_track_id%3A2213 coverart%3A1";
+
+    public void testKeysAndValues() {
+        CliLineTokenizer tokens = new CliLineTokenizer();
+        tokens.reset(STATUS_LINE);
+        assertTrue(tokens.next());
+        assertEquals("00:04:20:17:04:7f", tokens.token());
+        while (tokens.next() && !tokens.keyEquals("mixer volume")) {
+        }
+        assertEquals(25, tokens.valueAsDecimalIntOrZero());
+        while (tokens.next() && !tokens.keyEquals("title")) {
+        }
+        assertEquals("Nine Ways", tokens.value());
+        assertTrue(tokens.valueEquals("Nine Ways"));
+        tokens.rewind();
+        while (tokens.next() && !tokens.keyEquals("time")) {
+        }
+        assertEquals(99803, tokens.valueAsMillisOrZero());
+    }
+
+    public void testEmptyTokensCountTowardsIndex() {
+        CliLineTokenizer tokens = new CliLineTokenizer();
+        tokens.reset("a  b ");
+        assertTrue(tokens.next());
+        assertEquals(0, tokens.index());
+        assertTrue(tokens.next());
+        assertEquals("b", tokens.token());
+        assertEquals(2, tokens.index());
+        assertFalse(tokens.next());
+    }
+
+    public void testUtf8AndPlus() {
+        CliLineTokenizer tokens = new CliLineTokenizer();
+        tokens.reset("title%3AM%C3%BCller+%F0%9F%8E%B5 x%3A%zz");
+        assertTrue(tokens.next());
+        assertEquals("M\u00fcller \uD83C\uDFB5", tokens.value());
+        assertTrue(tokens.next());
+        assertEquals("%zz", tokens.value());  // stray '%' kept
+    }
+
+    public void testNumbers() {
+        CliLineTokenizer tokens = new CliLineTokenizer();
+        tokens.reset("pref httpport 9000 a%3A-12 b%3A3.9 c%3Agarbage d%3A99999999999");
+        tokens.next();
+        tokens.next();
+        tokens.next();
+        assertEquals(9000, tokens.tokenAsDecimalIntOrZero());
+        tokens.next();
+        assertEquals(-12, tokens.valueAsDecimalIntOrZero());
+        tokens.next();
+        assertEquals(3, tokens.valueAsDecimalIntOrZero());
+        tokens.next();
+        assertEquals(0, tokens.valueAsDecimalIntOrZero());
+        tokens.next();
+        assertEquals(0, tokens.valueAsDecimalIntOrZero());
+    }
+
+    // The in-place tokenizer must agree with the split(" ") path it replaced.
+    public void testMatchesLegacySplit() {
+        CliLineTokenizer tokens = new CliLineTokenizer();
+        CliLineTokenizer legacy = new CliLineTokenizer(true);
+        char[] chars = STATUS_LINE.toCharArray();
+        tokens.reset(chars, 0, chars.length);
+        legacy.reset(chars, 0, chars.length);
+        while (tokens.next()) {
+            assertTrue(legacy.next());
+            assertEquals(legacy.index(), tokens.index());
+            assertEquals(legacy.key(), tokens.key());
+            assertEquals(legacy.value(), tokens.value());
+            assertEquals(legacy.token(), tokens.token());
+        }
+        assertFalse(legacy.next());
+    }
+}
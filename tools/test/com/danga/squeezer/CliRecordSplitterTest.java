@@ -0,0 +1,69 @@
+package com.danga.squeezer;
+
+public class CliRecordSplitterTest extends TestCase {
+    private static final String REPLY =
+        "titles 0 3 tags%3Aes count%3A3"
+        + " id%3A1 title%3AOne artist_id%3A7"
+        + " id%3A2 title%3ATwo%20Words"
+        + " id%3A3 title%3AThree";
+
+    public void testWholeLine() {
+        RecordingHandler handler = new RecordingHandler("id");
+        CliRecordSplitter splitter = new CliRecordSplitter(handler);
+        char[] chars = REPLY.toCharArray();
+        splitter.feed(chars, 0, chars.length);
+        splitter.finish();
+        assertEquals("titles 0 3 tags=es count=3", handler.header());
+        assertEquals(3, handler.recordCount());
+        assertEquals("id=1 title=One artist_id=7", handler.record(0));
+        assertEquals("id=2 title=Two Words", handler.record(1));
+        assertTrue(handler.ended);
+    }
+
+    // Any split on a token boundary gives the same result.
+    public void testFedInPieces() {
+        char[] chars = REPLY.toCharArray();
+        for (int split = 0; split <= chars.length; split++) {
+            if (split > 0 && split < chars.length && chars[split] != ' ') continue;
+            RecordingHandler handler = new RecordingHandler("id");
+            CliRecordSplitter splitter = new CliRecordSplitter(handler);
+            splitter.feed(chars, 0, split);
+            splitter.feed(chars, split, chars.length);
+            splitter.finish();
+            assertEquals(3, handler.recordCount());
+            assertEquals("id=3 title=Three", handler.record(2));
+        }
+    }
+
+    // A "count" after the records lands in the last one; handlers that
+    // need it look there.
+    public void testTrailingCount() {
+        RecordingHandler handler = new RecordingHandler("id");
+        CliRecordSplitter splitter = new CliRecordSplitter(handler);
+        char[] chars = "artists 0 2 id%3A1 artist%3AA id%3A2 artist%3AB count%3A2".toCharArray();
+        splitter.feed(chars, 0, chars.length);
+        splitter.finish();
+        assertEquals("artists 0 2", handler.header());
+        assertEquals("id=2 artist=B count=2", handler.record(1));
+    }
+
+    public void testNoRecords() {
+        RecordingHandler handler = new RecordingHandler("id");
+        CliRecordSplitter splitter = new CliRecordSplitter(handler);
+        char[] chars = "titles 5000 500 count%3A12".toCharArray();
+        splitter.feed(chars, 0, chars.length);
+        splitter.finish();
+        assertEquals("titles 5000 500 count=12", handler.header());
+        assertEquals(0, handler.recordCount());
+    }
+
+    public void testFail() {
+        RecordingHandler handler = new RecordingHandler("id");
+        CliRecordSplitter splitter = new CliRecordSplitter(handler);
+        char[] chars = "titles 0 3 id%3A1 ".toCharArray();
+        splitter.feed(chars, 0, chars.length);
+        splitter.fail();
+        assertTrue(handler.failed);
+        assertFalse(handler.ended);
+    }
+}
@@ -0,0 +1,217 @@
+package com.danga.squeezer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CLI plumbing against FakeCliServer: replies that arrive in pieces,
+ * end in "\r\n", come out of order, stream, or never come.
+ */
+public class CommandPipelineTest extends TestCase {
+    private static final long WAIT_MILLIS = 5000;
+
+    private FakeCliServer server;
+    private CliClient client;
+    private final List<String> events = new ArrayList<String>();
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+
+    // Remembers the reply line, decoded.
+    static class LineHandler implements CommandPipeline.ResponseHandler {
+        volatile String line;
+        volatile boolean failed;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        public void onResponse(CliLineTokenizer tokens) {
+            line = RecordingHandler.decode(tokens);
+            done.countDown();
+        }
+
+        public void onFailure() {
+            failed = true;
+            done.countDown();
+        }
+
+        boolean await(long millis) throws InterruptedException {
+            return done.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new FakeCliServer(3);
+        client = new CliClient("127.0.0.1", server.port(), 64, new CliClient.Listener() {
+            public void onEvent(CliLineTokenizer tokens) {
+                synchronized (events) {
+                    events.add(tokens.line());
+                    events.notifyAll();
+                }
+            }
+
+            public void onDisconnected() {
+                disconnected.countDown();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    public void testHandshake() throws Exception {
+        LineHandler httpPort = new LineHandler();
+        RecordingHandler players = new RecordingHandler("playerindex");
+        client.writer().enqueue("listen 1");
+        client.request("players 0 100", players, WAIT_MILLIS);
+        client.request("pref httpport ?", httpPort, WAIT_MILLIS);
+        assertTrue(httpPort.await(WAIT_MILLIS));
+        assertEquals("pref httpport " + FakeCliServer.HTTP_PORT, httpPort.line);
+        assertTrue(players.await(WAIT_MILLIS));
+        assertEquals("players 0 100 count=3", players.header());
+        assertEquals(3, players.recordCount());
+        assertTrue(players.record(2).startsWith("playerindex=2 playerid=" + server.playerId(2)));
+        // "listen 1" was only echoed; nobody asked for it.
+        assertEquals("listen 1", awaitEvent(0));
+        assertEquals(0, client.pipeline.outstandingCount());
+    }
+
+    public void testCarriageReturn() throws Exception {
+        server.script("pref httpport", "pref httpport 9001\r\n");
+        LineHandler handler = new LineHandler();
+        client.request("pref httpport ?", handler, WAIT_MILLIS);
+        assertTrue(handler.await(WAIT_MILLIS));
+        assertEquals("pref httpport 9001", handler.line);
+    }
+
+    // A reply cut mid-token and mid-character, over several reads.
+    public void testSplitLine() throws Exception {
+        server.script("pref httpport", "pref http", "port 90", "02 x%3AM%C3", "%BCller\n");
+        LineHandler handler = new LineHandler();
+        client.request("pref httpport ?", handler, WAIT_MILLIS);
+        assertTrue(handler.await(WAIT_MILLIS));
+        assertEquals("pref httpport 9002 x=M\u00fcller", handler.line);
+    }
+
+    // The server answers in order, but the pipeline mustn't rely on it.
+    public void testOutOfOrder() throws Exception {
+        server.script("a ");
+        server.script("b ", "b 2\n", "a 1\n");
+        LineHandler a = new LineHandler();
+        LineHandler b = new LineHandler();
+        client.request("a ?", a, WAIT_MILLIS);
+        client.request("b ?", b, WAIT_MILLIS);
+        assertTrue(a.await(WAIT_MILLIS));
+        assertTrue(b.await(WAIT_MILLIS));
+        assertEquals("a 1", a.line);
+        assertEquals("b 2", b.line);
+    }
+
+    // Identical requests in flight each get their own reply, oldest first.
+    public void testIdenticalRequests() throws Exception {
+        String status = FakeCliServer.encode(server.playerId(0)) + " status - 1 tags:a";
+        LineHandler first = new LineHandler();
+        LineHandler second = new LineHandler();
+        client.request(status, first, WAIT_MILLIS);
+        client.request(status, second, WAIT_MILLIS);
+        assertTrue(first.await(WAIT_MILLIS));
+        assertTrue(second.await(WAIT_MILLIS));
+        assertFalse(first.failed);
+        assertFalse(second.failed);
+        assertEquals(2, server.commands().size());
+    }
+
+    public void testTimeout() throws Exception {
+        server.script("pref httpport");  // no reply
+        LineHandler late = new LineHandler();
+        LineHandler fine = new LineHandler();
+        long start = System.currentTimeMillis();
+        client.request("pref httpport ?", late, 200);
+        client.request("players 0 1", fine, WAIT_MILLIS);
+        assertTrue(late.await(WAIT_MILLIS));
+        assertTrue(late.failed);
+        assertTrue("timed out early", System.currentTimeMillis() - start >= 200);
+        assertTrue(fine.await(WAIT_MILLIS));
+        assertFalse(fine.failed);
+        assertEquals(0, client.pipeline.outstandingCount());
+    }
+
+    // A reply that isn't there when it's expected is an event afterwards.
+    public void testLateReplyAfterTimeout() throws Exception {
+        server.setLatencyMillis(300);
+        LineHandler handler = new LineHandler();
+        client.request("pref httpport ?", handler, 50);
+        assertTrue(handler.await(WAIT_MILLIS));
+        assertTrue(handler.failed);
+        assertEquals("pref httpport " + FakeCliServer.HTTP_PORT, awaitEvent(0));
+    }
+
+    // Records reach a RecordHandler before the line is over, and a
+    // "count" at the end of the reply still gets through.
+    public void testStreamedRecordsAndTrailingCount() throws Exception {
+        StringBuilder start = new StringBuilder("titles 0 500 tags%3Aes");
+        for (int i = 0; i < 20; i++) {
+            start.append(" id%3A").append(i).append(" title%3ASong%20").append(i);
+        }
+        start.append(' ');
+        server.script("titles", start.toString());
+        // The end of the titles line only goes out when "more" is sent.
+        server.script("more", "id%3A20 title%3ALast count%3A21\r\n");
+        RecordingHandler handler = new RecordingHandler("id");
+        client.request("titles 0 500 tags:es", handler, WAIT_MILLIS);
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (handler.recordCount() < 19 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("records weren't streamed: " + handler.recordCount(),
+                handler.recordCount() >= 19);
+        assertFalse(handler.ended);
+        client.writer().enqueue("more");
+        assertTrue(handler.await(WAIT_MILLIS));
+        assertTrue(handler.ended);
+        assertEquals("titles 0 500 tags=es", handler.header());
+        assertEquals(21, handler.recordCount());
+        assertEquals("id=20 title=Last count=21", handler.record(20));
+    }
+
+    public void testDisconnectFailsOutstanding() throws Exception {
+        server.script("titles", "titles 0 500 id%3A1 title%3AA id%3A2 title%3AB ");
+        server.script("pref httpport");
+        RecordingHandler titles = new RecordingHandler("id");
+        LineHandler httpPort = new LineHandler();
+        client.request("titles 0 500", titles, WAIT_MILLIS);
+        client.request("pref httpport ?", httpPort, WAIT_MILLIS);
+        server.awaitCommands(2, WAIT_MILLIS);
+        Thread.sleep(50);
+        server.disconnectClient();
+        assertTrue(disconnected.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(titles.failed);
+        assertTrue(httpPort.failed);
+    }
+
+    public void testEvents() throws Exception {
+        server.startEvents(200);
+        awaitEvent(9);
+        server.stopEvents();
+        synchronized (events) {
+            for (String event : events.subList(0, 10)) {
+                assertTrue(event, event.contains(" playlist newsong ") || event.contains(" prefset "));
+            }
+        }
+        assertEquals(0, client.pipeline.outstandingCount());
+    }
+
+    private String awaitEvent(int i) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        synchronized (events) {
+            long left;
+            while (events.size() <= i && (left = deadline - System.currentTimeMillis()) > 0) {
+                events.wait(left);
+            }
+            assertTrue("no event " + i + ": " + events, events.size() > i);
+            return events.get(i);
+        }
+    }
+}
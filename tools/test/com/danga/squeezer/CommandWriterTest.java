@@ -0,0 +1,92 @@
+package com.danga.squeezer;
+
+import java.util.List;
+
+public class CommandWriterTest extends TestCase {
+    private static final long WAIT_MILLIS = 5000;
+
+    private FakeCliServer server;
+    private CliClient client;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new FakeCliServer(1);
+        client = new CliClient("127.0.0.1", server.port(), 1024, new CliClient.Listener() {
+            public void onEvent(CliLineTokenizer tokens) {
+            }
+
+            public void onDisconnected() {
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    // A command on its own isn't held for the batch window.
+    public void testLoneCommandGoesStraightOut() throws Exception {
+        CommandWriter writer = client.writer();
+        long fastest = Long.MAX_VALUE;
+        for (int i = 1; i <= 5; i++) {
+            Thread.sleep(3 * CommandWriter.BATCH_WINDOW_MILLIS);
+            long start = System.nanoTime();
+            writer.enqueue("listen 1");
+            server.awaitCommands(i, WAIT_MILLIS);
+            fastest = Math.min(fastest, (System.nanoTime() - start) / 1000000);
+        }
+        assertTrue(fastest < CommandWriter.BATCH_WINDOW_MILLIS);
+    }
+
+    // A burst of volume presses goes out as one net change.
+    public void testVolumeDeltasAddUp() throws Exception {
+        String player = FakeCliServer.encode(server.playerId(0));
+        CommandWriter writer = client.writer();
+        writer.enqueue("listen 1");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(writer.enqueue(player + " mixer volume %2B1"));
+        }
+        writer.enqueue(player + " mixer volume -3", "listen 1");
+        List<String> commands = server.awaitCommands(3, WAIT_MILLIS);
+        Thread.sleep(100);
+        assertEquals(3, server.commands().size());
+        assertEquals(player + " mixer volume %2B7", commands.get(1));
+        assertEquals(13, writer.queuedCount());
+        assertEquals(10, writer.coalescedCount());
+    }
+
+    // Deltas don't jump over an absolute volume.
+    public void testAbsoluteVolumeIsABarrier() throws Exception {
+        String player = FakeCliServer.encode(server.playerId(0));
+        CommandWriter writer = client.writer();
+        writer.enqueue(player + " mixer volume %2B1", player + " mixer volume 50",
+                player + " mixer volume %2B2");
+        List<String> commands = server.awaitCommands(3, WAIT_MILLIS);
+        assertEquals(player + " mixer volume %2B1", commands.get(0));
+        assertEquals(player + " mixer volume 50", commands.get(1));
+        assertEquals(player + " mixer volume %2B2", commands.get(2));
+        assertEquals(0, writer.coalescedCount());
+    }
+
+    public void testIdenticalStatusCommandsCoalesce() throws Exception {
+        String status = FakeCliServer.encode(server.playerId(0)) + " status - 1 tags:a";
+        CommandWriter writer = client.writer();
+        writer.enqueue("listen 1", status);
+        writer.enqueue(status);
+        writer.enqueueRequest(status);  // somebody's waiting on this one
+        server.awaitCommands(3, WAIT_MILLIS);
+        Thread.sleep(100);
+        assertEquals(3, server.commands().size());
+        assertEquals(1, writer.coalescedCount());
+    }
+
+    public void testDroppedAfterClose() throws Exception {
+        CommandWriter writer = client.writer();
+        writer.close();
+        assertFalse(writer.enqueue("listen 1"));
+        assertFalse(writer.enqueueRequest("pref httpport ?"));
+        assertEquals(2, writer.droppedCount());
+    }
+}
@@ -0,0 +1,310 @@
+package com.danga.squeezer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A stand-in SqueezeCenter CLI on 127.0.0.1, one client at a time.
+ *
+ * Out of the box it answers the handshake the service sends ("listen 1",
+ * "players 0 N", "pref httpport ?"), player "status" requests and
+ * "mixer volume" changes for a configurable number of players, and can
+ * push "playlist newsong" and "prefset server volume" events at a steady
+ * rate.  Anything else is echoed back, the way the CLI echoes commands it
+ * doesn't fill anything in for.
+ *
+ * Tests can script the reply to a command instead: the raw chunks given
+ * are written as separate sends, a little apart, so a reply can end in
+ * "\r\n", break off mid-token, answer an earlier command late, or never
+ * come at all.
+ */
+class FakeCliServer {
+    static final String HTTP_PORT = "9000";
+
+    // Between the chunks of a scripted reply, so they're separate reads.
+    private static final long CHUNK_GAP_MILLIS = 5;
+
+    private final ServerSocket serverSocket;
+    private final String[] playerIds;
+    private final Thread acceptThread;
+
+    // Guarded by this:
+    private final LinkedList<Script> scripts = new LinkedList<Script>();
+    private final List<String> commands = new ArrayList<String>();
+    private long latencyMillis;
+    private Socket client;
+    private OutputStream out;
+    private Thread eventThread;
+    private volatile boolean closed;
+
+    private static final class Script {
+        final String commandPrefix;
+        final String[] chunks;
+
+        Script(String commandPrefix, String[] chunks) {
+            this.commandPrefix = commandPrefix;
+            this.chunks = chunks;
+        }
+    }
+
+    FakeCliServer(int players) throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        playerIds = new String[players];
+        for (int i = 0; i < players; i++) {
+            playerIds[i] = String.format("00:04:20:00:%02x:%02x", i / 256, i % 256);
+        }
+        acceptThread = new Thread("FakeCliServer") {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    String playerId(int i) {
+        return playerIds[i];
+    }
+
+    // Added before every reply, scripted or not.
+    synchronized void setLatencyMillis(long millis) {
+        latencyMillis = millis;
+    }
+
+    /**
+     * The next command starting with commandPrefix gets chunks, written
+     * one at a time, instead of the usual answer.  No chunks means no
+     * reply at all.  Scripts are used once each, oldest first.
+     */
+    synchronized void script(String commandPrefix, String... chunks) {
+        scripts.add(new Script(commandPrefix, chunks));
+    }
+
+    // The commands received so far, in order, still encoded.
+    synchronized List<String> commands() {
+        return new ArrayList<String>(commands);
+    }
+
+    // Waits until at least count commands have come in.  Returns them.
+    synchronized List<String> awaitCommands(int count, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left;
+        while (commands.size() < count && (left = deadline - System.currentTimeMillis()) > 0) {
+            wait(left);
+        }
+        return new ArrayList<String>(commands);
+    }
+
+    /**
+     * Pushes events for the players, round robin, at perSecond in total:
+     * alternately "playlist newsong" and "prefset server volume".  The
+     * song title carries System.nanoTime() at sending, so an in-process
+     * client can measure how long an event took to reach it.
+     */
+    synchronized void startEvents(final int perSecond) {
+        stopEvents();
+        eventThread = new Thread("FakeCliServer events") {
+            @Override
+            public void run() {
+                long intervalNanos = 1000000000L / perSecond;
+                long next = System.nanoTime();
+                for (long n = 0; !isInterrupted(); n++) {
+                    long sleepNanos = next - System.nanoTime();
+                    try {
+                        if (sleepNanos > 0) {
+                            Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    next += intervalNanos;
+                    String player = encode(playerIds[(int) (n % playerIds.length)]);
+                    String event = (n & 1) == 0
+                        ? player + " playlist newsong Song%20" + System.nanoTime() + " " + (n % 10)
+                        : player + " prefset server volume " + (n % 101);
+                    if (!send(event + "\n")) return;
+                }
+            }
+        };
+        eventThread.setDaemon(true);
+        eventThread.start();
+    }
+
+    synchronized void stopEvents() {
+        if (eventThread != null) eventThread.interrupt();
+        eventThread = null;
+    }
+
+    // Drops the current client, as a server restart would.
+    void disconnectClient() {
+        Socket socket;
+        synchronized (this) {
+            socket = client;
+        }
+        closeQuietly(socket);
+    }
+
+    void close() {
+        closed = true;
+        stopEvents();
+        disconnectClient();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                synchronized (this) {
+                    client = socket;
+                    out = socket.getOutputStream();
+                }
+            } catch (IOException e) {
+                return;  // closed
+            }
+            try {
+                readCommands(new BufferedInputStream(socket.getInputStream()));
+            } catch (IOException e) {
+                // Client went away; wait for the next one.
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    private void readCommands(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\r') continue;
+            if (b != '\n') {
+                line.append((char) b);  // commands are URL-encoded ASCII
+                continue;
+            }
+            String command = line.toString();
+            line.setLength(0);
+            synchronized (this) {
+                commands.add(command);
+                notifyAll();
+            }
+            answer(command);
+        }
+    }
+
+    private void answer(String command) {
+        Script script = null;
+        long latency;
+        synchronized (this) {
+            latency = latencyMillis;
+            for (Iterator<Script> it = scripts.iterator(); it.hasNext(); ) {
+                Script candidate = it.next();
+                if (command.startsWith(candidate.commandPrefix)) {
+                    it.remove();
+                    script = candidate;
+                    break;
+                }
+            }
+        }
+        sleep(latency);
+        if (script == null) {
+            send(defaultReply(command) + "\n");
+            return;
+        }
+        for (int i = 0; i < script.chunks.length; i++) {
+            if (i > 0) sleep(CHUNK_GAP_MILLIS);
+            if (!send(script.chunks[i])) return;
+        }
+    }
+
+    private String defaultReply(String command) {
+        String[] tokens = command.split(" ");
+        if (command.equals("pref httpport ?")) {
+            return "pref httpport " + HTTP_PORT;
+        }
+        if (tokens.length >= 3 && tokens[0].equals("players")) {
+            return playersReply(tokens[0] + " " + tokens[1] + " " + tokens[2],
+                    Util.parseDecimalIntOrZero(tokens[1]), Util.parseDecimalIntOrZero(tokens[2]));
+        }
+        if (tokens.length >= 2 && tokens[1].equals("status")) {
+            return command + " player_name%3A" + tokens[0] + " player_connected%3A1"
+                + " power%3A1 mode%3Aplay time%3A12.5 duration%3A245.3"
+                + " mixer%20volume%3A50 playlist_cur_index%3A0 playlist_tracks%3A10"
+                + " title%3ASong%201 artist%3AArtist album%3AAlbum artwork_track_id%3A42";
+        }
+        return command;
+    }
+
+    private String playersReply(String echo, int start, int count) {
+        StringBuilder reply = new StringBuilder(echo);
+        reply.append(" count%3A").append(playerIds.length);
+        int end = Math.min(playerIds.length, start + count);
+        for (int i = start; i < end; i++) {
+            reply.append(" playerindex%3A").append(i)
+                .append(" playerid%3A").append(encode(playerIds[i]))
+                .append(" ip%3A127.0.0.1%3A").append(40000 + i)
+                .append(" name%3APlayer%20").append(i)
+                .append(" model%3Asqueezebox3 connected%3A1");
+        }
+        return reply.toString();
+    }
+
+    // Writes to the client, if there is one.  False if it's gone.
+    private boolean send(String text) {
+        try {
+            byte[] bytes = text.getBytes("UTF-8");
+            synchronized (this) {
+                if (out == null) return false;
+                out.write(bytes);
+                out.flush();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.danga.squeezer;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes events from FakeCliServer at a CliClient for a while, with
+ * status requests pipelined among them the way the service polls, and
+ * reports how many lines a second were parsed and how long events took
+ * from the server's send to the client's callback.
+ *
+ *     ant -f tools/build.xml loadtest -Dplayers=50 -Drate=10 -Dseconds=10
+ *
+ * A rate beyond what the client keeps up with measures parse throughput
+ * instead: the server just sends as fast as it can.
+ */
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        int players = Integer.parseInt(args.length > 0 ? args[0] : "50");
+        int rate = Integer.parseInt(args.length > 1 ? args[1] : "10");
+        int seconds = Integer.parseInt(args.length > 2 ? args[2] : "10");
+        long latencyMillis = Long.parseLong(args.length > 3 ? args[3] : "0");
+
+        FakeCliServer server = new FakeCliServer(players);
+        server.setLatencyMillis(latencyMillis);
+        final long[] eventLatencies = new long[Math.max(1, rate * seconds * 2)];
+        final int[] events = new int[1];
+        CliClient client = new CliClient("127.0.0.1", server.port(), 65536, new CliClient.Listener() {
+            public void onEvent(CliLineTokenizer tokens) {
+                // "<player> playlist newsong Song%20<nanos> <index>"
+                long now = System.nanoTime();
+                if (!tokens.next() || !tokens.next() || !tokens.tokenEquals("playlist")) return;
+                if (!tokens.next() || !tokens.next()) return;
+                String title = tokens.token();
+                long sent = Long.parseLong(title.substring(title.indexOf(' ') + 1));
+                if (events[0] < eventLatencies.length) eventLatencies[events[0]++] = now - sent;
+            }
+
+            public void onDisconnected() {
+            }
+        });
+
+        System.out.println(players + " players, " + rate + " events/sec, " + seconds + "s, "
+                + latencyMillis + "ms reply latency");
+        long start = System.nanoTime();
+        server.startEvents(rate);
+        int requests = 0;
+        int failures = 0;
+        long requestNanos = 0;
+        long end = start + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            // One status request per player a second, as the dashboard polls.
+            final CountDownLatch done = new CountDownLatch(players);
+            final int[] failed = new int[1];
+            long sent = System.nanoTime();
+            for (int i = 0; i < players; i++) {
+                client.request(FakeCliServer.encode(server.playerId(i)) + " status - 1 tags:ylqwaJ",
+                        new CommandPipeline.ResponseHandler() {
+                            public void onResponse(CliLineTokenizer tokens) {
+                                done.countDown();
+                            }
+
+                            public void onFailure() {
+                                synchronized (failed) {
+                                    failed[0]++;
+                                }
+                                done.countDown();
+                            }
+                        }, 10000);
+            }
+            done.await(10, TimeUnit.SECONDS);
+            requestNanos += System.nanoTime() - sent;
+            requests += players;
+            synchronized (failed) {
+                failures += failed[0];
+            }
+            long left = 1000 - (System.nanoTime() - sent) / 1000000;
+            if (left > 0) Thread.sleep(left);
+        }
+        server.stopEvents();
+        long elapsedNanos = System.nanoTime() - start;
+        long lines = client.linesReceived();
+        client.close();
+        server.close();
+
+        System.out.printf("lines parsed:     %d (%.0f/sec)%n", lines, lines * 1e9 / elapsedNanos);
+        System.out.printf("status requests:  %d, %d failed, %.2fms per round of %d%n",
+                requests, failures, requestNanos / 1e6 / Math.max(1, requests / players), players);
+        int n = events[0];
+        if (n == 0) {
+            System.out.println("no newsong events received");
+            return;
+        }
+        long[] sorted = Arrays.copyOf(eventLatencies, n);
+        Arrays.sort(sorted);
+        System.out.printf("event latency:    n=%d median=%.3fms p99=%.3fms max=%.3fms%n", n,
+                sorted[n / 2] / 1e6, sorted[Math.min(n - 1, n * 99 / 100)] / 1e6, sorted[n - 1] / 1e6);
+    }
+}
@@ -0,0 +1,62 @@
+package com.danga.squeezer;
+
+// Every event in PlayerEventParser's list, and one it ignores.
+public class PlayerEventParserTest extends TestCase {
+    private static final PlayerStatus PLAYING = PlayerStatus.EMPTY.buildUpon()
+        .setPlayerId("p").setPlaying(true).setPoweredOn(true).setVolume(50)
+        .setSong("Nine Ways").setElapsed(10000, 0).build();
+
+    private static PlayerStatus event(PlayerStatus status, String line) {
+        CliLineTokenizer tokens = new CliLineTokenizer();
+        tokens.reset(line);
+        tokens.next();  // player id
+        tokens.next();
+        return PlayerEventParser.parse(status, tokens, 1000);
+    }
+
+    public void testPlayStopPause() {
+        assertFalse(event(PLAYING, "p stop").isPlaying());
+        PlayerStatus stopped = event(PLAYING, "p stop");
+        assertTrue(event(stopped, "p play").isPlaying());
+        assertFalse(event(PLAYING, "p pause 1").isPlaying());
+        assertTrue(event(stopped, "p pause 0").isPlaying());
+        assertFalse(event(PLAYING, "p pause").isPlaying());
+        assertTrue(event(stopped, "p pause").isPlaying());
+    }
+
+    public void testPower() {
+        assertFalse(event(PLAYING, "p power 0").isPoweredOn());
+        PlayerStatus off = event(PLAYING, "p power 0");
+        assertTrue(event(off, "p power 1").isPoweredOn());
+        assertTrue(event(off, "p power").isPoweredOn());
+        assertFalse(event(PLAYING, "p power").isPoweredOn());
+    }
+
+    public void testVolume() {
+        assertEquals(30, event(PLAYING, "p mixer volume 30").getVolume());
+        assertEquals(55, event(PLAYING, "p mixer volume %2B5").getVolume());
+        assertEquals(45, event(PLAYING, "p mixer volume -5").getVolume());
+        assertEquals(100, event(PLAYING, "p mixer volume %2B80").getVolume());
+        assertEquals(0, event(PLAYING, "p mixer volume -80").getVolume());
+        assertEquals(70, event(PLAYING, "p prefset server volume 70").getVolume());
+        assertNull(event(PLAYING, "p mixer muting 1"));
+        assertNull(event(PLAYING, "p prefset server repeat 1"));
+    }
+
+    public void testNewSong() {
+        PlayerStatus next = event(PLAYING, "p playlist newsong Other%20Song 3");
+        assertEquals("Other Song", next.getSong());
+        assertEquals(0, next.getElapsedMillisAt(1000));
+        assertNull(event(PLAYING, "p playlist clear"));
+    }
+
+    // The song clock runs on through other events.
+    public void testClockCarriesOn() {
+        assertEquals(PLAYING.getElapsedMillisAt(1000),
+                     event(PLAYING, "p power 1").getElapsedMillisAt(1000));
+    }
+
+    public void testOthersChangeNothing() {
+        assertNull(event(PLAYING, "p displaynotify"));
+    }
+}
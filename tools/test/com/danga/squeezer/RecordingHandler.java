@@ -0,0 +1,75 @@
+package com.danga.squeezer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A RecordHandler that writes down what it's told, as decoded lines, for
+ * tests to look at once it's done.
+ */
+class RecordingHandler extends CommandPipeline.RecordHandler {
+    // Guarded by this:
+    final List<String> headers = new ArrayList<String>();
+    final List<String> records = new ArrayList<String>();
+    volatile boolean ended;
+    volatile boolean failed;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    RecordingHandler(String recordKey) {
+        super(recordKey);
+    }
+
+    @Override
+    synchronized void onHeader(CliLineTokenizer tokens) {
+        headers.add(decode(tokens));
+    }
+
+    @Override
+    synchronized void onRecord(CliLineTokenizer tokens) {
+        records.add(decode(tokens));
+    }
+
+    @Override
+    synchronized void onEnd() {
+        ended = true;
+        done.countDown();
+    }
+
+    public synchronized void onFailure() {
+        failed = true;
+        done.countDown();
+    }
+
+    // Waits for onEnd() or onFailure().  False if neither came in time.
+    boolean await(long millis) throws InterruptedException {
+        return done.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized int recordCount() {
+        return records.size();
+    }
+
+    synchronized String record(int i) {
+        return records.get(i);
+    }
+
+    synchronized String header() {
+        return headers.isEmpty() ? null : headers.get(0);
+    }
+
+    // "key=value" (or the token) for each token, space separated.
+    static String decode(CliLineTokenizer tokens) {
+        StringBuilder decoded = new StringBuilder();
+        while (tokens.next()) {
+            if (decoded.length() > 0) decoded.append(' ');
+            if (tokens.hasKey()) {
+                decoded.append(tokens.key()).append('=').append(tokens.value());
+            } else {
+                decoded.append(tokens.token());
+            }
+        }
+        return decoded.toString();
+    }
+}
@@ -0,0 +1,144 @@
+package com.danga.squeezer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ServerDiscovery against a stand-in server on 127.0.0.1: a UDP socket
+ * answering each discovery request with canned replies, and a
+ * FakeCliServer as the CLI port being probed.  Each discover() takes
+ * about LISTEN_MILLIS.
+ */
+public class ServerDiscoveryTest extends TestCase {
+    private FakeCliServer cli;
+    private Responder responder;
+
+    // Answers every 'e' request with the given packets.
+    private static final class Responder extends Thread {
+        final DatagramSocket socket;
+        private final byte[][] replies;
+        volatile int requests;
+
+        Responder(byte[]... replies) throws IOException {
+            super("Responder");
+            this.replies = replies;
+            socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[1500];
+            try {
+                while (true) {
+                    DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(request);
+                    if (request.getLength() < 1 || buffer[0] != 'e') continue;
+                    requests++;
+                    for (byte[] reply : replies) {
+                        socket.send(new DatagramPacket(reply, reply.length,
+                                request.getSocketAddress()));
+                    }
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        cli = new FakeCliServer(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (responder != null) responder.socket.close();
+        cli.close();
+    }
+
+    public void testNameAndCliPort() throws Exception {
+        responder = new Responder(reply("NAME", "Kitchen \u00e9", "CLIP", cli.port()));
+        List<ServerDiscovery.Server> servers = discover();
+        assertEquals(1, servers.size());
+        assertEquals("Kitchen \u00e9", servers.get(0).name);
+        assertEquals("127.0.0.1:" + cli.port(), servers.get(0).hostPort);
+        assertEquals(3, responder.requests);
+    }
+
+    // A TLV running off the end of the packet is dropped; the ones before
+    // it still count.
+    public void testTruncatedTlv() throws Exception {
+        byte[] whole = reply("CLIP", cli.port(), "NAME", "Living room");
+        byte[] truncated = new byte[whole.length - 3];
+        System.arraycopy(whole, 0, truncated, 0, truncated.length);
+        responder = new Responder(truncated);
+        List<ServerDiscovery.Server> servers = discover();
+        assertEquals(1, servers.size());
+        assertEquals("127.0.0.1", servers.get(0).name);  // no name, so the address
+        assertEquals("127.0.0.1:" + cli.port(), servers.get(0).hostPort);
+    }
+
+    // Servers too old to know CLIP are taken to be on 9090.
+    public void testNoCliPortMeans9090() throws Exception {
+        ServerSocket oldCli;
+        try {
+            oldCli = new ServerSocket(9090, 1, InetAddress.getByName("127.0.0.1"));
+        } catch (BindException e) {
+            System.out.println("  (skipped: 9090 is in use)");
+            return;
+        }
+        try {
+            responder = new Responder(reply("NAME", "Old server"));
+            List<ServerDiscovery.Server> servers = discover();
+            assertEquals(1, servers.size());
+            assertEquals("Old server", servers.get(0).name);
+            assertEquals("127.0.0.1:9090", servers.get(0).hostPort);
+        } finally {
+            oldCli.close();
+        }
+    }
+
+    // Every broadcast is answered, some twice; it's still one server, under
+    // the name it first gave.  Junk is ignored.
+    public void testDuplicateReplies() throws Exception {
+        byte[] first = reply("NAME", "Den", "CLIP", cli.port());
+        responder = new Responder(first, first, reply("CLIP", cli.port(), "NAME", "Den again"),
+                new byte[] { 'X', 1, 2, 3 });
+        List<ServerDiscovery.Server> servers = discover();
+        assertEquals(1, servers.size());
+        assertEquals("Den", servers.get(0).name);
+    }
+
+    public void testNobodyAnswers() throws Exception {
+        responder = new Responder();
+        assertEquals(0, discover().size());
+    }
+
+    private List<ServerDiscovery.Server> discover() throws IOException {
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        addresses.add(InetAddress.getByName("127.0.0.1"));
+        return new ServerDiscovery(addresses, responder.socket.getLocalPort()).discover();
+    }
+
+    // 'E', then tag, length and value for each tag and value given.
+    private static byte[] reply(Object... tagsAndValues) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('E');
+        for (int i = 0; i < tagsAndValues.length; i += 2) {
+            byte[] value = String.valueOf(tagsAndValues[i + 1]).getBytes("UTF-8");
+            out.write(((String) tagsAndValues[i]).getBytes("US-ASCII"));
+            out.write(value.length);
+            out.write(value);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,50 @@
+package com.danga.squeezer;
+
+public class StatusLineParserTest extends TestCase {
+    static final String PLAYER_ID = "00:04:20:17:04:7f";
+
+    private final StatusLineParser parser = new StatusLineParser();
+
+    private PlayerStatus parse(PlayerStatus oldStatus, String line, long now) {
+        CliLineTokenizer tokens = new CliLineTokenizer();
+        tokens.reset(line);
+        tokens.next();  // player id
+        tokens.next();  // "status"
+        return parser.parse(PLAYER_ID, oldStatus, tokens, now);
+    }
+
+    public void testStatusLine() {
+        PlayerStatus status = parse(PlayerStatus.EMPTY, CliLineTokenizerTest.STATUS_LINE, 5000);
+        assertEquals(PLAYER_ID, status.getPlayerId());
+        assertTrue(status.isPlaying());
+        assertTrue(status.isPoweredOn());
+        assertEquals(25, status.getVolume());
+        assertEquals("Nine Ways", status.getSong());
+        assertEquals("Aphex Twin", status.getArtist());
+        assertEquals("Drukqs", status.getAlbum());
+        assertEquals("2213", status.getArtworkTrackId());
+        assertEquals(224, status.getSecondsTotal());
+        assertEquals(99803 + 1000, status.getElapsedMillisAt(6000));
+        assertEquals(7, parser.playlistIndex());
+        assertEquals(13, parser.playlistTracks());
+    }
+
+    public void testUnchangedValuesKeepTheirStrings() {
+        PlayerStatus first = parse(PlayerStatus.EMPTY, CliLineTokenizerTest.STATUS_LINE, 0);
+        PlayerStatus second = parse(first, CliLineTokenizerTest.STATUS_LINE, 0);
+        assertTrue(first.getSong() == second.getSong());
+        assertTrue(first.getArtworkTrackId() == second.getArtworkTrackId());
+    }
+
+    public void testNewSongWithoutArtworkDropsTheOldArt() {
+        PlayerStatus first = parse(PlayerStatus.EMPTY, CliLineTokenizerTest.STATUS_LINE, 0);
+        PlayerStatus next = parse(first, "p status - 1 title%3AOther", 0);
+        assertEquals("Other", next.getSong());
+        assertNull(next.getArtworkTrackId());
+        assertEquals(-1, parser.playlistIndex());
+    }
+
+    public void testMalformedLine() {
+        assertNull(parse(PlayerStatus.EMPTY, "p status - 1 mode%3Aplay bogus", 0));
+    }
+}
@@ -0,0 +1,99 @@
+package com.danga.squeezer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * A JUnit 3 look-alike, so the tests run from the plain JDK without any
+ * jars: every public void no-argument method whose name starts with
+ * "test" is run on a fresh instance, between setUp() and tearDown().
+ *
+ * Lives in the app's package so the tests can get at package-private
+ * classes.
+ */
+abstract class TestCase {
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+    // Runs every test in each class and returns how many failed.
+    static int run(Class<?>... testClasses) {
+        int run = 0;
+        int failed = 0;
+        for (Class<?> testClass : testClasses) {
+            for (Method method : testClass.getMethods()) {
+                if (!method.getName().startsWith("test") || method.getParameterTypes().length != 0) {
+                    continue;
+                }
+                run++;
+                String name = testClass.getSimpleName() + "." + method.getName();
+                Throwable failure = runOne(testClass, method);
+                if (failure == null) {
+                    System.out.println("ok    " + name);
+                } else {
+                    failed++;
+                    System.out.println("FAIL  " + name + ": " + failure);
+                    failure.printStackTrace(System.out);
+                }
+            }
+        }
+        System.out.println(run + " tests, " + failed + " failed");
+        return failed;
+    }
+
+    private static Throwable runOne(Class<?> testClass, Method method) {
+        TestCase test;
+        try {
+            test = (TestCase) testClass.newInstance();
+        } catch (Exception e) {
+            return e;
+        }
+        Throwable failure = null;
+        try {
+            test.setUp();
+            method.invoke(test);
+        } catch (InvocationTargetException e) {
+            failure = e.getCause();
+        } catch (Throwable e) {
+            failure = e;
+        }
+        try {
+            test.tearDown();
+        } catch (Throwable e) {
+            if (failure == null) failure = e;
+        }
+        return failure;
+    }
+
+    static void fail(String message) {
+        throw new AssertionError(message);
+    }
+
+    static void assertTrue(String message, boolean condition) {
+        if (!condition) fail(message);
+    }
+
+    static void assertTrue(boolean condition) {
+        assertTrue("expected true", condition);
+    }
+
+    static void assertFalse(boolean condition) {
+        assertTrue("expected false", !condition);
+    }
+
+    static void assertNull(Object actual) {
+        if (actual != null) fail("expected null, was <" + actual + ">");
+    }
+
+    static void assertEquals(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            fail("expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    static void assertEquals(long expected, long actual) {
+        if (expected != actual) fail("expected <" + expected + "> but was <" + actual + ">");
+    }
+}